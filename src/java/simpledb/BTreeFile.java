@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +13,14 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Locking transactions lock only leaves, and keys on them. Internal, root pointer
+ * and header pages are guarded by latches alone: a search holds the structure
+ * latch of the file shared on its way down, and a split or merge holds it
+ * exclusively, as a nested top action that is logged and written at once and is
+ * never undone (see {@link #changeStructure}). An aborting transaction's inserts
+ * and deletes are then taken back logically, by deleting and inserting tuples
+ * wherever splits and merges have moved them since (see {@link #rollback}).
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -25,6 +35,38 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	// shared by searches, exclusive for splits and merges
+	private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+	// pages a split or merge fetched read-only, to unpin once it is done
+	private ArrayList<Page> structureReads;
+	// inserts and deletes of running locking transactions, to take back on abort
+	private final ConcurrentHashMap<TransactionId, ArrayList<Change>> changes =
+			new ConcurrentHashMap<TransactionId, ArrayList<Change>>();
+
+	/** An insert or delete of a transaction that has not ended yet. */
+	private static class Change {
+		final boolean inserted;
+		final Tuple tuple;	// a copy: splits and merges move the stored one
+		final long lsn;		// of its INDEX record, or -1 if not logged
+		volatile BTreePageId leaf;	// the leaf it is in now, see moveChanges
+
+		Change(boolean inserted, Tuple tuple, long lsn, BTreePageId leaf) {
+			this.inserted = inserted;
+			this.tuple = tuple;
+			this.lsn = lsn;
+			this.leaf = leaf;
+		}
+	}
+
+	/** A split or merge, made by {@link BTreeFile#changeStructure}. */
+	private interface StructureChange<T> {
+		/**
+		 * @param pages - the pages changed, fetched through getPage
+		 * @return the page the caller goes on with, if any
+		 */
+		T apply(HashMap<PageId, Page> pages) throws DbException, IOException, TransactionAbortedException;
+	}
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -176,10 +218,14 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f. The search takes no locks on the
+	 * internal nodes along the path: it reads them under their page latches (see
+	 * {@link #searchLeaf}), and only the leaf node is locked, with permission
+	 * perm. Since the leaf is found before it is locked, and a split or merge may
+	 * move the key elsewhere meanwhile, the search is repeated once the lock is
+	 * held, until it leads to the page locked: a split or merge locks the leaves
+	 * it moves tuples out of, so none can move it again after that.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -195,27 +241,7 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        if (pid.pgcateg() == BTreePageId.INTERNAL) {
-            BTreeInternalPage btip = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> it = btip.iterator();
-            while (it.hasNext()) {
-                BTreeEntry bte = it.next();
-                if (f == null)
-                    return findLeafPage(tid, dirtypages, bte.getLeftChild(), perm, f);
-                int fv = ((IntField)f).getValue(), btev = ((IntField)bte.getKey()).getValue();
-                if (fv <= btev)
-                	return findLeafPage(tid, dirtypages, bte.getLeftChild(), perm, f);
-                else {
-                	if (it.hasNext()) continue;
-                	return findLeafPage(tid, dirtypages, bte.getRightChild(), perm, f);
-				}
-            }
-        }
-        else if (pid.pgcateg() == BTreePageId.ROOT_PTR) {
-        	BTreeRootPtrPage btrpp = (BTreeRootPtrPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			return findLeafPage(tid, dirtypages, btrpp.getRootId(), perm, f);
-        }
-        return (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
+		return findLeafPage(tid, dirtypages, pid, perm, f, false);
 	}
 	
 	/**
@@ -236,51 +262,86 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
-    /** for the right-most page
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
-     *
-     * If f is null, it finds the left-most leaf page -- used for the iterator
-     *
-     * @param tid - the transaction id
-     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid - the current page being searched
-     * @param perm - the permissions with which to lock the leaf page
-     * @param f - the field to search for
-     * @param isReverse - find the right-most leaf page if is true
-     * @return the left-most leaf page possibly containing the key field f
-     *
-     */
-    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f, boolean isReverse)
-            throws DbException, TransactionAbortedException {
-        // some code goes here
-        if (isReverse == false)
-            findLeafPage(tid, dirtypages, pid, perm, f);
-        if (pid.pgcateg() == BTreePageId.INTERNAL) {
-            BTreeInternalPage btip = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> it = btip.reverseIterator();
-            while (it.hasNext()) {
-                BTreeEntry bte = it.next();
-                if (f == null)
-                    return findLeafPage(tid, dirtypages, bte.getRightChild(), perm, f, isReverse);
-                int fv = ((IntField)f).getValue(), btev = ((IntField)bte.getKey()).getValue();
-                if (fv <= btev)
-                    return findLeafPage(tid, dirtypages, bte.getLeftChild(), perm, f, isReverse);   // still unchanged
-                else {
-                    if (it.hasNext()) continue;
-                    return findLeafPage(tid, dirtypages, bte.getRightChild(), perm, f, isReverse);  // still unchanged
-                }
-            }
-        }
-        else if (pid.pgcateg() == BTreePageId.ROOT_PTR) {
-            BTreeRootPtrPage btrpp = (BTreeRootPtrPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            return findLeafPage(tid, dirtypages, btrpp.getRootId(), perm, f, isReverse);
-        }
-        return (BTreeLeafPage)getPage(tid, dirtypages, pid, perm);
-    }
+	/**
+	 * Like {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)},
+	 * but finds the right-most page possibly containing f if isReverse is true.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @param isReverse - find the right-most leaf page if is true
+	 * @return the left-most (right-most) leaf page possibly containing the key field f
+	 *
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, boolean isReverse)
+					throws DbException, TransactionAbortedException {
+		// some code goes here
+		return findLeafPage(tid, dirtypages, pid, LockMode.of(perm), f, isReverse);
+	}
+
+	/**
+	 * Like {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, boolean)},
+	 * but locks the leaf page in any mode. A leaf locked IS or SIX, for key locking, is
+	 * fetched without converting that lock to S or X; one locked SIX is added to
+	 * dirtypages.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the current page being searched
+	 * @param mode - the mode in which to lock the leaf page
+	 * @param f - the field to search for
+	 * @param isReverse - find the right-most leaf page if is true
+	 * @return the left-most (right-most) leaf page possibly containing the key field f
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, LockMode mode,
+			Field f, boolean isReverse)
+					throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId leafId = searchLeaf(tid, dirtypages, pid, f, isReverse);
+		while(!dirtypages.containsKey(leafId)) {
+			boolean held = bp.holdsLock(tid, leafId);
+			bp.lockPage(tid, leafId, mode);
+			// pid may be a root that has been split since, so search from the top
+			BTreePageId found = searchLeaf(tid, dirtypages, rootPtrId, f, isReverse);
+			if(found.equals(leafId)) {
+				break;
+			}
+			// the key moved while the lock was awaited; that page was not read
+			if(!held) {
+				bp.releasePage(tid, leafId);
+			}
+			leafId = found;
+		}
+		if(mode == LockMode.IS || mode == LockMode.SIX) {
+			Page leaf = getLatchedPage(tid, dirtypages, leafId);
+			if(mode == LockMode.SIX) {
+				dirtypages.put(leafId, leaf);
+			}
+			return (BTreeLeafPage) leaf;
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, leafId,
+				mode == LockMode.X ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Convenience method to find a leaf page and lock it in any mode when there is
+	 * no dirtypages HashMap. Used by the BTreeFile search iterator.
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, LockMode, Field, boolean)
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param mode - the mode in which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, LockMode mode, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, mode, f, false);
+	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
@@ -291,7 +352,7 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-     * @param isReverse - find right-most leaf page if is true
+	 * @param isReverse - find right-most leaf page if is true
 	 * @return the left-most leaf page possibly containing the key field f
 	 *
 	 */
@@ -301,6 +362,88 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, isReverse);
 	}
 
+	/**
+	 * Walk from pid down to the leaf page possibly containing f, holding the
+	 * structure latch shared: a split or merge changes several pages, and holds
+	 * it exclusively until all of them are consistent again, so the search never
+	 * sees one half done. Each page on the path is read under its shared page
+	 * latch, which is held until the next page has been fetched and latched. No
+	 * lock is taken, and no page stays pinned or latched once the leaf has been
+	 * found.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the page to start from, the root pointer page or an internal or leaf page
+	 * @param f - the field to search for, or null for the left-most (right-most) leaf
+	 * @param isReverse - find the right-most leaf page possibly containing f if is true
+	 * @return the id of the leaf page
+	 */
+	private BTreePageId searchLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Field f, boolean isReverse)
+					throws DbException, TransactionAbortedException {
+		Page page = null;
+		long stamp = 0;
+		structure.readLock().lock();
+		try {
+			while(pid.pgcateg() != BTreePageId.LEAF) {
+				Page next = getLatchedPage(tid, dirtypages, pid);
+				long nextStamp = next.getLatch().readLock();
+				if(page != null) {
+					page.getLatch().unlockRead(stamp);
+					unpinPage(tid, dirtypages, page);
+				}
+				page = next;
+				stamp = nextStamp;
+				if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					pid = ((BTreeRootPtrPage) page).getRootId();
+				}
+				else {
+					pid = findChild((BTreeInternalPage) page, f, isReverse);
+				}
+			}
+			return pid;
+		} finally {
+			if(page != null) {
+				page.getLatch().unlockRead(stamp);
+				unpinPage(tid, dirtypages, page);
+			}
+			structure.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Pick the child of an internal page to search for f; the caller holds the
+	 * page's latch.
+	 * 
+	 * @param page - the internal page
+	 * @param f - the field to search for, or null for the left-most (right-most) child
+	 * @param isReverse - pick the right-most child possibly containing f if is true
+	 * @return the id of the child page
+	 */
+	private BTreePageId findChild(BTreeInternalPage page, Field f, boolean isReverse) {
+		BTreeEntry e = null;
+		if(isReverse) {
+			// right child of the right-most key not above f: a key is copied
+			// up from its right child, so that child may hold f as well
+			Iterator<BTreeEntry> it = page.reverseIterator();
+			while(it.hasNext()) {
+				e = it.next();
+				if(f == null || e.getKey().compare(Op.LESS_THAN_OR_EQ, f)) {
+					return e.getRightChild();
+				}
+			}
+			return e.getLeftChild();
+		}
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -521,9 +664,14 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		// only a split or merge of the parent sets its children's parent
+		// pointers, so while we make one the pointer can be read under the
+		// latch alone
+		BTreePage p = (BTreePage) getLatchedPage(tid, dirtypages, child);
+		boolean stale = !p.getParentId().equals(pid);
+		unpinPage(tid, dirtypages, p);
 
-		if(!p.getParentId().equals(pid)) {
+		if(stale) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
 			p.setParentId(pid);
 		}
@@ -582,7 +730,17 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			Page p;
+			if(structure.isWriteLockedByCurrentThread()) {
+				// a split or merge takes no locks, see changeStructure
+				p = Database.getBufferPool().getLatchedPage(tid, pid);
+				if(perm == Permissions.READ_ONLY) {
+					structureReads.add(p);
+				}
+			}
+			else {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			}
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -590,6 +748,39 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Like getPage, but fetches the page from the buffer pool without locking it,
+	 * to be read under its latch only.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @return the requested page
+	 * @see BufferPool#getLatchedPage
+	 */
+	Page getLatchedPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		return Database.getBufferPool().getLatchedPage(tid, pid);
+	}
+
+	/**
+	 * Unpin a page fetched read-only through getPage once it is no longer looked at.
+	 * Pages in the dirtypages cache stay pinned: they are returned to the BufferPool,
+	 * which unpins them after marking them dirty.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param p - the page to unpin
+	 */
+	void unpinPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Page p) {
+		if(!dirtypages.containsKey(p.getId())) {
+			Database.getBufferPool().unpinPage(tid, p.getId());
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -604,31 +795,503 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		// read the root pointer page under its latch; only changing it takes a lock
+		createFile();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getLatchedPage(tid, dirtypages, rootPtrId);
 		BTreePageId rootId = rootPtr.getRootId();
+		unpinPage(tid, dirtypages, rootPtr);
 
+		BufferPool bp = Database.getBufferPool();
+		boolean keyLocks = bp.locksKeys(tid);
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			if(keyLocks) {
+				changeStructure(tid, dirtypages, pages -> setRoot(tid, pages));
+			}
+			else {
+				setRoot(tid, dirtypages);
+			}
+		}
+
+		// find and lock the left-most leaf page corresponding to the key field.
+		// A locking transaction locks it SIX, so that scans of other keys on it
+		// go on, and locks the new key and the gap it goes into instead
+		Field key = t.getField(keyField);
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId,
+				keyLocks ? LockMode.SIX : LockMode.X, key, false);
+		Field next = null;
+		boolean instant = false;
+		if(keyLocks) {
+			// the key after the new one only needs to be locked until the tuple is
+			// in place, so that a scan waiting for it then finds the new key
+			next = nextKey(tid, dirtypages, leafPage, key);
+			while(true) {
+				instant = bp.lockKey(tid, tableid, next, Permissions.READ_WRITE);
+				Field now = nextKey(tid, dirtypages, leafPage, key);
+				if(sameKey(now, next)) {
+					break;
+				}
+				if(instant) {
+					bp.releaseKey(tid, tableid, next);
+				}
+				next = now;
+			}
+			bp.lockKey(tid, tableid, key, Permissions.READ_WRITE);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			if(keyLocks) {
+				// a split moves tuples others may be scanning
+				bp.lockPage(tid, leafPage.getId(), LockMode.X);
+				leafPage = splitLeaf(tid, dirtypages, leafPage, key);
+			}
+			else {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+			}
 		}
 
 		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		changeLeaf(tid, leafPage, t, true);
+		if(instant) {
+			bp.releaseKey(tid, tableid, next);
+		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 	
+	/**
+	 * Point the root pointer at the root leaf createFile wrote, unless another
+	 * insert has done so already.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return null
+	 */
+	private Void setRoot(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		if(rootPtr.getRootId() == null) {
+			rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+		}
+		return null;
+	}
+
+	/**
+	 * Split a leaf locked X by tid as a nested top action, see
+	 * {@link #changeStructure}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages;
+	 * holds only the page returned afterwards
+	 * @param page - the leaf page to split
+	 * @param field - the key field of the tuple to be inserted after the split
+	 * @return the leaf page into which the new tuple should be inserted
+	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 */
+	private BTreeLeafPage splitLeaf(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page,
+			Field field) throws DbException, IOException, TransactionAbortedException {
+		return changeStructure(tid, dirtypages, pages -> {
+			BTreeLeafPage target = splitLeafPage(tid, pages, page, field);
+			dirtypages.put(target.getId(), target);
+			return target;
+		});
+	}
+
+	/**
+	 * Make a split or merge for tid as a nested top action, which is never
+	 * undone. The structure latch is held exclusively meanwhile, so no search
+	 * sees the tree half changed, and no lock is taken or waited for but on the
+	 * leaves the change moves tuples between, which the caller locks X
+	 * beforehand or the change tries to lock. The pages changed are then logged
+	 * in one STRUCTURE record, with the leaves latched, and written at once:
+	 * the change is committed, since other transactions may move into the new
+	 * pages before tid ends. Should tid abort, only its inserts and deletes are
+	 * taken back, logically, by {@link #rollback}.
+	 * 
+	 * The pages in dirtypages are handed over to the change; afterwards
+	 * dirtypages holds only those the change puts back into it, still pinned,
+	 * and every other page it fetched is unpinned.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param change - the split or merge
+	 * @return what change returns
+	 */
+	private <T> T changeStructure(TransactionId tid, HashMap<PageId, Page> dirtypages, StructureChange<T> change)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		HashMap<PageId, Page> pages = new HashMap<PageId, Page>(dirtypages);
+		dirtypages.clear();
+		structure.writeLock().lock();
+		structureReads = new ArrayList<Page>();
+		try {
+			T result = change.apply(pages);
+			moveChanges(tid, pages.values());
+			if(Database.getLogFile().isLogged(tid)) {
+				logStructure(tid, new ArrayList<Page>(pages.values()));
+			}
+			bp.writeIndexPages(pages.values());
+			return result;
+		} finally {
+			for(Page p : structureReads) {
+				bp.unpinPage(tid, p.getId());
+			}
+			structureReads = null;
+			structure.writeLock().unlock();
+			for(Page p : pages.values()) {
+				unpinPage(tid, dirtypages, p);
+			}
+		}
+	}
+
+	/**
+	 * Log the pages of a split or merge in one STRUCTURE record. The leaves
+	 * among them are read latched until the record is appended: other
+	 * transactions go on inserting into them and deleting from them, and each
+	 * such change must be logged after the image it is made to.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pages - the pages changed
+	 */
+	private void logStructure(TransactionId tid, List<Page> pages) throws IOException {
+		ArrayList<byte[]> data = new ArrayList<byte[]>();
+		long[] stamps = new long[pages.size()];
+		int latched = 0;
+		try {
+			for(; latched < pages.size(); latched++) {
+				Page p = pages.get(latched);
+				if(p instanceof BTreeLeafPage) {
+					stamps[latched] = p.getLatch().readLock();
+					data.add(((BTreeLeafPage) p).pageData());
+				}
+				else {
+					data.add(p.getPageData());
+				}
+			}
+			Database.getLogFile().logStructure(tid, pages, data);
+		} finally {
+			for(int i = 0; i < latched; i++) {
+				if(pages.get(i) instanceof BTreeLeafPage) {
+					pages.get(i).getLatch().unlockRead(stamps[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Insert t into a leaf, or delete it from one, for tid. A locking
+	 * transaction logs the change with the leaf before it is seen, and it is
+	 * remembered, to be taken back by {@link #rollback} if tid aborts.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leaf - the leaf page, locked SIX or X
+	 * @param t - the tuple to insert, or the stored tuple to delete
+	 * @param insert - whether t is inserted
+	 */
+	private void changeLeaf(TransactionId tid, BTreeLeafPage leaf, Tuple t, boolean insert)
+			throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		if(!bp.locksKeys(tid)) {
+			if(insert) {
+				leaf.insertTuple(t);
+			}
+			else {
+				leaf.deleteTuple(t);
+			}
+			return;
+		}
+		Tuple copy = copyOf(t);
+		LogFile log = Database.getLogFile();
+		BTreeLeafPage.ChangeLog logger = !log.isLogged(tid) ? null
+				: data -> log.logIndex(tid, insert, copy, leaf, data);
+		long lsn = insert ? leaf.insertTuple(t, logger) : leaf.deleteTuple(t, logger);
+		ArrayList<Change> list = changes.computeIfAbsent(tid, k -> new ArrayList<Change>());
+		synchronized(list) {
+			list.add(new Change(insert, copy, lsn, leaf.getId()));
+		}
+		bp.indexChanged(tid, this);
+	}
+
+	/**
+	 * After a split or merge for tid, note which leaf each of its inserts and
+	 * deletes in the leaves changed is in now: an insert is in the leaf that
+	 * holds its tuple, a delete in the first leaf whose keys reach up to its
+	 * key. No other transaction has changes in leaves tuples moved between,
+	 * since those are locked X.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pages - the pages the split or merge changed
+	 */
+	private void moveChanges(TransactionId tid, Collection<Page> pages) {
+		ArrayList<Change> list = changes.get(tid);
+		if(list == null) {
+			return;
+		}
+		HashSet<PageId> changed = new HashSet<PageId>();
+		HashMap<PageId, BTreeLeafPage> leaves = new HashMap<PageId, BTreeLeafPage>();
+		for(Page p : pages) {
+			if(p instanceof BTreeLeafPage) {
+				changed.add(p.getId());
+				if(((BTreeLeafPage) p).getNumTuples() > 0) {
+					leaves.put(p.getId(), (BTreeLeafPage) p);
+				}
+			}
+		}
+		// the leaves left to right
+		ArrayList<BTreeLeafPage> ordered = new ArrayList<BTreeLeafPage>();
+		for(BTreeLeafPage first : leaves.values()) {
+			if(!leaves.containsKey(first.getLeftSiblingId())) {
+				for(BTreeLeafPage p = first; p != null; p = leaves.get(p.getRightSiblingId())) {
+					ordered.add(p);
+				}
+			}
+		}
+		if(ordered.isEmpty()) {
+			return;
+		}
+		synchronized(list) {
+			for(Change c : list) {
+				if(changed.contains(c.leaf)) {
+					c.leaf = leafOf(ordered, c);
+				}
+			}
+		}
+	}
+
+	/** @return the leaf among ordered, left to right, that c is in now */
+	private BTreePageId leafOf(ArrayList<BTreeLeafPage> ordered, Change c) {
+		Field key = c.tuple.getField(keyField);
+		for(BTreeLeafPage p : ordered) {
+			if(c.inserted ? matchingTuple(p, c.tuple) != null
+					: p.reverseIterator().next().getField(keyField).compare(Op.GREATER_THAN_OR_EQ, key)) {
+				return p.getId();
+			}
+		}
+		return c.inserted ? c.leaf : ordered.get(ordered.size() - 1).getId();
+	}
+
+	/**
+	 * Return the data of a leaf as committed: less the inserts and deletes in
+	 * it of running transactions other than tid, taken back the last first on
+	 * a copy, as {@link #rollback} would take them back. The caller holds the
+	 * latch of the leaf.
+	 * 
+	 * @param leaf - the leaf page
+	 * @param tid - the transaction whose changes are kept, or null
+	 * @return the page data, or null if there is nothing to take back
+	 */
+	byte[] committedData(BTreeLeafPage leaf, TransactionId tid) {
+		ArrayList<Change> pending = new ArrayList<Change>();
+		for(Map.Entry<TransactionId, ArrayList<Change>> e : changes.entrySet()) {
+			if(e.getKey().equals(tid)) {
+				continue;
+			}
+			ArrayList<Change> list = e.getValue();
+			synchronized(list) {
+				for(int i = list.size() - 1; i >= 0; i--) {
+					if(leaf.getId().equals(list.get(i).leaf)) {
+						pending.add(list.get(i));
+					}
+				}
+			}
+		}
+		if(pending.isEmpty()) {
+			return null;
+		}
+		try {
+			BTreeLeafPage copy = new BTreeLeafPage(leaf.getId(), leaf.pageData(), keyField);
+			for(Change c : pending) {
+				if(c.inserted) {
+					Tuple stored = matchingTuple(copy, c.tuple);
+					if(stored != null) {
+						copy.deleteTuple(stored);
+					}
+				}
+				else if(copy.getNumEmptySlots() > 0) {
+					copy.insertTuple(copyOf(c.tuple));
+				}
+			}
+			return copy.getPageData();
+		} catch (IOException | DbException e) {
+			// a copy of a page already parsed
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param pid - a leaf page
+	 * @param tid - a transaction to pass over, or null
+	 * @return a running transaction other than tid with inserts or deletes in
+	 * the leaf, or null if there is none
+	 */
+	TransactionId writer(BTreePageId pid, TransactionId tid) {
+		for(Map.Entry<TransactionId, ArrayList<Change>> e : changes.entrySet()) {
+			if(e.getKey().equals(tid)) {
+				continue;
+			}
+			ArrayList<Change> list = e.getValue();
+			synchronized(list) {
+				for(Change c : list) {
+					if(pid.equals(c.leaf)) {
+						return e.getKey();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/** @return a tuple with the fields of t, stored nowhere */
+	private static Tuple copyOf(Tuple t) {
+		Tuple copy = new Tuple(t.getTupleDesc());
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			copy.setField(i, t.getField(i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Take back the inserts and deletes of an aborting transaction, the last
+	 * first, while it still holds its locks. Its splits and merges stay: each
+	 * tuple is deleted from, or inserted into, the leaf it belongs to now. The
+	 * leaves changed are written at once, as splits and merges are, since the
+	 * committed page would not do. Every undo is logged with a CLR naming the
+	 * INDEX record it takes back.
+	 * 
+	 * @param tid - the aborting transaction
+	 * @see BufferPool#rollbackIndexes
+	 */
+	void rollback(TransactionId tid) throws IOException {
+		ArrayList<Change> list = changes.remove(tid);
+		if(list == null) {
+			return;
+		}
+		HashMap<PageId, Page> leaves = new HashMap<PageId, Page>();
+		try {
+			for(int i = list.size() - 1; i >= 0; i--) {
+				Change c = list.get(i);
+				undo(tid, c.inserted, c.tuple, c.lsn, leaves);
+			}
+			Database.getBufferPool().writeIndexPages(leaves.values());
+		} finally {
+			for(Page p : leaves.values()) {
+				Database.getBufferPool().unpinPage(tid, p.getId());
+			}
+		}
+	}
+
+	/**
+	 * Forget the inserts and deletes of a committed transaction.
+	 * 
+	 * @param tid - the transaction id
+	 */
+	void forget(TransactionId tid) {
+		changes.remove(tid);
+	}
+
+	/**
+	 * Take back one insert or delete: delete the tuple from the leaf it is on
+	 * now, or insert it again where it belongs now, splitting the leaf first if
+	 * it is full. Used by {@link #rollback} and by recovery, which has no
+	 * Change to go by but the INDEX record.
+	 * 
+	 * @param tid - the transaction whose change it was
+	 * @param inserted - whether t was inserted
+	 * @param t - the tuple inserted or deleted
+	 * @param lsn - the LSN of the INDEX record of the change, or -1 if it was not logged
+	 * @param leaves - the leaves changed so far, pinned and marked dirty, for the
+	 * caller to write and unpin; updated
+	 */
+	void undo(TransactionId tid, boolean inserted, Tuple t, long lsn, HashMap<PageId, Page> leaves)
+			throws IOException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		Field key = t.getField(keyField);
+		LogFile log = Database.getLogFile();
+		boolean logged = lsn >= 0 && log.isLogged(tid);
+		BTreePageId locked = null; // a full leaf tid locks SIX, to split
+		try {
+			while(true) {
+				BTreeLeafPage leaf;
+				structure.readLock().lock();
+				try {
+					leaf = (BTreeLeafPage) getLatchedPage(tid, leaves,
+							searchLeaf(tid, leaves, rootPtrId, key, false));
+					while(inserted) {
+						BTreeLeafPage page = leaf;
+						Tuple stored = matchingTuple(page, t);
+						if(stored != null) {
+							// tid still locks the leaf, so the tuple stays where it is
+							page.deleteTuple(stored, !logged ? null
+									: data -> { log.logIndexUndo(tid, page, data, lsn); return lsn; });
+							undone(tid, leaves, page);
+							return;
+						}
+						// equal keys go on in the right siblings
+						BTreePageId right = page.getRightSiblingId();
+						unpinPage(tid, leaves, page);
+						if(right == null) {
+							return; // not in the tree: its insert never reached the disk
+						}
+						leaf = (BTreeLeafPage) getLatchedPage(tid, leaves, right);
+						Iterator<Tuple> it = leaf.iterator();
+						if(it.hasNext() && it.next().getField(keyField).compare(Op.GREATER_THAN, key)) {
+							unpinPage(tid, leaves, leaf);
+							return;
+						}
+					}
+					BTreeLeafPage page = leaf;
+					if(page.getNumEmptySlots() > 0) {
+						try {
+							page.insertTuple(copyOf(t), !logged ? null
+									: data -> { log.logIndexUndo(tid, page, data, lsn); return lsn; });
+							undone(tid, leaves, page);
+							return;
+						} catch (DbException e) {
+							// filled up by another transaction meanwhile
+							if(page.getNumEmptySlots() > 0) {
+								throw e;
+							}
+						}
+					}
+					if(!page.getId().equals(locked)) {
+						unpinPage(tid, leaves, page);
+						leaf = null;
+					}
+				} finally {
+					structure.readLock().unlock();
+				}
+				if(leaf == null) {
+					// then no other transaction inserts into the leaf or
+					// reorganizes it; look again once the lock is held
+					locked = searchLeaf(tid, leaves, rootPtrId, key, false);
+					bp.lockPage(tid, locked, LockMode.SIX);
+					continue;
+				}
+				// the split takes a pin of its own
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				dirtypages.put(leaf.getId(), bp.getLatchedPage(tid, leaf.getId()));
+				splitLeaf(tid, dirtypages, leaf, key);
+				for(Page p : dirtypages.values()) {
+					bp.unpinPage(tid, p.getId());
+				}
+				unpinPage(tid, leaves, leaf);
+			}
+		} catch (DbException | TransactionAbortedException e) {
+			throw new IOException("cannot undo a change to B+ tree " + tableid, e);
+		}
+	}
+
+	/** Note that tid changed leaf while undoing, and keep it pinned in leaves. */
+	private void undone(TransactionId tid, HashMap<PageId, Page> leaves, BTreeLeafPage leaf) {
+		leaf.markDirty(true, tid);
+		leaves.put(leaf.getId(), leaf);
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -702,6 +1365,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId rightSiblingId = null;
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
+
+		// a merge never waits for a lock: it does without a sibling another
+		// transaction is using, and the page may stay less than half full
+		if(leftSiblingId != null && !lockSibling(tid, leftSiblingId)) leftSiblingId = null;
+		if(leftSiblingId == null && rightSiblingId != null && !lockSibling(tid, rightSiblingId)) rightSiblingId = null;
 		
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(leftSiblingId != null) {
@@ -728,6 +1396,19 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * Lock a sibling leaf X for a merge or steal made by changeStructure, if
+	 * that can be done at once. Otherwise the sibling is left alone.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the sibling
+	 * @return true if tuples may be moved to and from the sibling
+	 */
+	private boolean lockSibling(TransactionId tid, BTreePageId pid) {
+		return !structure.isWriteLockedByCurrentThread()
+				|| Database.getBufferPool().tryLockPage(tid, pid, LockMode.X);
+	}
+
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
@@ -1134,14 +1815,49 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		BufferPool bp = Database.getBufferPool();
+		boolean keyLocks = bp.locksKeys(tid);
+		BTreeLeafPage page;
+		if(keyLocks) {
+			// lock the page SIX, and the key and the gap its removal widens until
+			// the transaction ends: the key after it stands for that gap
+			bp.lockPage(tid, pageId, LockMode.SIX);
+			page = (BTreeLeafPage) getLatchedPage(tid, dirtypages, pageId);
+			dirtypages.put(pageId, page);
+			Field key = t.getField(keyField);
+			bp.lockKey(tid, tableid, key, Permissions.READ_WRITE);
+			Field next = nextKey(tid, dirtypages, page, key);
+			while(true) {
+				bp.lockKey(tid, tableid, next, Permissions.READ_WRITE);
+				Field now = nextKey(tid, dirtypages, page, key);
+				if(sameKey(now, next)) {
+					break;
+				}
+				next = now;
+			}
+			t = storedTuple(page, t);
+		}
+		else {
+			page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		}
+		changeLeaf(tid, page, t, false);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			if(keyLocks) {
+				// moving tuples between pages needs the pages to itself; the
+				// page is written with the merge, so there is nothing to return
+				bp.lockPage(tid, pageId, LockMode.X);
+				changeStructure(tid, dirtypages, pages -> {
+					handleMinOccupancyPage(tid, pages, page);
+					return null;
+				});
+			}
+			else {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1149,6 +1865,97 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Find the smallest key greater than key, on the given leaf page or else on
+	 * its right siblings. The siblings are locked IS, so that they cannot be
+	 * reorganized, and read under their latches; they may still be changed by
+	 * other transactions' inserts and deletes, so a caller locking the key found
+	 * has to look again once it holds the lock.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page where key belongs
+	 * @param key - the key
+	 * @return the next key, or null if key is greater than or equal to every key
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private Field nextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field key)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreeLeafPage p = page;
+		while(true) {
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			p.readTuples(tuples);
+			BTreePageId right = p.getRightSiblingId();
+			if(p != page) {
+				unpinPage(tid, dirtypages, p);
+			}
+			for(Tuple t : tuples) {
+				if(t.getField(keyField).compare(Op.GREATER_THAN, key)) {
+					return t.getField(keyField);
+				}
+			}
+			if(right == null) {
+				return null;
+			}
+			bp.lockPage(tid, right, LockMode.IS);
+			p = (BTreeLeafPage) getLatchedPage(tid, dirtypages, right);
+		}
+	}
+
+	/**
+	 * Find the tuple stored on page that t was read as. Other transactions may
+	 * have inserted tuples into the page, and rolled that back, since t was read
+	 * under a key lock only, so t's record id may no longer point to it.
+	 * 
+	 * @param page - the leaf page holding t
+	 * @param t - the tuple to find
+	 * @return the tuple on page with the same fields as t
+	 * @throws DbException if there is no such tuple
+	 */
+	private Tuple storedTuple(BTreeLeafPage page, Tuple t) throws DbException {
+		Tuple found = matchingTuple(page, t);
+		if(found == null) {
+			throw new DbException("tried to delete tuple not on page");
+		}
+		return found;
+	}
+
+	/**
+	 * @param page - a leaf page
+	 * @param t - a tuple
+	 * @return t if page stores it, else a tuple on page with the same fields, or null
+	 */
+	private Tuple matchingTuple(BTreeLeafPage page, Tuple t) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		page.readTuples(tuples);
+		Tuple found = null;
+		for(Tuple s : tuples) {
+			if(s == t) {
+				return t;
+			}
+			if(found == null && sameFields(s, t)) {
+				found = s;
+			}
+		}
+		return found;
+	}
+
+	/** @return true if a and b are the same key, null standing for the end of the index */
+	private static boolean sameKey(Field a, Field b) {
+		return a == null ? b == null : b != null && a.equals(b);
+	}
+
+	private static boolean sameFields(Tuple a, Tuple b) {
+		for(int i = 0; i < a.getTupleDesc().numFields(); i++) {
+			if(!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1161,6 +1968,16 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createFile();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private void createFile() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1173,9 +1990,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -1224,19 +2038,29 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			emptyPageNo = appendPage();
 		}
 
 		return emptyPageNo; 
 	}
+
+	/**
+	 * Add an empty page at the end of this BTreeFile.
+	 * 
+	 * @return the page number of the new page
+	 * @throws IOException
+	 */
+	private int appendPage() throws IOException {
+		synchronized(this) {
+			// create the new page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+			bw.write(emptyData);
+			bw.close();
+			return numPages();
+		}
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
@@ -1259,6 +2083,15 @@ public class BTreeFile implements DbFile {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
+		if(pgcateg == BTreePageId.LEAF && structure.isWriteLockedByCurrentThread()
+				&& !Database.getBufferPool().tryLockPage(tid, newPageId, LockMode.X)) {
+			// still locked by the transaction that merged it away: leave it
+			// empty, and add a page instead
+			setEmptyPage(tid, dirtypages, emptyPageNo);
+			emptyPageNo = appendPage();
+			newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
+			Database.getBufferPool().tryLockPage(tid, newPageId, LockMode.X);
+		}
 		
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
@@ -1438,9 +2271,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		// the search reads the root pointer page under its latch, without a lock
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
@@ -1458,6 +2290,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
@@ -1488,6 +2321,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 		it = null;
 		curp = null;
 	}
@@ -1495,7 +2330,16 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * 
+ * A locking transaction does not lock the leaf pages it reads S, which would
+ * keep others from inserting anywhere on them, but IS, and S locks each key
+ * it returns and the first key past the range (or the end of the index), see
+ * {@link Lock#acquireKey}. Inserts and deletes of other keys on the same pages
+ * go on meanwhile, so tuples are read from copies of the page's tuple list,
+ * and a key only counts once it is locked and the pages read since the last
+ * tuple returned are still as they were copied. Otherwise the pages are read
+ * again, from just after the last tuple returned.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1506,6 +2350,31 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	BTreeFile f;
 	IndexPredicate ipred;
 
+	// key locking: the leaves read since the last tuple returned, the first one
+	// holding that tuple, with the position in the last one
+	ArrayList<LeafImage> leaves = null;
+	int next;
+	Field lastKey;		// of the last tuple returned, or null
+	int lastDups;		// the tuples with lastKey returned from leaves[0]
+
+	/** The tuples of a leaf page as they were read, to tell whether it changed since. */
+	private static class LeafImage {
+		final BTreeLeafPage page;
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		final long stamp;
+		final BTreePageId right;
+
+		LeafImage(BTreeLeafPage page) {
+			this.page = page;
+			this.stamp = page.readTuples(tuples);
+			this.right = page.getRightSiblingId();
+		}
+
+		boolean isCurrent() {
+			return Database.getBufferPool().isResident(page) && page.unchangedSince(stamp);
+		}
+	}
+
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
@@ -1523,16 +2392,22 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		// the search reads the root pointer page under its latch, without a lock
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
+		Field start = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			start = ipred.getField();
 		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		if(Database.getBufferPool().locksKeys(tid)) {
+			leaves = new ArrayList<LeafImage>();
+			leaves.add(new LeafImage(f.findLeafPage(tid, root, LockMode.IS, start)));
+			next = 0;
+			lastKey = null;
+			lastDups = 0;
+			return;
 		}
+		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, start);
 		it = curp.iterator();
 	}
 
@@ -1545,6 +2420,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		if(leaves != null) {
+			return readNextLocked();
+		}
 		while (it != null) {
 
 			while (it.hasNext()) {
@@ -1552,15 +2430,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
+				else if(isPastRange(t)) {
 					return null;
 				}
 			}
@@ -1571,6 +2441,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
+				Database.getBufferPool().unpinPage(tid, curp.getId());
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
@@ -1580,6 +2451,127 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		return null;
 	}
 
+	/**
+	 * @return true if t does not match the predicate, and neither can any tuple after it
+	 */
+	private boolean isPastRange(Tuple t) {
+		if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+			// if the predicate was not satisfied and the operation is less than, we have
+			// hit the end
+			return true;
+		}
+		// if the tuple is now greater than the field passed in and the operation
+		// is equals, we have reached the end
+		return ipred.getOp() == Op.EQUALS && 
+				t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField());
+	}
+
+	/**
+	 * readNext under key locks: find the next tuple matching the predicate, or the
+	 * first one past the range, lock its key, and check that the leaves it was
+	 * found on have not changed meanwhile.
+	 */
+	private Tuple readNextLocked() throws TransactionAbortedException, DbException {
+		BufferPool bp = Database.getBufferPool();
+		while(!leaves.isEmpty()) {
+			LeafImage leaf = leaves.get(leaves.size() - 1);
+			Tuple t = null;
+			boolean end = false;
+			for(; next < leaf.tuples.size(); next++) {
+				Tuple c = leaf.tuples.get(next);
+				if(c.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					t = c;
+					break;
+				}
+				if(isPastRange(c)) {
+					t = c;
+					end = true;
+					break;
+				}
+			}
+			if(t == null && leaf.right != null) {
+				// go on to the next page; it cannot be reorganized once locked IS
+				bp.lockPage(tid, leaf.right, LockMode.IS);
+				leaves.add(new LeafImage((BTreeLeafPage) bp.getLatchedPage(tid, leaf.right)));
+				next = 0;
+				continue;
+			}
+
+			// t is null at the end of the index
+			Field key = t == null ? null : t.getField(f.keyField());
+			bp.lockKey(tid, f.getId(), key, Permissions.READ_ONLY);
+			if(!isCurrent()) {
+				reread();
+				continue;
+			}
+			if(t == null || end) {
+				unpinLeaves(0);
+				return null;
+			}
+			if(leaves.size() > 1) {
+				leaves.remove(leaves.size() - 1);
+				unpinLeaves(0);
+				leaves.add(leaf);
+				lastDups = 0;
+			}
+			lastDups = lastKey != null && key.compare(Op.EQUALS, lastKey) ? lastDups + 1 : 1;
+			lastKey = key;
+			next++;
+			return t;
+		}
+		return null;
+	}
+
+	/** @return true if no leaf has changed since it was read */
+	private boolean isCurrent() {
+		for(LeafImage leaf : leaves) {
+			if(!leaf.isCurrent()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the leaf holding the last tuple returned again, and position after that
+	 * tuple. The leaf can still have been changed, but not reorganized, and tuples
+	 * with keys up to the last one returned are locked.
+	 */
+	private void reread() throws TransactionAbortedException, DbException {
+		unpinLeaves(1);
+		BTreePageId pid = leaves.get(0).page.getId();
+		BufferPool bp = Database.getBufferPool();
+		BTreeLeafPage page = (BTreeLeafPage) bp.getLatchedPage(tid, pid);
+		bp.unpinPage(tid, pid);
+		LeafImage leaf = new LeafImage(page);
+		leaves.set(0, leaf);
+		next = 0;
+		if(lastKey == null) {
+			return;
+		}
+		int dups = lastDups;
+		while(next < leaf.tuples.size()) {
+			Field key = leaf.tuples.get(next).getField(f.keyField());
+			if(key.compare(Op.LESS_THAN, lastKey) || (dups > 0 && key.compare(Op.EQUALS, lastKey))) {
+				if(!key.compare(Op.LESS_THAN, lastKey)) {
+					dups--;
+				}
+				next++;
+			}
+			else {
+				break;
+			}
+		}
+	}
+
+	/** Unpin and forget the leaves from the given one on. */
+	private void unpinLeaves(int from) {
+		while(leaves.size() > from) {
+			LeafImage leaf = leaves.remove(leaves.size() - 1);
+			Database.getBufferPool().unpinPage(tid, leaf.page.getId());
+		}
+	}
+
 	/**
 	 * rewind this iterator back to the beginning of the tuples
 	 */
@@ -1593,7 +2585,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		if (leaves != null)
+			unpinLeaves(0);
 		it = null;
+		curp = null;
+		leaves = null;
 	}
 }
 
@@ -1622,9 +2620,8 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
+        // the search reads the root pointer page under its latch, without a lock
+        BTreePageId root = BTreeRootPtrPage.getId(f.getId());
         curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null, true);
         it = curp.reverseIterator();   // still unchanged
     }
@@ -1642,6 +2639,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getLeftSiblingId();
+            Database.getBufferPool().unpinPage(tid, curp.getId());
             if(nextp == null) {
                 curp = null;
             }
@@ -1672,6 +2670,8 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         it = null;
         curp = null;
     }
@@ -1707,9 +2707,8 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
+        // the search reads the root pointer page under its latch, without a lock
+        BTreePageId root = BTreeRootPtrPage.getId(f.getId());
         if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
                 || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
             curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
@@ -1755,6 +2754,7 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
                 return null;
             }
             else {
+                Database.getBufferPool().unpinPage(tid, curp.getId());
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
                 it = curp.reverseIterator();
@@ -1777,6 +2777,9 @@ class BTreeSearchReverseIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         it = null;
+        curp = null;
     }
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
+	private final PageLatch latch = new PageLatch();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -132,6 +133,11 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		return latch.read(this::pageData);
+	}
+
+	/** getPageData; the caller holds the latch or validates the result. */
+	private byte[] pageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -245,6 +251,10 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -277,14 +287,19 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
-		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		long stamp = latch.writeLock();
+		try {
+			int headerbit = i % 8;
+			int headerbyte = (i - headerbit) / 8;
+
+			Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		} finally {
+			latch.unlockWrite(stamp);
+		}
 	}
 
 	/**
@@ -41,6 +41,17 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 	
+	/**
+	 * Create a BTreeInternalPage keyed on the key field of its BTreeFile, as recovery
+	 * does from page data in the log.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, data, ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField());
+	}
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -232,6 +243,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		return latch.read(this::pageData);
+	}
+
+	/** getPageData; the caller holds the latch or validates the result. */
+	private byte[] pageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -345,26 +361,31 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to delete entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to delete entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to delete null entry.");
-		if(deleteRightChild) {
-			markSlotUsed(rid.getTupleNumber(), false);
-		}
-		else {
-			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
-					markSlotUsed(rid.getTupleNumber(), false);
-					break;
-				}	
+		long stamp = latch.writeLock();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to delete entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to delete entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to delete null entry.");
+			if(deleteRightChild) {
+				markSlotUsed(rid.getTupleNumber(), false);
 			}
+			else {
+				for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+					if(isSlotUsed(i)) {
+						children[i] = children[rid.getTupleNumber()];
+						markSlotUsed(rid.getTupleNumber(), false);
+						break;
+					}	
+				}
+			}
+			e.setRecordId(null);
+		} finally {
+			latch.unlockWrite(stamp);
 		}
-		e.setRecordId(null);
 	}
 
 	/**
@@ -402,35 +423,40 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
-		RecordId rid = e.getRecordId();
-		if(rid == null)
-			throw new DbException("tried to update entry with null rid");
-		if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
-			throw new DbException("tried to update entry on invalid page or table");
-		if (!isSlotUsed(rid.getTupleNumber()))
-			throw new DbException("tried to update null entry.");
+		long stamp = latch.writeLock();
+		try {
+			RecordId rid = e.getRecordId();
+			if(rid == null)
+				throw new DbException("tried to update entry with null rid");
+			if((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+				throw new DbException("tried to update entry on invalid page or table");
+			if (!isSlotUsed(rid.getTupleNumber()))
+				throw new DbException("tried to update null entry.");
 		
-		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be less than or equal to keys on the right");
-				}
-				break;
-			}	
-		}
-		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
-			if(isSlotUsed(i)) {
-				if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
-					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
-							" HINT: updated key must be greater than or equal to keys on the left");
-				}
-				children[i] = e.getLeftChild().getPageNumber();
-				break;
-			}	
+			for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					if(keys[i].compare(Op.LESS_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be less than or equal to keys on the right");
+					}
+					break;
+				}	
+			}
+			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+				if(isSlotUsed(i)) {
+					if(i > 0 && keys[i].compare(Op.GREATER_THAN, e.getKey())) {
+						throw new DbException("attempt to update entry with invalid key " + e.getKey() +
+								" HINT: updated key must be greater than or equal to keys on the left");
+					}
+					children[i] = e.getLeftChild().getPageNumber();
+					break;
+				}	
+			}
+			children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
+			keys[rid.getTupleNumber()] = e.getKey();
+		} finally {
+			latch.unlockWrite(stamp);
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
 	}
 
 	/**
@@ -441,6 +467,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		long stamp = latch.writeLock();
+		try {
+			addEntry(e);
+		} finally {
+			latch.unlockWrite(stamp);
+		}
+	}
+
+	/** insertEntry under the write latch. */
+	private void addEntry(BTreeEntry e) throws DbException {
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -624,23 +660,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected Field getKey(int i) throws NoSuchElementException {
+		return latch.read(() -> {
+			// key at slot 0 is not used
+			if (i <= 0 || i >= keys.length)
+				throw new NoSuchElementException();
 
-		// key at slot 0 is not used
-		if (i <= 0 || i >= keys.length)
-			throw new NoSuchElementException();
-
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getKey: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
-			return keys[i];
+				Debug.log(1, "BTreeInternalPage.getKey: returning key %d", i);
+				return keys[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
-		}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		});
 	}
 
 	/**
@@ -650,22 +687,23 @@ public class BTreeInternalPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	protected BTreePageId getChildId(int i) throws NoSuchElementException {
+		return latch.read(() -> {
+			if (i < 0 || i >= children.length)
+				throw new NoSuchElementException();
 
-		if (i < 0 || i >= children.length)
-			throw new NoSuchElementException();
-
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeInternalPage.getChildId: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
-			return new BTreePageId(pid.getTableId(), children[i], childCategory);
+				Debug.log(1, "BTreeInternalPage.getChildId: returning child id %d", i);
+				return new BTreePageId(pid.getTableId(), children[i], childCategory);
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
-		}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		});
 	}
 }
 
@@ -40,6 +40,17 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Create a BTreeLeafPage keyed on the key field of its BTreeFile, as recovery
+	 * does from page data in the log.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, data, ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField());
+	}
+
 	/**
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
@@ -153,6 +164,54 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Return a copy of the page without the inserts and deletes of running
+	 * transactions other than tid, which its BTreeFile takes back on the copy.
+	 */
+	public BTreeLeafPage committedImage(TransactionId tid) {
+		long stamp = latch.readLock();
+		try {
+			return new BTreeLeafPage(pid, committedData(tid), keyField);
+		} catch (IOException e) {
+			// a copy of a page already parsed
+			throw new RuntimeException(e);
+		} finally {
+			latch.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * The before image becomes the page less the inserts and deletes of the
+	 * running transactions other than tid; the page stays dirty while there
+	 * are any. With tid null, as for a split or merge, it holds no uncommitted
+	 * change at all, so snapshot readers never see one.
+	 */
+	public void markCommitted(TransactionId tid) {
+		long stamp = latch.readLock();
+		try {
+			byte[] data = committedData(tid);
+			synchronized(oldDataLock)
+			{
+				oldData = data;
+			}
+			TransactionId writer = file().writer(pid, tid);
+			markDirty(writer != null, writer);
+		} finally {
+			latch.unlockRead(stamp);
+		}
+	}
+
+	/** committedImage data; the caller holds the latch. */
+	private byte[] committedData(TransactionId tid) {
+		byte[] data = file().committedData(this, tid);
+		return data != null ? data : pageData();
+	}
+
+	/** @return the BTreeFile this page belongs to */
+	private BTreeFile file() {
+		return (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+	}
+
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -199,6 +258,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		return latch.read(this::pageData);
+	}
+
+	/** getPageData; the caller holds the latch or validates the result. */
+	byte[] pageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -287,6 +351,16 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
+		long stamp = latch.writeLock();
+		try {
+			removeTuple(t);
+		} finally {
+			latch.unlockWrite(stamp);
+		}
+	}
+
+	/** deleteTuple under the write latch. */
+	private void removeTuple(Tuple t) throws DbException {
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -307,6 +381,56 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
+		long stamp = latch.writeLock();
+		try {
+			addTuple(t);
+		} finally {
+			latch.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Logs a change to a leaf, given the page data after it, while the leaf
+	 * is still latched: the records of a page are then in the order of its
+	 * changes.
+	 */
+	interface ChangeLog {
+		/** @return the LSN of the record written */
+		long log(byte[] data) throws IOException;
+	}
+
+	/**
+	 * deleteTuple, then log the change before anyone sees it.
+	 * @param log - logs the change, or null
+	 * @return what log returns, or -1 if it is null
+	 */
+	long deleteTuple(Tuple t, ChangeLog log) throws DbException, IOException {
+		long stamp = latch.writeLock();
+		try {
+			removeTuple(t);
+			return log == null ? -1 : log.log(pageData());
+		} finally {
+			latch.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * insertTuple, then log the change before anyone sees it.
+	 * @param log - logs the change, or null
+	 * @return what log returns, or -1 if it is null
+	 */
+	long insertTuple(Tuple t, ChangeLog log) throws DbException, IOException {
+		long stamp = latch.writeLock();
+		try {
+			addTuple(t);
+			return log == null ? -1 : log.log(pageData());
+		} finally {
+			latch.unlockWrite(stamp);
+		}
+	}
+
+	/** insertTuple under the write latch. */
+	private void addTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -400,17 +524,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			leftSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setLeftSiblingId");
+		long stamp = latch.writeLock();
+		try {
+			if(id == null) {
+				leftSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("leftSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setLeftSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("leftSibling must be a leaf node");
+				}
+				leftSibling = id.getPageNumber();
 			}
-			leftSibling = id.getPageNumber();
+		} finally {
+			latch.unlockWrite(stamp);
 		}
 	}
 
@@ -420,17 +549,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
-		if(id == null) {
-			rightSibling = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRightSiblingId");
+		long stamp = latch.writeLock();
+		try {
+			if(id == null) {
+				rightSibling = 0;
 			}
-			if(id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("rightSibling must be a leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRightSiblingId");
+				}
+				if(id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("rightSibling must be a leaf node");
+				}
+				rightSibling = id.getPageNumber();
 			}
-			rightSibling = id.getPageNumber();
+		} finally {
+			latch.unlockWrite(stamp);
 		}
 	}
 
@@ -491,6 +625,34 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * Copy the tuples of this page, in key order, from one consistent state of
+	 * the page, for a reader that does not keep other transactions from changing
+	 * it meanwhile.
+	 * @param into - the list to add the tuples to
+	 * @return a stamp of the page latch, to check with unchangedSince
+	 */
+	long readTuples(List<Tuple> into) {
+		long stamp = latch.readLock();
+		try {
+			for (int i = 0; i < numSlots; i++) {
+				if (isSlotUsed(i))
+					into.add(tuples[i]);
+			}
+		} finally {
+			stamp = latch.tryConvertToOptimisticRead(stamp);
+		}
+		return stamp;
+	}
+
+	/**
+	 * @param stamp - a stamp returned by readTuples
+	 * @return true if this page has not been modified since the stamp was taken
+	 */
+	boolean unchangedSince(long stamp) {
+		return latch.validate(stamp);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -498,22 +660,23 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	Tuple getTuple(int i) throws NoSuchElementException {
+		return latch.read(() -> {
+			if (i >= tuples.length)
+				throw new NoSuchElementException();
 
-		if (i >= tuples.length)
-			throw new NoSuchElementException();
-
-		try {
-			if(!isSlotUsed(i)) {
-				Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
-				return null;
-			}
+			try {
+				if(!isSlotUsed(i)) {
+					Debug.log(1, "BTreeLeafPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.getPageNumber());
+					return null;
+				}
 
-			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+				Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
+				return tuples[i];
 
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new NoSuchElementException();
-		}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new NoSuchElementException();
+			}
+		});
 	}
 }
 
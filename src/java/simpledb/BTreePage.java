@@ -23,6 +23,7 @@ public abstract class BTreePage implements Page {
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final PageLatch latch = new PageLatch();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -92,23 +93,32 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
-		if(id == null) {
-			throw new DbException("parent id must not be null");
-		}
-		if(id.getTableId() != pid.getTableId()) {
-			throw new DbException("table id mismatch in setParentId");
-		}
-		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
-			throw new DbException("parent must be an internal node or root pointer");
-		}
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			parent = 0;
-		}
-		else {
-			parent = id.getPageNumber();
+		long stamp = latch.writeLock();
+		try {
+			if(id == null) {
+				throw new DbException("parent id must not be null");
+			}
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setParentId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
+				throw new DbException("parent must be an internal node or root pointer");
+			}
+			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+				parent = 0;
+			}
+			else {
+				parent = id.getPageNumber();
+			}
+		} finally {
+			latch.unlockWrite(stamp);
 		}
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -128,6 +138,33 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * BTreeFile logs each insert and delete, and each split or merge, with
+	 * the pages as changed; see {@link BTreeFile#rollback}.
+	 */
+	public boolean logsChanges() {
+		return true;
+	}
+
+	/**
+	 * BTreeFile has already taken back the inserts and deletes of an
+	 * aborting transaction, by deleting and inserting tuples: splits and
+	 * merges are committed as they are made, so the committed page would
+	 * not do.
+	 */
+	public boolean rollback(TransactionId tid) {
+		return true;
+	}
+
+	/**
+	 * Return the page as last written or committed: the changes since are
+	 * written by their commit, or by the split, merge or rollback that
+	 * BTreeFile makes.
+	 */
+	public Page steal() {
+		return getBeforeImage();
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -23,6 +23,7 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	private final PageLatch latch = new PageLatch();
 
 	/**
 	 * Constructor.
@@ -78,6 +79,11 @@ public class BTreeRootPtrPage implements Page {
 	 * @return A byte array corresponding to the bytes of this root pointer page.
 	 */
 	public byte[] getPageData(){
+		return latch.read(this::pageData);
+	}
+
+	/** getPageData; the caller holds the latch or validates the result. */
+	private byte[] pageData() {
 		int len = PAGE_SIZE;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -126,6 +132,10 @@ public class BTreeRootPtrPage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
 	public void markDirty(boolean dirty, TransactionId tid){
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
@@ -156,10 +166,12 @@ public class BTreeRootPtrPage implements Page {
 	 * @return the id of the root page
 	 */
 	public BTreePageId getRootId() {
-		if(root == 0) {
-			return null;
-		}
-		return new BTreePageId(pid.getTableId(), root, rootCategory);
+		return latch.read(() -> {
+			if(root == 0) {
+				return null;
+			}
+			return new BTreePageId(pid.getTableId(), root, rootCategory);
+		});
 	}
 
 	/**
@@ -168,18 +180,23 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
-		if(id == null) {
-			root = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setRootId");
+		long stamp = latch.writeLock();
+		try {
+			if(id == null) {
+				root = 0;
 			}
-			if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
-				throw new DbException("root must be an internal node or leaf node");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setRootId");
+				}
+				if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.LEAF) {
+					throw new DbException("root must be an internal node or leaf node");
+				}
+				root = id.getPageNumber();
+				rootCategory = id.pgcateg();
 			}
-			root = id.getPageNumber();
-			rootCategory = id.pgcateg();
+		} finally {
+			latch.unlockWrite(stamp);
 		}
 	}
 
@@ -200,17 +217,22 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
-		if(id == null) {
-			header = 0;
-		}
-		else {
-			if(id.getTableId() != pid.getTableId()) {
-				throw new DbException("table id mismatch in setHeaderId");
+		long stamp = latch.writeLock();
+		try {
+			if(id == null) {
+				header = 0;
 			}
-			if(id.pgcateg() != BTreePageId.HEADER) {
-				throw new DbException("header must be of type BTreePageId.HEADER");
+			else {
+				if(id.getTableId() != pid.getTableId()) {
+					throw new DbException("table id mismatch in setHeaderId");
+				}
+				if(id.pgcateg() != BTreePageId.HEADER) {
+					throw new DbException("header must be of type BTreePageId.HEADER");
+				}
+				header = id.getPageNumber();
 			}
-			header = id.getPageNumber();
+		} finally {
+			latch.unlockWrite(stamp);
 		}
 	}
 
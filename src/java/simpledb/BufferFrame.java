@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BufferFrame is one slot of the BufferPool page table: the resident copy
+ * of a page plus the bookkeeping the pool keeps about it. Frames are
+ * published in a concurrent map, so everything a reader may look at on a
+ * cache hit is volatile and can be read without a latch.
+ * <p>
+ * A frame is pinned while some operator holds on to its page; eviction
+ * skips pinned frames. Evicting a frame retires it: the pin count is
+ * swapped from 0 to -1, after which it can never be pinned again, so a
+ * thread that found the frame in the page table just before it was evicted
+ * notices and goes back to the table instead of using a stale frame.
+ * <p>
+ * If the page was read into a {@link FrameArena} frame, the frame keeps a
+ * reference to that buffer so the pool can recycle it once the frame is
+ * retired.
+ * <p>
+ * In write-back mode a committed page is not written at commit; the frame
+ * instead holds a snapshot of the committed version until the page cleaner
+ * (or an evicting thread) writes it. Such a frame cannot be evicted, and
+ * the write happens under the frame monitor so eviction cannot slip in
+ * between the write and clearing the snapshot.
+ * <p>
+ * Snapshot reads that need no older version share one copy of the
+ * committed version, taken at the first such read after it changed.
+ *
+ * @see BufferPool
+ */
+class BufferFrame {
+
+    final PageId pid;
+    private volatile Page page;
+    private final AtomicInteger pins = new AtomicInteger(0);
+    final ByteBuffer buffer;    // arena frame the page lives in, or null
+    private volatile Page committed;    // committed version not yet on disk
+    private Page version;       // committed version shared by snapshot reads, or null; guarded by this
+    int accesses;   // times pinned; racy, an approximate frequency is enough
+
+    BufferFrame(PageId pid, Page page) {
+        this(pid, page, null);
+    }
+
+    BufferFrame(PageId pid, Page page, ByteBuffer buffer) {
+        this.pid = pid;
+        this.page = page;
+        this.buffer = buffer;
+    }
+
+    /** @return the resident version of the page */
+    Page getPage() {
+        return page;
+    }
+
+    /** Replace the resident version, e.g. with the on-disk one on abort. */
+    synchronized void setPage(Page page) {
+        this.page = page;
+        version = null;
+    }
+
+    /**
+     * The committed version of the page, the before image of the resident
+     * one, shared by all snapshot reads until it changes; they must not
+     * modify it.
+     */
+    synchronized Page committedVersion() {
+        if (version == null)
+            version = page.getBeforeImage();
+        return version;
+    }
+
+    /**
+     * Forget the shared committed version. Called after a commit has
+     * changed it, so no read can take the replaced one again.
+     */
+    synchronized void versionChanged() {
+        version = null;
+    }
+
+    /** @return true if the resident page has no uncommitted changes */
+    boolean isClean() {
+        return page.isDirty() == null;
+    }
+
+    /**
+     * Pin this frame.
+     *
+     * @return false if the frame has been evicted and must not be used
+     */
+    boolean pin() {
+        while (true) {
+            int n = pins.get();
+            if (n < 0)
+                return false;
+            if (pins.compareAndSet(n, n + 1)) {
+                accesses++;
+                return true;
+            }
+        }
+    }
+
+    /** Drop count pins taken with {@link #pin()}. */
+    void unpin(int count) {
+        while (true) {
+            int n = pins.get();
+            if (n <= 0)
+                return;
+            if (pins.compareAndSet(n, Math.max(n - count, 0)))
+                return;
+        }
+    }
+
+    /** @return true if some operator currently holds this page */
+    boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    /** @return true if the frame could be evicted right now */
+    boolean isEvictable() {
+        return pins.get() == 0 && isClean() && committed == null;
+    }
+
+    /** @return true if a committed version still has to be written */
+    boolean hasPendingWrite() {
+        return committed != null;
+    }
+
+    /** @return the committed version still to be written, or null */
+    Page getCommitted() {
+        return committed;
+    }
+
+    /** Hand a snapshot of the committed version to the write-back path. */
+    synchronized void setCommitted(Page image) {
+        committed = image;
+    }
+
+    /**
+     * Write the pending committed version to disk, if any.
+     *
+     * @return true if a page was written
+     */
+    synchronized boolean writeBack() throws IOException {
+        Page image = committed;
+        if (image == null)
+            return false;
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+        committed = null;
+        return true;
+    }
+
+    /**
+     * Write a version of the page at least as recent as the pending
+     * committed one, such as the resident version or a copy of it taken by
+     * {@link Page#committedImage} or {@link Page#steal}; it supersedes the
+     * pending one.
+     */
+    synchronized void write(Page image) throws IOException {
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+        committed = null;
+    }
+
+    /**
+     * Retire the frame for eviction, which only succeeds if it is neither
+     * pinned nor dirty and has nothing left to write.
+     *
+     * @return true if the frame is now retired
+     */
+    boolean retire() {
+        if (!isClean() || committed != null || !pins.compareAndSet(0, -1))
+            return false;
+        if (isClean() && committed == null)
+            return true;
+        pins.set(0); // dirtied by an unpinned writer in the meantime
+        return false;
+    }
+
+    /**
+     * Retire a frame that is being discarded, dirty or not.
+     *
+     * @return true if the frame is now retired, false if it is pinned
+     */
+    boolean detach() {
+        return pins.compareAndSet(0, -1);
+    }
+}
@@ -2,7 +2,10 @@ package simpledb;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,6 +15,54 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent map of {@link BufferFrame}s, so a cache hit
+ * takes no latch at all. A miss takes the latch of one of
+ * {@link #PAGE_TABLE_STRIPES} stripes, chosen by the PageId hash code, while
+ * it reads the page; misses on different stripes proceed in parallel.
+ * <p>
+ * Every page returned by getPage is pinned on behalf of the transaction
+ * until it calls {@link #unpinPage} or completes; eviction never picks a
+ * pinned page, so an operator can keep using a page object it holds.
+ * <p>
+ * With {@value FrameArena#OFF_HEAP_PROPERTY} set, pages are read into
+ * frames of a {@link FrameArena} allocated with the pool, and a frame is
+ * recycled when its page is evicted.
+ * <p>
+ * By default committed pages are forced to disk at commit. With
+ * {@value #WRITE_BACK_PROPERTY} set, commit instead logs the pages and
+ * forces the log, and a {@link PageCleaner} writes the committed versions
+ * back in the background.
+ * <p>
+ * Heap pages read in page order are read ahead by a {@link ReadAhead}.
+ * A scan of a table much larger than the pool reads through a
+ * {@link BufferRing} so it recycles a few frames of its own.
+ * <p>
+ * The list of resident pages can be saved ({@link #saveState}) and used to
+ * warm the pool up after a restart ({@link #warmUp}).
+ * <p>
+ * The pool can be resized while in use ({@link #resize}). Growing takes
+ * effect as pages are read; shrinking evicts clean, unpinned pages right
+ * away and gives back the rest of the excess a few pages at a time.
+ * <p>
+ * With {@value VersionStore#MVCC_PROPERTY} set, a read-only transaction
+ * that called {@link #beginSnapshot} reads pages as they were committed
+ * when it started, without locks; commits keep the versions they replace
+ * in a {@link VersionStore} for as long as a snapshot may read them.
+ * <p>
+ * Transactions are isolated by two-phase locking by default. With
+ * {@value #CONCURRENCY_PROPERTY} set to "occ" they take no locks; they
+ * write private copies of pages, and are validated at commit by an
+ * {@link OccValidator} ({@link #commitPages}). Heap files lock the tuples
+ * they write rather than whole pages, so several transactions may have
+ * uncommitted changes on one page: a commit writes it without the others'
+ * changes ({@link Page#committedImage}), and an abort undoes only its own
+ * ({@link Page#rollback}).
+ * <p>
+ * A transaction declared read-only ({@link #beginReadOnly}) cannot write.
+ * It reads from a snapshot if MVCC is on; otherwise under locking it takes
+ * a single S lock per table it reads instead of a lock per page. Completing
+ * it only releases what it holds: there are no dirty pages to look for.
  * 
  * @Threadsafe, all fields are final
  */
@@ -26,22 +77,136 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private Map<PageId, Page> pool; // PageId to Page
-    private ArrayList<PageId> order;    // record the order of getPage
-    private int numPages;
+    /** System property that turns on write-back of committed pages. */
+    public static final String WRITE_BACK_PROPERTY = "simpledb.bufferpool.writeback";
+
+    /** System property naming the file the resident page list is saved to. */
+    public static final String STATE_FILE_PROPERTY = "simpledb.bufferpool.statefile";
+    /** System property: if set, save the resident page list every so many seconds. */
+    public static final String STATE_INTERVAL_PROPERTY = "simpledb.bufferpool.stateinterval";
+
+    /** System property selecting concurrency control: "2pl" (default) or "occ". */
+    public static final String CONCURRENCY_PROPERTY = "simpledb.concurrency";
+
+    /** Most pages warmUp reads with one I/O. */
+    static final int WARM_UP_BATCH = 64;
+
+    /** Most extra pages a miss or commit evicts while the pool is over size. */
+    static final int SHRINK_STEP = 8;
+
+    /** Fewest pages the pool may grow past numPages when all are pinned. */
+    static final int MIN_OVERSHOOT = 16;
+
+    /**
+     * Most pages one transaction's own pins may add to that overshoot:
+     * enough for a B+ tree split or merge, which pins the children of an
+     * internal page.
+     */
+    static final int TXN_OVERSHOOT = 1024;
+
+    /** Longest a miss waits for another transaction to unpin a page. */
+    static final long PIN_WAIT_MILLIS = 1000;
+
+    /** Number of miss latches the page table is striped into. */
+    static final int PAGE_TABLE_STRIPES = 64;
+
+    private final ConcurrentHashMap<PageId, BufferFrame> pool; // PageId to frame
+    private final Object[] stripes;         // miss latches, by PageId hash
+    private final AtomicInteger resident;   // frames in use, incl. reserved ones
+    private final EvictionPolicy policy;    // picks the page to evict
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Pins>> pins; // pins held per transaction
+    private final FrameArena arena;         // off-heap page frames, or null
+    private final PageCleaner cleaner;      // background writer, or null
+    private final ReadAhead readAhead;      // sequential prefetch, or null
+    private final Timer stateSaver;         // periodic saveState, or null
+    private final VersionStore versions;    // old versions for snapshots, or null
+    private final OccValidator occ;         // optimistic mode, or null for locking
+    private final Set<TransactionId> readOnly;  // running read-only transactions
+    private final Set<TransactionId> committed; // commitPages done, not yet complete
+    private final ConcurrentHashMap<TransactionId, Set<BTreeFile>> indexes; // B+ trees changed per running transaction
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> writes;    // tables each running transaction declared it writes
+    private final Object unpinned = new Object();   // notified when a page may have become evictable
+    private final AtomicInteger pinWaiters = new AtomicInteger();
+    private volatile int numPages;
     private Lock locks;
-    private int cnt = 0;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages. The replacement
+     * policy is taken from the {@value EvictionPolicy#POLICY_PROPERTY} system
+     * property, CLOCK by default. Page frames are allocated off-heap if the
+     * {@value FrameArena#OFF_HEAP_PROPERTY} system property is true, and
+     * committed pages are written back in the background if
+     * {@value #WRITE_BACK_PROPERTY} is true.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, EvictionPolicy.forName(
+                System.getProperty(EvictionPolicy.POLICY_PROPERTY), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy to use
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         // some code goes here
-        pool = new HashMap<>(numPages);
+        pool = new ConcurrentHashMap<>(numPages, 0.75f, PAGE_TABLE_STRIPES);
+        stripes = new Object[PAGE_TABLE_STRIPES];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Object();
+        resident = new AtomicInteger(0);
+        pins = new ConcurrentHashMap<>();
         this.numPages = numPages;
+        this.policy = policy;
+        this.arena = Boolean.getBoolean(FrameArena.OFF_HEAP_PROPERTY)
+                ? new FrameArena(numPages, pageSize) : null;
         locks = new Lock();
+        readAhead = ReadAhead.fromProperties(this);
+        if (Boolean.getBoolean(WRITE_BACK_PROPERTY)) {
+            cleaner = PageCleaner.fromProperties(this);
+            cleaner.start();
+        } else {
+            cleaner = null;
+        }
+        stateSaver = startStateSaver();
+        versions = Boolean.getBoolean(VersionStore.MVCC_PROPERTY)
+                ? VersionStore.fromProperties() : null;
+        occ = concurrencyControl();
+        readOnly = ConcurrentHashMap.newKeySet();
+        committed = ConcurrentHashMap.newKeySet();
+        indexes = new ConcurrentHashMap<>();
+        writes = new ConcurrentHashMap<>();
+    }
+
+    /** @return the validator if the properties ask for OCC, else null */
+    private static OccValidator concurrencyControl() {
+        String cc = System.getProperty(CONCURRENCY_PROPERTY, "2pl");
+        if (cc.equalsIgnoreCase("occ"))
+            return new OccValidator();
+        if (!cc.equalsIgnoreCase("2pl"))
+            throw new IllegalArgumentException("Unknown concurrency control: " + cc);
+        return null;
+    }
+
+    private Timer startStateSaver() {
+        Integer seconds = Integer.getInteger(STATE_INTERVAL_PROPERTY);
+        if (seconds == null || seconds <= 0 || System.getProperty(STATE_FILE_PROPERTY) == null)
+            return null;
+        Timer timer = new Timer("simpledb-pool-state", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    saveState();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, seconds * 1000L, seconds * 1000L);
+        return timer;
     }
     
     public static int getPageSize() {
@@ -68,6 +233,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The returned page stays pinned for tid until {@link #unpinPage} is
+     * called as many times as the page was fetched, or tid completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -75,38 +243,529 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)}, but if it has to be read from disk, reuse a frame of
+     * the given ring rather than evicting from the whole pool.
+     *
+     * @param ring the scan's ring, or null for the normal strategy
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
         // some code goes here
         // locks
-        boolean isTAE = false;
+        if (isSnapshot(tid))
+            return getSnapshotPage(tid, pid, perm, ring);
+        if (isReadOnly(tid) && perm == Permissions.READ_WRITE)
+            throw new DbException("read-only transaction " + tid + " cannot write " + pid);
+        if (occ != null && tid != null)
+            return getOptimisticPage(tid, pid, perm, ring);
+        if (isReadOnly(tid))
+            locks.acquireTable(tid, pid.getTableId(), Permissions.READ_ONLY);
+        else
+            locks.acquire(tid, pid, perm);
+        BufferFrame frame = pinFrame(tid, pid, ring);
+        notePin(tid, frame);
+        return frame.getPage();
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+     * Permissions)}, locked in any mode, e.g. IX for a heap write that locks
+     * the tuples it changes. Transactions that take no page locks read it
+     * with the permissions the mode implies.
+     *
+     * @param mode the mode to lock the page in
+     * @see Lock#acquire(TransactionId, PageId, LockMode)
+     */
+    public Page getPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException, DbException {
+        if (isSnapshot(tid) || isReadOnly(tid) || occ != null && tid != null)
+            return getPage(tid, pid, mode.permissions());
+        locks.acquire(tid, pid, mode);
+        BufferFrame frame = pinFrame(tid, pid, null);
+        notePin(tid, frame);
+        return frame.getPage();
+    }
+
+    /**
+     * Retrieve a page without locking it, for a short read under its latch
+     * (see {@link Page#getLatch}), such as the inner pages a B+ tree search
+     * passes through. The page is pinned for tid like one from getPage.
+     * Snapshots and optimistic transactions take no locks anyway, and read
+     * it as they read any page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getLatchedPage(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        if (isSnapshot(tid) || occ != null && tid != null)
+            return getPage(tid, pid, Permissions.READ_ONLY);
+        BufferFrame frame = pinFrame(tid, pid, null);
+        notePin(tid, frame);
+        return frame.getPage();
+    }
+
+    /** Find or read the frame of a page and pin it for tid. */
+    private BufferFrame pinFrame(TransactionId tid, PageId pid, BufferRing ring) throws DbException {
+        BufferFrame frame = pool.get(pid);
+        if (frame == null && readAhead != null && readAhead.awaitPage(pid))
+            frame = pool.get(pid);
+        if (frame != null && frame.pin())
+            policy.pageAccessed(pid);
+        else
+            frame = loadPage(tid, pid, ring);
+        if (readAhead != null)
+            readAhead.pageAccessed(pid, ring);
+        return frame;
+    }
+
+    /**
+     * A page as an optimistic transaction sees it: its private copy if it
+     * has written the page, else the committed page, whose version is
+     * recorded for validation. Asking to write a page makes the copy.
+     */
+    private Page getOptimisticPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws DbException {
+        Page own = occ.written(tid, pid);
+        if (own != null)
+            return own;
+        occ.read(tid, pid);
+        BufferFrame frame = pinFrame(tid, pid, ring);
+        if (perm == Permissions.READ_ONLY) {
+            notePin(tid, frame);
+            return frame.getPage();
+        }
+        Page copy;
         try {
-            boolean f = locks.grantLock(tid, pid, perm);
-            while (!f) {
-                if (locks.isDead(tid, pid, null)) {
-                    isTAE = true;
-                    //transactionComplete(tid, false);
-                    break;
+            copy = frame.getPage().getBeforeImage();    // committed pages are clean
+        } finally {
+            frame.unpin(1);
+        }
+        occ.write(tid, copy);
+        return copy;
+    }
+
+    /**
+     * Start a snapshot for a read-only transaction: until it completes it
+     * reads pages as they were committed now, and takes no locks. Does
+     * nothing unless {@value VersionStore#MVCC_PROPERTY} is set.
+     *
+     * @param tid the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        if (versions != null)
+            versions.begin(tid);
+    }
+
+    /**
+     * Declare tid read-only before it reads anything: writes by it fail,
+     * and it reads from a snapshot if {@value VersionStore#MVCC_PROPERTY}
+     * is set, else under one S lock per table.
+     *
+     * @param tid the read-only transaction
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnly.add(tid);
+        beginSnapshot(tid);
+    }
+
+    /** @return true if tid has been declared read-only */
+    public boolean isReadOnly(TransactionId tid) {
+        return tid != null && readOnly.contains(tid);
+    }
+
+    /** @return true if tid reads from a snapshot */
+    boolean isSnapshot(TransactionId tid) {
+        return versions != null && versions.snapshotOf(tid) != null;
+    }
+
+    /** @return the old page versions kept for snapshots, or null */
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * A page as the snapshot of tid sees it: the version committed when the
+     * snapshot was taken. That is an old version kept by the version store
+     * if a later commit replaced it, which needs no visit to the pool, else
+     * the latest committed version, shared by the frame with every other
+     * snapshot reading it (see {@link BufferFrame#committedVersion}). The
+     * returned page must not be modified.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("read-only transaction " + tid + " cannot write " + pid);
+        long snapshot = versions.snapshotOf(tid);
+        Page old = versions.find(pid, snapshot);
+        if (old != null)
+            return old;
+        BufferFrame frame = pinFrame(tid, pid, ring);
+        Page latest;
+        try {
+            latest = frame.committedVersion();
+        } finally {
+            frame.unpin(1);
+        }
+        // looked up again: a commit keeps the old version before installing the new
+        old = versions.find(pid, snapshot);
+        return old != null ? old : latest;
+    }
+
+    /**
+     * Return a ring for a sequential scan of a table with the given number
+     * of pages, or null if the table is small enough to be cached normally.
+     *
+     * @see BufferRing
+     */
+    public BufferRing scanRing(int tablePages) {
+        double threshold = BufferRing.DEFAULT_THRESHOLD;
+        String t = System.getProperty(BufferRing.THRESHOLD_PROPERTY);
+        if (t != null)
+            threshold = Double.parseDouble(t);
+        if (tablePages <= threshold * numPages)
+            return null;
+        int size = Integer.getInteger(BufferRing.SIZE_PROPERTY, BufferRing.DEFAULT_SIZE);
+        return new BufferRing(Math.min(size, Math.max(numPages / 8, 1)));
+    }
+
+    /**
+     * Tell the pool that a table is about to be scanned from the start, so
+     * it can begin reading ahead immediately.
+     *
+     * @param tableId the table to be scanned
+     */
+    public void expectSequentialScan(int tableId) {
+        if (readAhead != null)
+            readAhead.expectScan(tableId);
+    }
+
+    /**
+     * Load a page ahead of demand, without pinning it. Only a clean,
+     * unpinned page is evicted to make room.
+     *
+     * @return false if there was no room for the page
+     */
+    boolean prefetchPage(PageId pid, BufferRing ring) throws DbException {
+        if (pool.containsKey(pid))
+            return true;
+        if (!takeRingFrame(ring) && !tryReserveFrame())
+            return false;
+        boolean used = false;
+        try {
+            synchronized (stripeOf(pid)) {
+                if (pool.containsKey(pid))
+                    return true;
+                pool.put(pid, readFrame(pid));
+                used = true;
+                policy.pageLoaded(pid);
+                if (ring != null)
+                    ring.add(pid);
+                return true;
+            }
+        } finally {
+            if (!used)
+                resident.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release one pin that tid holds on a page, i.e. one earlier getPage.
+     * Pins that are never released are dropped when the transaction
+     * completes. Unpinning a page tid has not pinned is a no-op.
+     *
+     * @param tid the ID of the transaction that fetched the page
+     * @param pid the ID of the page it no longer uses
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Pins> held = pins.get(tid);
+        if (held == null)
+            return;
+        synchronized (held) {
+            Pins p = held.get(pid);
+            if (p == null)
+                return;
+            p.frame.unpin(1);
+            if (--p.count == 0)
+                held.remove(pid);
+        }
+        signalUnpin();
+    }
+
+    /** Return true if some transaction has the specified page pinned */
+    boolean isPinned(PageId pid) {
+        BufferFrame frame = pool.get(pid);
+        return frame != null && frame.isPinned();
+    }
+
+    /** Pins of one transaction on one frame. */
+    private static class Pins {
+        final BufferFrame frame;
+        int count;
+
+        Pins(BufferFrame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private void notePin(TransactionId tid, BufferFrame frame) {
+        Map<PageId, Pins> held = pins.computeIfAbsent(tid, t -> new HashMap<>());
+        synchronized (held) {
+            Pins p = held.get(frame.pid);
+            if (p != null && p.frame != frame) {
+                // the old frame was discarded; its pins are meaningless now
+                p.frame.unpin(p.count);
+                p = null;
+            }
+            if (p == null) {
+                p = new Pins(frame);
+                held.put(frame.pid, p);
+            }
+            p.count++;
+        }
+    }
+
+    private void releasePins(TransactionId tid) {
+        Map<PageId, Pins> held = pins.remove(tid);
+        if (held == null)
+            return;
+        synchronized (held) {
+            for (Pins p : held.values())
+                p.frame.unpin(p.count);
+        }
+        signalUnpin();
+    }
+
+    /**
+     * Cache miss: read the page into a new frame. The frame is reserved
+     * (evicting if need be) before the stripe latch is taken, so eviction
+     * never runs under a stripe latch. Only one thread per stripe does I/O
+     * at a time, so two threads missing on the same page read it once.
+     *
+     * @return the frame holding the page, already pinned
+     */
+    private BufferFrame loadPage(TransactionId tid, PageId pid, BufferRing ring) throws DbException {
+        if (!takeRingFrame(ring))
+            reserveFrame(tid);
+        boolean used = false;
+        try {
+            synchronized (stripeOf(pid)) {
+                BufferFrame frame = pool.get(pid);
+                if (frame != null && frame.pin()) {
+                    policy.pageAccessed(pid);
+                    return frame;
                 }
-                Thread.sleep(200);
-                f = locks.grantLock(tid, pid, perm);
+                frame = readFrame(pid);
+                frame.pin();
+                pool.put(pid, frame);
+                used = true;
+                policy.pageLoaded(pid);
+                if (ring != null)
+                    ring.add(pid);
+                return frame;
+            }
+        } finally {
+            if (!used)
+                resident.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read a page from disk into an arena frame if one is free and the file
+     * supports it, otherwise onto the heap.
+     */
+    private BufferFrame readFrame(PageId pid) {
+        DbFile dbf = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        ByteBuffer buffer = arena == null ? null : arena.acquire();
+        Page page = buffer == null ? null : dbf.readPage(pid, buffer);
+        if (page == null) {
+            if (buffer != null)
+                arena.release(buffer);
+            return new BufferFrame(pid, dbf.readPage(pid));
+        }
+        return new BufferFrame(pid, page, buffer);
+    }
+
+    /** Give the arena frame of a retired frame back to the arena. */
+    private void recycle(BufferFrame frame) {
+        if (frame.buffer != null)
+            arena.release(frame.buffer);
+    }
+
+    private Object stripeOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (PAGE_TABLE_STRIPES - 1)];
+    }
+
+    /**
+     * Claim a free frame for a page about to be read, evicting if the pool
+     * is full. If every clean page is pinned the pool grows past numPages
+     * instead of failing: pinned pages are in use, and an operation such as
+     * an internal page split may legitimately touch more pages than the pool
+     * holds. The overshoot is given back by later evictions, as is the
+     * excess left by {@link #resize}. It is bounded by {@link #maxResident}
+     * plus the pages tid itself has pinned, up to {@value #TXN_OVERSHOOT} of
+     * them; past that the miss waits for other transactions to unpin a
+     * page, for at most {@value #PIN_WAIT_MILLIS} ms.
+     *
+     * @param tid the transaction that will pin the page, or null
+     * @throws DbException if all pages are dirty, or pinned with the pool
+     *         at its bound for longer than that
+     */
+    private void reserveFrame(TransactionId tid) throws DbException {
+        // while a shrink is pending, evict at most SHRINK_STEP pages beyond our own
+        int evicted = 0;
+        long deadline = 0;
+        while (true) {
+            int n = resident.get();
+            if (n < numPages) {
+                if (resident.compareAndSet(n, n + 1))
+                    return;
+            } else if (evicted > SHRINK_STEP && n > numPages) {
+                if (resident.compareAndSet(n, n + 1))
+                    return;
+            } else if (evictPage()) {
+                evicted++;
+            } else if (n < maxResident() + Math.min(pinnedBy(tid), TXN_OVERSHOOT)) {
+                if (resident.compareAndSet(n, n + 1))
+                    return;
+            } else {
+                if (deadline == 0)
+                    deadline = System.currentTimeMillis() + PIN_WAIT_MILLIS;
+                if (!awaitUnpin(deadline))
+                    throw new DbException("buffer pool full: all " + n + " pages are pinned");
             }
         }
-        catch (Exception e) {
-            e.printStackTrace();
+    }
+
+    /** @return the number of pages tid has pinned */
+    private int pinnedBy(TransactionId tid) {
+        Map<PageId, Pins> held = tid == null ? null : pins.get(tid);
+        if (held == null)
+            return 0;
+        synchronized (held) {
+            return held.size();
         }
+    }
 
-        if (isTAE) throw new TransactionAbortedException();
-        cnt = 0;
+    /**
+     * Wait until a page is unpinned, or the deadline passes.
+     *
+     * @return false if the deadline has passed
+     */
+    private boolean awaitUnpin(long deadline) throws DbException {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+            return false;
+        pinWaiters.incrementAndGet();
+        try {
+            synchronized (unpinned) {
+                unpinned.wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for a page to be unpinned");
+        } finally {
+            pinWaiters.decrementAndGet();
+        }
+        return true;
+    }
+
+    /** Wake misses waiting in reserveFrame for a page to be unpinned. */
+    private void signalUnpin() {
+        if (pinWaiters.get() == 0)
+            return;
+        synchronized (unpinned) {
+            unpinned.notifyAll();
+        }
+    }
+
+    /**
+     * @return the most pages the pool grows to when every clean page is
+     *         pinned: numPages plus a quarter of it, or {@value #MIN_OVERSHOOT}
+     *         pages if that is more
+     */
+    private int maxResident() {
+        return numPages + Math.max(numPages / 4, MIN_OVERSHOOT);
+    }
+
+    /**
+     * Reserve a frame by evicting the oldest page of a full ring. The
+     * evicted page's slot in the pool goes straight to the caller.
+     *
+     * @return false if the ring has room or its oldest page cannot be
+     *         evicted (pinned, dirty or already gone); reserve normally then
+     */
+    private boolean takeRingFrame(BufferRing ring) {
+        if (ring == null)
+            return false;
+        PageId old = ring.nextVictim();
+        if (old == null)
+            return false;
+        synchronized (stripeOf(old)) {
+            BufferFrame frame = pool.get(old);
+            if (frame == null || !frame.retire())
+                return false;
+            pool.remove(old);
+            policy.pageRemoved(old);
+            recycle(frame);
+            return true;
+        }
+    }
+
+    /**
+     * Like reserveFrame, but give up instead of growing the pool or
+     * failing when nothing can be evicted.
+     */
+    private boolean tryReserveFrame() {
+        while (true) {
+            int n = resident.get();
+            if (n < numPages) {
+                if (resident.compareAndSet(n, n + 1))
+                    return true;
+                continue;
+            }
+            try {
+                if (!evictPage())
+                    return false;
+            } catch (DbException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Put a page that was produced outside getPage (e.g. a freshly created
+     * one returned by DbFile.insertTuple) into the pool, unless a version of
+     * it is already resident. Its frame is reserved like that of a miss, so
+     * the pool evicts for it rather than growing past its bound.
+     *
+     * @param tid the transaction that produced the page
+     */
+    private void installPage(TransactionId tid, Page page) throws DbException {
+        PageId pid = page.getId();
         if (pool.containsKey(pid))
-            return pool.get(pid);
-        if (pool.size() + 1 > numPages)
-            evictPage();
-        if (order == null)
-            order = new ArrayList<>();
-        DbFile dbf = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page p = dbf.readPage(pid);
-        pool.put(pid, p);
-        order.add(pid);
-        return p;
+            return;
+        reserveFrame(tid);
+        boolean used = false;
+        try {
+            synchronized (stripeOf(pid)) {
+                if (pool.containsKey(pid))
+                    return;
+                pool.put(pid, new BufferFrame(pid, page));
+                used = true;
+                policy.pageLoaded(pid);
+            }
+        } finally {
+            if (!used)
+                resident.decrementAndGet();
+        }
     }
 
     /**
@@ -135,6 +794,232 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Lock a whole table for the transaction, covering all of its pages,
+     * e.g. for a read-only transaction, which holds one lock instead of one
+     * per page.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for exclusive
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        lockTable(tid, tableId, LockMode.of(perm));
+    }
+
+    /**
+     * Lock a whole table for the transaction in any mode, e.g. S for a scan,
+     * or SIX for a scan by a transaction that writes the table. A read-only
+     * transaction always locks it S.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param mode the mode to lock it in
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        if (isSnapshot(tid) || occ != null)
+            return;
+        locks.acquireTable(tid, tableId, isReadOnly(tid) ? LockMode.S : mode);
+    }
+
+    /**
+     * Declare that the transaction is going to write the table, e.g. an
+     * insert or delete whose input may scan it. A scan of the table by the
+     * transaction then locks it SIX up front: one that locked it S would
+     * have to convert the lock at the first write, and two transactions
+     * doing so deadlock.
+     *
+     * @param tid the ID of the transaction that writes the table
+     * @param tableId the table it writes
+     */
+    public void declareWrite(TransactionId tid, int tableId) {
+        if (tid != null)
+            writes.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(tableId);
+    }
+
+    /**
+     * Lock a whole table for a scan by the transaction: SIX if it has
+     * declared that it writes the table ({@link #declareWrite}), else S.
+     *
+     * @param tid the ID of the transaction scanning the table
+     * @param tableId the table to lock
+     */
+    public void lockScan(TransactionId tid, int tableId)
+            throws TransactionAbortedException {
+        Set<Integer> tables = tid == null ? null : writes.get(tid);
+        lockTable(tid, tableId, tables != null && tables.contains(tableId) ? LockMode.SIX : LockMode.S);
+    }
+
+    /**
+     * Lock a page for the transaction without fetching it, e.g. a B+ tree
+     * leaf found by a latched search, which is only read once the search
+     * has been checked again under the lock.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for exclusive
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        if (isSnapshot(tid) || occ != null)
+            return;
+        if (isReadOnly(tid))
+            locks.acquireTable(tid, pid.getTableId(), Permissions.READ_ONLY);
+        else
+            locks.acquire(tid, pid, perm);
+    }
+
+    /**
+     * Lock a page for the transaction in any mode, without fetching it.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the page to lock
+     * @param mode the mode to lock it in
+     * @see Lock#acquire(TransactionId, PageId, LockMode)
+     */
+    public void lockPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        if (isSnapshot(tid) || occ != null)
+            return;
+        if (isReadOnly(tid))
+            locks.acquireTable(tid, pid.getTableId(), Permissions.READ_ONLY);
+        else
+            locks.acquire(tid, pid, mode);
+    }
+
+    /**
+     * Lock a page for the transaction in any mode, only if that can be done
+     * at once; a split or merge of a B+ tree, which never waits, does
+     * without the pages it cannot lock.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the page to lock
+     * @param mode the mode to lock it in
+     * @return true if the transaction now holds the lock, or needs none
+     * @see Lock#tryAcquire
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, LockMode mode) {
+        if (!locksKeys(tid))
+            return true;
+        return locks.tryAcquire(tid, pid, mode);
+    }
+
+    /**
+     * Lock a key of a B+ tree index for the transaction, with an intention
+     * lock on its table.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the index
+     * @param key the key, or null for the end of the index
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for exclusive
+     * @return true if the lock is new to tid and may be released with
+     *         {@link #releaseKey} once the operation needing it is done
+     * @see Lock#acquireKey
+     */
+    public boolean lockKey(TransactionId tid, int tableId, Field key, Permissions perm)
+            throws TransactionAbortedException {
+        if (isSnapshot(tid) || occ != null)
+            return false;
+        if (isReadOnly(tid)) {
+            locks.acquireTable(tid, tableId, Permissions.READ_ONLY);
+            return false;
+        }
+        return locks.acquireKey(tid, tableId, key, perm);
+    }
+
+    /**
+     * Release a key lock taken for a single operation.
+     *
+     * @param tid the ID of the transaction holding the lock
+     * @param tableId the index
+     * @param key the key, or null for the end of the index
+     */
+    public void releaseKey(TransactionId tid, int tableId, Field key) {
+        locks.unLockKey(tid, tableId, key);
+    }
+
+    /**
+     * Return true if tid is a locking transaction that may write: neither a
+     * snapshot, an optimistic or a read-only one, nor null. Only locking transactions read and
+     * write B+ tree leaves under key locks, since the others read pages
+     * without locks and write private copies of them.
+     */
+    boolean locksKeys(TransactionId tid) {
+        return tid != null && !isSnapshot(tid) && occ == null && !isReadOnly(tid);
+    }
+
+    /**
+     * Return true if page is the copy of its page the pool holds now, not
+     * one replaced since, e.g. by rolling back an aborted transaction.
+     */
+    boolean isResident(Page page) {
+        BufferFrame frame = pool.get(page.getId());
+        return frame != null && frame.getPage() == page;
+    }
+
+    /**
+     * Lock a single tuple for the transaction, with intention locks on its
+     * page and table.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for exclusive
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        if (isSnapshot(tid) || occ != null)
+            return;
+        if (isReadOnly(tid))
+            locks.acquireTable(tid, rid.getPageId().getTableId(), Permissions.READ_ONLY);
+        else
+            locks.acquireTuple(tid, rid, perm);
+    }
+
+    /**
+     * Lock a single tuple X for the transaction only if that can be done
+     * without waiting, e.g. an empty slot a heap insert would fill. Never
+     * waits, so it may be called under a page latch.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @return true if tid may write the tuple
+     * @see Lock#tryAcquireTuple
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid) {
+        if (isSnapshot(tid) || occ != null)
+            return true;
+        return locks.tryAcquireTuple(tid, rid);
+    }
+
+    /**
+     * Return true if a transaction other than tid may be changing the
+     * specified page: it holds a lock to write it, so what it has changed
+     * is not committed yet. Always false for snapshots and optimistic
+     * transactions, which never see others' changes.
+     */
+    boolean isWriteLocked(TransactionId tid, PageId pid) {
+        if (isSnapshot(tid) || occ != null)
+            return false;
+        return locks.writeLockedByOther(tid, pid);
+    }
+
+    /** @return the number of lock requests that have had to wait so far */
+    long lockWaits() {
+        return locks.waitCount();
+    }
+
+    /** @return the number of locks tid holds */
+    int locksHeld(TransactionId tid) {
+        return locks.locksHeld(tid);
+    }
+
+    /** @return the mode tid holds the table in, or null */
+    LockMode tableMode(TransactionId tid, int tableId) {
+        return locks.tableMode(tid, tableId);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -144,46 +1029,132 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. A commit runs {@link #commitPages} first, unless it
+     * has already been run for the transaction.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws IOException also if an optimistic transaction failed
+     *         validation; it is then aborted
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        IOException failed = null;
         if (commit) {
-            flushPages(tid);
-            // delete pool info
-            Set<PageId> key = pool.keySet();
-            Iterator<PageId> it = key.iterator();
-            while (it.hasNext()) {
-                PageId pid = it.next();
-                if (holdsLock(tid, pid)) {
-                    releasePage(tid, pid);
-                    if (locks.isEmpty(pid)) {
-                        it.remove();
-                        order.remove(pid);
-                    }
+            // commitPages may have been done already, by Transaction.commit
+            if (tid == null || !committed.remove(tid)) {
+                try {
+                    commitPages(tid);
+                } catch (TransactionAbortedException e) {
+                    // aborted by validation: its private copies are simply dropped
+                    failed = new IOException("transaction " + tid + " failed validation", e);
                 }
             }
         }
-        else {
-            Set<PageId> key = pool.keySet();
-            Iterator<PageId> it = key.iterator();
-            while (it.hasNext()) {
-                PageId pid = it.next();
-                Page p = pool.get(pid);
-                if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                    DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                    Page oldP = df.readPage(pid);
-                    pool.put(pid, oldP);
+        else if (!isReadOnly(tid)) {
+            rollbackIndexes(tid);
+            for (BufferFrame frame : pool.values()) {
+                Page p = frame.getPage();
+                // undone in place if the page knows what tid changed: other
+                // transactions may have uncommitted changes on it as well
+                if (p.isDirtiedBy(tid) && !p.rollback(tid)) {
+                    Page committed = frame.getCommitted();
+                    if (committed != null) {
+                        // the disk is behind: go back to the committed snapshot
+                        frame.setPage(committed.getBeforeImage());
+                        continue;
+                    }
+                    DbFile df = Database.getCatalog().getDatabaseFile(frame.pid.getTableId());
+                    Page clean = frame.buffer == null ? null : df.readPage(frame.pid, frame.buffer);
+                    frame.setPage(clean != null ? clean : df.readPage(frame.pid));
                 }
             }
         }
         // delete locks info
         locks.deleteLocks(tid);
+        if (occ != null)
+            occ.end(tid);
+        if (versions != null)
+            versions.end(tid);
+        if (tid != null) {
+            readOnly.remove(tid);
+            committed.remove(tid);
+            writes.remove(tid);
+            Set<BTreeFile> files = indexes.remove(tid);
+            if (files != null)
+                for (BTreeFile f : files)
+                    f.forget(tid);
+        }
+        releasePins(tid);
+        if (resident.get() > numPages)
+            shrink(SHRINK_STEP);
+        if (failed != null)
+            throw failed;
+    }
+
+    /**
+     * Note that tid changed a B+ tree, which takes the change back itself
+     * if tid aborts.
+     */
+    void indexChanged(TransactionId tid, BTreeFile file) {
+        indexes.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(file);
+    }
+
+    /**
+     * Take back the changes an aborting transaction made to B+ trees, while
+     * it still holds its locks: by deleting what it inserted and inserting
+     * what it deleted, since the splits and merges it made are committed
+     * already. Called before the abort is logged, and again, with nothing
+     * left to do, when the transaction completes.
+     *
+     * @see BTreeFile#rollback
+     */
+    public void rollbackIndexes(TransactionId tid) throws IOException {
+        Set<BTreeFile> files = tid == null ? null : indexes.remove(tid);
+        if (files != null)
+            for (BTreeFile f : files)
+                f.rollback(tid);
+    }
+
+    /**
+     * Write the pages of a B+ tree split or merge, or of a rollback, whose
+     * changes are logged already (see {@link Page#logsChanges}), without
+     * waiting for the transaction that made them to commit. Each page is
+     * committed for no transaction ({@link Page#markCommitted}), and that
+     * image is written and kept as a version: a leaf less the inserts and
+     * deletes of running transactions, which stays dirty while it holds
+     * any, so neither the disk nor a snapshot sees them. The log is forced
+     * first. The pages are pinned by the caller.
+     */
+    synchronized void writeIndexPages(Collection<Page> pages) throws IOException {
+        long commit = versions == null ? 0 : versions.nextCommit();
+        try {
+            for (Page p : pages) {
+                BufferFrame frame = pool.get(p.getId());
+                if (frame != null && frame.getPage() != p)
+                    frame = null;
+                if (versions != null)
+                    versions.retire(p.getId(), frame != null ? frame.committedVersion() : p.getBeforeImage(), commit);
+                p.markCommitted(null);
+                if (frame != null)
+                    frame.versionChanged();
+            }
+            LogFile log = Database.getLogFile();
+            log.force(log.getCurrentLsn());
+            for (Page p : pages) {
+                BufferFrame frame = pool.get(p.getId());
+                Page image = p.getBeforeImage();
+                if (frame != null && frame.getPage() == p)
+                    frame.write(image);
+                else
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(image);
+            }
+        } finally {
+            if (versions != null)
+                versions.publish(commit);
+        }
     }
 
     /**
@@ -205,12 +1176,17 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (isReadOnly(tid))
+            throw new DbException("read-only transaction " + tid + " cannot insert");
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = file.insertTuple(tid, t);
         for (int i = 0; i < pages.size(); i++) {
-            PageId pid = pages.get(i).getId();
             pages.get(i).markDirty(true, tid);
-            if (!pool.containsKey(pid)) pool.put(pid, pages.get(i));
+            if (occ != null)
+                occ.write(tid, pages.get(i));
+            else
+                installPage(tid, pages.get(i));
+            unpinPage(tid, pages.get(i).getId());
         }
     }
 
@@ -231,11 +1207,15 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (isReadOnly(tid))
+            throw new DbException("read-only transaction " + tid + " cannot delete");
         int id = t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(id);
         ArrayList<Page> pages = file.deleteTuple(tid, t);
-        for (int i = 0; i < pages.size(); i++)
+        for (int i = 0; i < pages.size(); i++) {
             pages.get(i).markDirty(true, tid);
+            unpinPage(tid, pages.get(i).getId());
+        }
     }
 
     /**
@@ -246,14 +1226,274 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Set<PageId> key = pool.keySet();
-        Iterator<PageId> it = key.iterator();
-        while (it.hasNext()) {
-            PageId pid = it.next();
-            Page p = pool.get(pid);
-            if (p.isDirty() != null)
-                flushPage(pid);
+        ArrayList<BufferFrame> frames = new ArrayList<BufferFrame>();
+        ArrayList<Page> images = new ArrayList<Page>();
+        for (BufferFrame frame : pool.values())
+            if (!frame.isClean() || frame.hasPendingWrite()) {
+                frames.add(frame);
+                images.add(frame.getPage().steal());
+            }
+        // one force for all of the pages
+        if (logWriteAhead(images))
+            Database.getLogFile().force();
+        for (int i = 0; i < frames.size(); i++)
+            frames.get(i).write(images.get(i));
+    }
+
+    /**
+     * Write every committed page that is still waiting for write-back.
+     * Unlike flushAllPages this never writes uncommitted data and does not
+     * hold the BufferPool monitor, so transactions keep running meanwhile.
+     */
+    public void flushCommittedPages() throws IOException {
+        for (BufferFrame frame : pool.values())
+            frame.writeBack();
+    }
+
+    /**
+     * Stop the background threads, if any, and write back what the page
+     * cleaner left pending.
+     * Called when this pool is replaced.
+     */
+    public void close() throws IOException {
+        locks.shutdown();
+        if (versions != null)
+            versions.shutdown();
+        if (stateSaver != null)
+            stateSaver.cancel();
+        if (readAhead != null)
+            readAhead.shutdown();
+        if (cleaner != null) {
+            cleaner.shutdown();
+            flushCommittedPages();
+        }
+    }
+
+    /**
+     * Save the resident page list to the file named by
+     * {@value #STATE_FILE_PROPERTY}, if that property is set.
+     */
+    public void saveState() throws IOException {
+        String name = System.getProperty(STATE_FILE_PROPERTY);
+        if (name != null)
+            saveState(new File(name));
+    }
+
+    /**
+     * Save the list of resident pages, with how often each was accessed,
+     * so that a restarted pool can be warmed up with {@link #warmUp}.
+     */
+    public void saveState(File f) throws IOException {
+        List<BufferPoolState.Entry> entries = new ArrayList<>();
+        for (BufferFrame frame : pool.values())
+            entries.add(new BufferPoolState.Entry(frame.pid, frame.accesses));
+        BufferPoolState.save(f, entries);
+    }
+
+    /**
+     * Warm the pool up from the file named by {@value #STATE_FILE_PROPERTY},
+     * if that property is set.
+     *
+     * @return the number of pages loaded
+     */
+    public int warmUp() throws IOException {
+        String name = System.getProperty(STATE_FILE_PROPERTY);
+        return name == null ? 0 : warmUp(new File(name));
+    }
+
+    /**
+     * Load the pages listed by {@link #saveState} into free frames, most
+     * frequently accessed first. Only free frames are used, so nothing
+     * resident is evicted. The pages are read in (table, page number)
+     * order, with one large read per run of consecutive pages. Entries for
+     * tables that are no longer in the catalog are skipped.
+     * <p>
+     * Meant to be called at startup, once the catalog is loaded and
+     * recovery has run, before transactions start: {@link LogFile#recover}
+     * calls {@link #warmUp()} when it is done.
+     *
+     * @return the number of pages loaded
+     */
+    public int warmUp(File f) throws IOException {
+        List<BufferPoolState.Entry> entries = BufferPoolState.load(f);
+        entries.removeIf(e -> !hasTable(e.pid.getTableId()) || pool.containsKey(e.pid));
+        entries.sort((a, b) -> Integer.compare(b.accesses, a.accesses));
+        int room = Math.max(numPages - resident.get(), 0);
+        if (entries.size() > room)
+            entries = new ArrayList<>(entries.subList(0, room));
+        entries.sort((a, b) -> a.pid.getTableId() != b.pid.getTableId()
+                ? Integer.compare(a.pid.getTableId(), b.pid.getTableId())
+                : Integer.compare(a.pid.getPageNumber(), b.pid.getPageNumber()));
+
+        int loaded = 0;
+        for (int start = 0; start < entries.size(); ) {
+            int end = start + 1;
+            while (end < entries.size() && end - start < WARM_UP_BATCH
+                    && entries.get(end).pid.getTableId() == entries.get(start).pid.getTableId()
+                    && entries.get(end).pid.getPageNumber() == entries.get(end - 1).pid.getPageNumber() + 1)
+                end++;
+            loaded += warmUpRun(entries.subList(start, end));
+            start = end;
+        }
+        return loaded;
+    }
+
+    private static boolean hasTable(int tableId) {
+        try {
+            Database.getCatalog().getDatabaseFile(tableId);
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /** Read one run of pages of a table with a single readPages call. */
+    private int warmUpRun(List<BufferPoolState.Entry> run) {
+        int n = 0;
+        while (n < run.size() && tryReserveFree())
+            n++;
+        PageId[] pids = new PageId[n];
+        ByteBuffer[] buffers = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            pids[i] = run.get(i).pid;
+            buffers[i] = arena == null ? null : arena.acquire();
+            if (buffers[i] == null)
+                buffers[i] = ByteBuffer.wrap(new byte[pageSize]);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(run.get(0).pid.getTableId());
+        Page[] pages = n == 0 ? new Page[0] : file.readPages(pids, buffers);
+
+        int loaded = 0;
+        for (int i = 0; i < n; i++) {
+            ByteBuffer arenaFrame = buffers[i].isDirect() ? buffers[i] : null;
+            boolean used = false;
+            synchronized (stripeOf(pids[i])) {
+                if (!pool.containsKey(pids[i])) {
+                    BufferFrame frame = pages[i] != null
+                            ? new BufferFrame(pids[i], pages[i], arenaFrame)
+                            : readFrame(pids[i]);
+                    if (pages[i] != null)
+                        arenaFrame = null;      // now owned by the frame
+                    frame.accesses = run.get(i).accesses;
+                    pool.put(pids[i], frame);
+                    policy.pageLoaded(pids[i]);
+                    used = true;
+                    loaded++;
+                }
+            }
+            if (arenaFrame != null)
+                arena.release(arenaFrame);
+            if (!used)
+                resident.decrementAndGet();
+        }
+        return loaded;
+    }
+
+    /** Reserve a frame only if one is free, never evicting. */
+    private boolean tryReserveFree() {
+        while (true) {
+            int n = resident.get();
+            if (n >= numPages)
+                return false;
+            if (resident.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+
+    /** @return the number of pages the pool is sized for */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the number of frames in use, which may exceed the size */
+    int residentPages() {
+        return resident.get();
+    }
+
+    /** @return the number of pages in the page table */
+    int pageTableSize() {
+        return pool.size();
+    }
+
+    /**
+     * Change the number of pages the pool holds, without disturbing the
+     * pages, locks and pins in it. Growing allocates nothing: frames are
+     * taken as pages are read. Shrinking evicts the clean, unpinned pages
+     * over the new size at once; the remaining excess is evicted a few
+     * pages at a time by later misses and commits, as pages become clean
+     * and unpinned.
+     *
+     * @param newPages the new size, in pages
+     * @throws IllegalArgumentException if newPages is not positive
+     */
+    public void resize(int newPages) {
+        if (newPages <= 0)
+            throw new IllegalArgumentException("pool size must be positive: " + newPages);
+        numPages = newPages;
+        policy.resize(newPages);
+        if (arena != null)
+            arena.setCapacity(newPages);
+        shrink(Integer.MAX_VALUE);
+        if (cleaner != null && resident.get() > numPages)
+            cleaner.wake();
+    }
+
+    /**
+     * Evict up to max clean, unpinned pages while the pool holds more
+     * pages than it is sized for.
+     *
+     * @return the number of pages evicted
+     */
+    int shrink(int max) {
+        int evicted = 0;
+        while (evicted < max && resident.get() > numPages) {
+            PageId pid = policy.chooseVictim(id -> {
+                BufferFrame frame = pool.get(id);
+                return frame != null && frame.isEvictable();
+            });
+            if (pid == null || !evict(pid))
+                break;
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /**
+     * How many more frames the page cleaner should make evictable to reach
+     * the given share of the pool.
+     */
+    int cleanDeficit(double cleanRatio) {
+        int target = (int) Math.ceil(cleanRatio * numPages);
+        int ready = Math.max(numPages - resident.get(), 0);
+        int pending = 0;
+        for (BufferFrame frame : pool.values()) {
+            if (frame.isEvictable())
+                ready++;
+            else if (frame.hasPendingWrite())
+                pending++;
+            if (ready >= target)
+                return 0;
         }
+        return Math.min(target - ready, pending);
+    }
+
+    /**
+     * Write back up to max committed pages, unpinned ones first since those
+     * become evictable.
+     *
+     * @return the number of pages written
+     */
+    int writeBack(int max) throws IOException {
+        int written = 0;
+        for (int pass = 0; pass < 2 && written < max; pass++) {
+            for (BufferFrame frame : pool.values()) {
+                if (written == max)
+                    break;
+                if ((pass == 1 || !frame.isPinned()) && frame.writeBack())
+                    written++;
+            }
+        }
+        return written;
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -264,70 +1504,294 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pool.remove(pid);
-        order.remove(pid);
+        synchronized (stripeOf(pid)) {
+            BufferFrame frame = pool.remove(pid);
+            if (frame != null) {
+                resident.decrementAndGet();
+                policy.pageRemoved(pid);
+                // a pinned page may still be in use: leave its arena frame alone
+                if (frame.detach())
+                    recycle(frame);
+            }
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, logging it first if it is dirty
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page p = pool.get(pid);
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        file.writePage(p);
+        BufferFrame frame = pool.get(pid);
+        if (frame == null)
+            return;
+        Page image = frame.getPage().steal();
+        if (logWriteAhead(Collections.singletonList(image)))
+            Database.getLogFile().force();
+        frame.write(image);
+    }
+
+    /**
+     * Write ahead: log the uncommitted changes about to be written, those
+     * of transactions that log their updates.
+     *
+     * @param images the pages about to be written, as {@link Page#steal}
+     *        returned them
+     * @return true if anything was logged, and the log must be forced
+     *         before the pages are written
+     */
+    private boolean logWriteAhead(Collection<Page> images) throws IOException {
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        for (Page p : images) {
+            TransactionId dirtier = p.isDirty();
+            if (dirtier != null && log.isLogged(dirtier)) {
+                if (!p.logsChanges())
+                    log.logWrite(dirtier, p.getBeforeImage(), p);
+                logged = true;
+            }
+        }
+        return logged;
+    }
+
+    /**
+     * Make the pages of a committing transaction the committed ones. Under
+     * locking, this writes them like {@link #flushPages(TransactionId)}.
+     * Under OCC, the transaction is validated first, and its private copies
+     * are written and installed in the pool if it passes. A read-only
+     * transaction has nothing to write: it is only validated under OCC,
+     * and does not wait for other commits otherwise. Run once per
+     * transaction: {@link #transactionComplete(TransactionId, boolean)}
+     * then only releases what the transaction holds.
+     *
+     * @throws TransactionAbortedException if the transaction failed
+     *         validation; it must then be aborted
+     */
+    public void commitPages(TransactionId tid)
+            throws IOException, TransactionAbortedException {
+        if (isReadOnly(tid)) {
+            if (occ != null) {
+                synchronized (this) {
+                    occ.validate(tid);
+                }
+            }
+            committed.add(tid);
+            return;
+        }
+        synchronized (this) {
+            if (occ != null) {
+                Collection<Page> pages = occ.validate(tid);
+                if (!pages.isEmpty())
+                    installPages(tid, pages);
+            }
+            flushPages(tid);
+        }
+        if (tid != null)
+            committed.add(tid);
+    }
+
+    /**
+     * Write and install the private copies of a validated optimistic
+     * transaction. A copy is installed under the stripe latch of its page,
+     * after it is on disk, so a concurrent miss cannot bring the old
+     * version back into the pool. The copies are logged, and the log
+     * forced, before any of them is written.
+     */
+    private void installPages(TransactionId tid, Collection<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        HashMap<PageId, Page> committed = new HashMap<PageId, Page>();
+        for (Page p : pages) {
+            PageId pid = p.getId();
+            BufferFrame old = pool.get(pid);
+            committed.put(pid, old != null ? old.getPage().getBeforeImage()
+                    : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+            if (log.isLogged(tid))
+                log.logWrite(tid, committed.get(pid), p);
+        }
+        if (log.isLogged(tid))
+            log.force();
+
+        long commit = occ.nextCommit();
+        long snapshotCommit = versions == null ? 0 : versions.nextCommit();
+        try {
+            for (Page p : pages) {
+                PageId pid = p.getId();
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (versions != null)
+                    versions.retire(pid, committed.get(pid), snapshotCommit);
+                file.writePage(p);
+                p.setBeforeImage();
+                p.markDirty(false, null);
+                synchronized (stripeOf(pid)) {
+                    BufferFrame frame = pool.get(pid);
+                    if (frame != null)
+                        frame.setPage(p);
+                }
+                occ.installed(pid, commit);
+            }
+        } finally {
+            if (versions != null)
+                versions.publish(snapshotCommit);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * The written versions become the committed ones. With snapshots on,
+     * the versions they replace are kept first, and the commit is
+     * published to new snapshots once all of its pages are installed.
+     * The pages are logged, and the log forced, before they are written.
+     * If a write fails, the commit is never published, so snapshots keep
+     * reading the versions it replaced; the transaction must then abort,
+     * which undoes the pages already written from the log.
+     * <p>
+     * In write-back mode the pages are logged instead and the log is
+     * forced; each page keeps a snapshot of the committed version for the
+     * page cleaner to write later.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> key = pool.keySet();
-        Iterator<PageId> it = key.iterator();
-        while (it.hasNext()) {
-            PageId pid = it.next();
-            Page p = pool.get(pid);
-            if (tid.equals(p.isDirty())) {
-                flushPage(pid);
-                p.markDirty(false, null);
+        long commit = versions == null ? 0 : versions.nextCommit();
+        if (cleaner != null)
+            logPages(tid, commit);
+        else
+            writePages(tid, commit);
+        if (versions != null)
+            versions.publish(commit);
+    }
+
+    private void writePages(TransactionId tid, long commit) throws IOException {
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        ArrayList<BufferFrame> frames = new ArrayList<BufferFrame>();
+        ArrayList<Page> images = new ArrayList<Page>();
+        for (BufferFrame frame : pool.values()) {
+            Page p = frame.getPage();
+            if (p.isDirtiedBy(tid)) {
+                Page image = p.committedImage(tid);
+                if (log.isLogged(tid)) {
+                    if (!p.logsChanges())
+                        log.logWrite(tid, p.getBeforeImage(), image);
+                    logged = true;
+                }
+                frames.add(frame);
+                images.add(image);
+            }
+        }
+        if (logged)
+            log.force();
+        for (int i = 0; i < frames.size(); i++) {
+            BufferFrame frame = frames.get(i);
+            Page p = frame.getPage();
+            if (versions != null)
+                versions.retire(frame.pid, frame.committedVersion(), commit);
+            frame.write(images.get(i));
+            p.markCommitted(tid);
+            frame.versionChanged();
+        }
+    }
+
+    private void logPages(TransactionId tid, long commit) throws IOException {
+        LogFile log = Database.getLogFile();
+        boolean logged = false;
+        for (BufferFrame frame : pool.values()) {
+            Page p = frame.getPage();
+            if (p.isDirtiedBy(tid)) {
+                boolean pinned = frame.pin();
+                Page before = versions != null ? frame.committedVersion() : p.getBeforeImage();
+                if (versions != null)
+                    versions.retire(frame.pid, before, commit);
+                Page image = p.committedImage(tid);
+                if (!p.logsChanges() || !log.isLogged(tid))
+                    log.logWrite(tid, before, image);
+                // pinned meanwhile: the frame must never look evictable
+                // while the change exists only in memory
+                p.markCommitted(tid);
+                frame.versionChanged();
+                frame.setCommitted(image != p ? image : p.getBeforeImage());
+                if (pinned)
+                    frame.unpin(1);
+                logged = true;
             }
         }
+        if (logged)
+            log.force();
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean,
+     * unpinned pages, so a dirty page of a running transaction is never
+     * written out and a page an operator is still using is never dropped.
+     * The victim is retired under its stripe latch; if it was pinned or
+     * dirtied in the meantime nothing is evicted and the caller retries.
+     * In write-back mode, if only committed pages that are not yet written
+     * are left, one of them is written here, then evicted, and the page
+     * cleaner is woken.
+     *
+     * @return true only if a page was dropped; false if none could be,
+     *         because all clean pages are pinned or a race was lost
+     * @throws DbException if all pages are dirty
      */
-    private synchronized  void evictPage() throws DbException {
+    private boolean evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        boolean f = false;
-        PageId pid = null;
-        try {
-            while (true) {
-                for (int i = 0; i < order.size(); i++) {
-                    pid = order.get(i);
-                    Page p = pool.get(pid);
-                    if (p.isDirty() != null) continue;
-                    f = true;
-                    break;
-                }
-                if (!f) break;
-                Page p = pool.get(pid);
-                if (p.isDirty() != null)
-                    flushPage(pid);
-                discardPage(pid);
-                break;
+        // one sweep: besides the victim, note what else was seen on the way
+        PageId[] unwritten = new PageId[1];
+        boolean[] clean = new boolean[1];
+        PageId pid = policy.chooseVictim(id -> {
+            BufferFrame frame = pool.get(id);
+            if (frame == null)
+                return false;
+            if (frame.isEvictable())
+                return true;
+            if (cleaner != null && unwritten[0] == null && !frame.isPinned() && frame.hasPendingWrite())
+                unwritten[0] = id;
+            if (frame.isClean())
+                clean[0] = true;
+            return false;
+        });
+        if (pid == null && unwritten[0] != null) {
+            cleaner.wake();
+            BufferFrame frame = pool.get(unwritten[0]);
+            try {
+                if (frame != null)
+                    frame.writeBack();
+            } catch (IOException e) {
+                throw new DbException("could not write back page: " + e.getMessage());
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return frame != null && evict(unwritten[0]);
+        }
+        if (pid == null) {
+            // a page hit during the sweep may not have been looked at
+            if (!clean[0] && pool.values().stream().noneMatch(BufferFrame::isClean))
+                throw new DbException("All pages are dirty.");
+            return false;
+        }
+        return evict(pid);
+    }
+
+    /**
+     * Retire and drop a page under its stripe latch.
+     *
+     * @return false if it was pinned, dirtied or dropped in the meantime
+     */
+    private boolean evict(PageId pid) {
+        synchronized (stripeOf(pid)) {
+            BufferFrame frame = pool.get(pid);
+            if (frame == null || !frame.retire())
+                return false;
+            pool.remove(pid);
+            resident.decrementAndGet();
+            policy.pageRemoved(pid);
+            recycle(frame);
+            return true;
         }
-        if (!f) throw new DbException("All pages are dirty.");
     }
 }
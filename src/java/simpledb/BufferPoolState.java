@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+/**
+ * The list of pages resident in a BufferPool, with how often each was
+ * accessed, as saved at shutdown (and optionally at intervals) and read
+ * back to warm the pool up after a restart.
+ * <p>
+ * The file holds an entry count followed by, for each page, the PageId
+ * class name, the serialized PageId (see {@link PageId#serialize()}) and
+ * the access count. Entries whose PageId cannot be rebuilt are skipped on
+ * load, so a stale file does no harm.
+ *
+ * @see BufferPool#saveState(File)
+ * @see BufferPool#warmUp(File)
+ */
+public class BufferPoolState {
+
+    /** One saved page. */
+    public static class Entry {
+        public final PageId pid;
+        public final int accesses;
+
+        public Entry(PageId pid, int accesses) {
+            this.pid = pid;
+            this.accesses = accesses;
+        }
+    }
+
+    private BufferPoolState() {
+    }
+
+    /**
+     * Write the entries to a file. The file is replaced atomically, so a
+     * crash while saving leaves the previous state in place.
+     */
+    public static void save(File f, List<Entry> entries) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                int[] id = e.pid.serialize();
+                out.writeUTF(e.pid.getClass().getName());
+                out.writeInt(id.length);
+                for (int v : id)
+                    out.writeInt(v);
+                out.writeInt(e.accesses);
+            }
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("cannot replace " + f);
+        }
+    }
+
+    /**
+     * Read the entries saved in a file.
+     *
+     * @return the entries, or an empty list if the file does not exist
+     */
+    public static List<Entry> load(File f) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!f.exists())
+            return entries;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String idClass = in.readUTF();
+                int[] id = new int[in.readInt()];
+                for (int j = 0; j < id.length; j++)
+                    id[j] = in.readInt();
+                int accesses = in.readInt();
+                PageId pid = rebuild(idClass, id);
+                if (pid != null)
+                    entries.add(new Entry(pid, accesses));
+            }
+        }
+        return entries;
+    }
+
+    /** Rebuild a PageId from its class and serialized form, or return null. */
+    private static PageId rebuild(String idClass, int[] id) {
+        try {
+            for (Constructor<?> c : Class.forName(idClass).getConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length != id.length)
+                    continue;
+                boolean ints = true;
+                for (Class<?> p : params)
+                    ints &= p == int.class;
+                if (!ints)
+                    continue;
+                Object[] args = new Object[id.length];
+                for (int j = 0; j < id.length; j++)
+                    args[j] = id[j];
+                return (PageId) c.newInstance(args);
+            }
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            // not a page id we know how to build
+        }
+        return null;
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bulk-read access strategy: a small private ring of frames that a large
+ * sequential scan recycles instead of competing for the whole pool. Pages
+ * the scan reads from disk are remembered in FIFO order, and once the ring
+ * is full each new read reuses the frame of the oldest one, provided nobody
+ * else has pinned or dirtied it meanwhile. Pages the scan finds already
+ * resident are used in place and stay where they are, so a report over a
+ * big table leaves the hot pages of everybody else alone.
+ * <p>
+ * HeapFile iterators use a ring when the table is larger than
+ * {@value #THRESHOLD_PROPERTY} (default {@value #DEFAULT_THRESHOLD}) times
+ * the pool; the ring holds {@value #SIZE_PROPERTY} pages (default
+ * {@value #DEFAULT_SIZE}), at most an eighth of the pool.
+ *
+ * @see BufferPool#scanRing(int)
+ */
+public class BufferRing {
+
+    /** System property: fraction of the pool above which scans use a ring. */
+    public static final String THRESHOLD_PROPERTY = "simpledb.bufferpool.ringthreshold";
+    /** System property: number of frames in a ring. */
+    public static final String SIZE_PROPERTY = "simpledb.bufferpool.ringsize";
+
+    static final double DEFAULT_THRESHOLD = 0.75;
+    static final int DEFAULT_SIZE = 32;
+
+    private final int capacity;
+    private final ArrayDeque<PageId> pages;
+
+    /**
+     * @param capacity number of frames the ring may occupy
+     */
+    public BufferRing(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.pages = new ArrayDeque<>(this.capacity);
+    }
+
+    /** @return the number of frames the ring may occupy */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the oldest page of a full ring, whose frame the next read
+     *         should reuse, or null if the ring still has room
+     */
+    synchronized PageId nextVictim() {
+        return pages.size() >= capacity ? pages.poll() : null;
+    }
+
+    /** Remember a page that was read into the ring. */
+    synchronized void add(PageId pid) {
+        pages.add(pid);
+    }
+}
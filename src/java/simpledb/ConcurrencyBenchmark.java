@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares two-phase locking with optimistic concurrency control (see
+ * {@link BufferPool#CONCURRENCY_PROPERTY}) on a small OLTP workload. Each
+ * thread runs transactions that read a few pages of its own part of a
+ * table and update one tuple; a given percentage of the transactions
+ * update a page all threads share instead. Aborted transactions are
+ * retried. Run it as
+ * <pre>
+ * java -jar dist/simpledb.jar benchmark [threads [transactions [hot%]]]
+ * </pre>
+ */
+public class ConcurrencyBenchmark {
+
+    static final int PAGES_PER_THREAD = 16;
+    static final int READS_PER_TRANSACTION = 4;
+
+    private final int threads;
+    private final int transactions;     // per thread
+    private final int hotPercent;
+
+    /**
+     * @param threads number of concurrent clients
+     * @param transactions transactions each client commits
+     * @param hotPercent percentage of transactions that update the shared page
+     */
+    public ConcurrencyBenchmark(int threads, int transactions, int hotPercent) {
+        this.threads = threads;
+        this.transactions = transactions;
+        this.hotPercent = hotPercent;
+    }
+
+    /** Write a table of full pages, PAGES_PER_THREAD for every thread. */
+    private File createTable() throws IOException {
+        int perPage = (BufferPool.getPageSize() * 8) / (Type.INT_TYPE.getLen() * 2 * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < perPage * PAGES_PER_THREAD * threads; i++) {
+            ArrayList<Integer> t = new ArrayList<>();
+            t.add(i);
+            t.add(0);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        return f;
+    }
+
+    /**
+     * Run the workload with the given concurrency control on a fresh
+     * database.
+     *
+     * @param mode "2pl" or "occ"
+     * @return a one-line summary
+     */
+    public String run(String mode, File data) throws Exception {
+        System.setProperty(BufferPool.CONCURRENCY_PROPERTY, mode);
+        Database.reset();
+        Database.resetBufferPool(PAGES_PER_THREAD * threads + 16);
+        HeapFile table = Utility.openHeapFile(2, data);
+        AtomicInteger aborts = new AtomicInteger();
+        Thread[] clients = new Thread[threads];
+        Exception[] failure = new Exception[1];
+        long start = System.nanoTime();
+        for (int c = 0; c < threads; c++) {
+            int first = c * PAGES_PER_THREAD;
+            clients[c] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < transactions; i++)
+                        while (!runTransaction(table, first))
+                            aborts.incrementAndGet();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread t : clients)
+            t.join();
+        if (failure[0] != null)
+            throw failure[0];
+        long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+        int commits = threads * transactions;
+        return String.format("%-4s %d commits in %d ms (%d/s), %d aborts",
+                mode, commits, millis, commits * 1000L / millis, aborts.get());
+    }
+
+    /**
+     * One transaction: read some pages of the client's part of the table,
+     * then rewrite the first tuple of one page.
+     *
+     * @return false if it was aborted
+     */
+    private boolean runTransaction(HeapFile table, int firstPage) throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            for (int i = 0; i < READS_PER_TRANSACTION; i++) {
+                PageId pid = new HeapPageId(table.getId(), firstPage + rnd.nextInt(PAGES_PER_THREAD));
+                HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+                p.iterator().next();
+                bp.unpinPage(t.getId(), pid);
+            }
+            int pgNo = rnd.nextInt(100) < hotPercent ? 0 : firstPage + rnd.nextInt(PAGES_PER_THREAD);
+            PageId pid = new HeapPageId(table.getId(), pgNo);
+            HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            Iterator<Tuple> it = p.iterator();
+            Tuple old = it.next();
+            Tuple updated = new Tuple(old.getTupleDesc());
+            updated.setField(0, old.getField(0));
+            updated.setField(1, new IntField(((IntField) old.getField(1)).getValue() + 1));
+            p.deleteTuple(old);
+            p.insertTuple(updated);
+            p.markDirty(true, t.getId());
+            bp.unpinPage(t.getId(), pid);
+            t.commit();
+            return true;
+        } catch (TransactionAbortedException e) {
+            t.transactionComplete(true);
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int hot = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        ConcurrencyBenchmark bench = new ConcurrencyBenchmark(threads, transactions, hot);
+        File data = bench.createTable();
+        System.out.println(threads + " threads, " + transactions + " transactions each, "
+                + hot + "% on the shared page");
+        String old = System.getProperty(BufferPool.CONCURRENCY_PROPERTY);
+        try {
+            for (String mode : new String[] { "2pl", "occ" })
+                System.out.println(bench.run(mode, data));
+        } finally {
+            if (old == null)
+                System.clearProperty(BufferPool.CONCURRENCY_PROPERTY);
+            else
+                System.setProperty(BufferPool.CONCURRENCY_PROPERTY, old);
+            Database.reset();
+        }
+    }
+}
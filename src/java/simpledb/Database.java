@@ -20,6 +20,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final TransactionScheduler _scheduler;
 
     private Database() {
         _catalog = new Catalog();
@@ -32,6 +33,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _scheduler = TransactionScheduler.fromProperties();
         // startControllerThread();
     }
 
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the transaction scheduler of the static Database instance */
+    public static TransactionScheduler getTransactionScheduler() {
+        return _instance.get()._scheduler;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -59,6 +66,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            closeBufferPool(_instance.get()._bufferpool);
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,7 +83,17 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        closeBufferPool(_instance.get()._bufferpool);
         _instance.set(new Database());
     }
 
+    // a replaced pool must not keep committed pages only in memory
+    private static void closeBufferPool(BufferPool pool) {
+        try {
+            pool.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
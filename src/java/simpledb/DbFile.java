@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -19,6 +20,36 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into a page-sized frame supplied by
+     * the buffer pool. The returned page keeps using the frame, so the page
+     * does not need memory of its own. Files that cannot do this return null
+     * and are read with {@link #readPage(PageId)} instead.
+     *
+     * @param frame the buffer to read the page into
+     * @return the page, or null if the file does not support reading into a frame
+     */
+    public default Page readPage(PageId id, ByteBuffer frame) {
+        return null;
+    }
+
+    /**
+     * Read several pages, each into its own frame, as
+     * {@link #readPage(PageId, ByteBuffer)} does for one page. Files that
+     * store pages contiguously can read a run of pages with one large read.
+     *
+     * @param ids the pages to read
+     * @param frames one page-sized buffer per page
+     * @return the pages in the same order; an entry is null if that page
+     *         could not be read into its frame
+     */
+    public default Page[] readPages(PageId[] ids, ByteBuffer[] frames) {
+        Page[] pages = new Page[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            pages[i] = readPage(ids[i], frames[i]);
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -36,7 +67,9 @@ public interface DbFile {
      * @param tid The transaction performing the update
      * @param t The tuple to add.  This tuple should be updated to reflect that
      *          it is now stored in this file.
-     * @return An ArrayList contain the pages that were modified
+     * @return An ArrayList contain the pages that were modified. Pages that
+     *         came from the buffer pool are still pinned for tid; the caller
+     *         unpins them after marking them dirty.
      * @throws DbException if the tuple cannot be added
      * @throws IOException if the needed file can't be read/written
      */
@@ -52,7 +85,9 @@ public interface DbFile {
      * @param tid The transaction performing the update
      * @param t The tuple to delete.  This tuple should be updated to reflect that
      *          it is no longer stored on any page.
-     * @return An ArrayList contain the pages that were modified
+     * @return An ArrayList contain the pages that were modified. Pages that
+     *         came from the buffer pool are still pinned for tid; the caller
+     *         unpins them after marking them dirty.
      * @throws DbException if the tuple cannot be deleted or is not a member
      *   of the file
      */
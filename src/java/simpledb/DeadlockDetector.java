@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Background deadlock detector for a {@link Lock} table. Every
+ * {@value #INTERVAL_PROPERTY} milliseconds (default
+ * {@value #DEFAULT_INTERVAL}) it takes a snapshot of the waits-for graph,
+ * which the lock table keeps up to date as requests queue and locks change
+ * hands, and searches it for cycles. One transaction of each cycle, chosen
+ * by the {@link VictimPolicy} named by {@value VictimPolicy#POLICY_PROPERTY},
+ * is aborted: its waiting thread gets TransactionAbortedException.
+ * <p>
+ * A deadlock is thus broken within one interval, and a lock request that
+ * has to wait costs nothing more than queueing.
+ *
+ * @see Lock
+ */
+public class DeadlockDetector extends Thread {
+
+    /** System property with the time between searches, in milliseconds. */
+    public static final String INTERVAL_PROPERTY = "simpledb.lock.detectinterval";
+
+    static final long DEFAULT_INTERVAL = 50;
+
+    private final Lock locks;
+    private final VictimPolicy policy;
+    private final long intervalMillis;
+    private volatile boolean stopped;
+
+    /**
+     * @param locks the lock table to watch
+     * @param policy picks the transaction to abort in a cycle
+     * @param intervalMillis time between searches
+     */
+    public DeadlockDetector(Lock locks, VictimPolicy policy, long intervalMillis) {
+        super("simpledb-deadlock-detector");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("bad deadlock detector interval");
+        this.locks = locks;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    /**
+     * Create a detector configured from the system properties.
+     */
+    static DeadlockDetector fromProperties(Lock locks) {
+        return new DeadlockDetector(locks,
+                VictimPolicy.forName(System.getProperty(VictimPolicy.POLICY_PROPERTY)),
+                Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+    }
+
+    /** Stop the detector. */
+    public void shutdown() {
+        stopped = true;
+        interrupt();
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                detect();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Search the waits-for graph once and abort a victim in every cycle.
+     *
+     * @return the number of transactions aborted
+     */
+    int detect() {
+        Map<TransactionId, List<TransactionId>> graph = locks.waitsForGraph();
+        int aborted = 0;
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = policy.chooseVictim(cycle, locks);
+            if (locks.abortWaiter(victim))
+                aborted++;
+            graph.remove(victim);
+        }
+        return aborted;
+    }
+
+    /**
+     * Depth-first search for a cycle.
+     *
+     * @return the transactions of a cycle, or null if the graph has none
+     */
+    static List<TransactionId> findCycle(Map<TransactionId, List<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start))
+                continue;
+            // path from start, with the next edge to try of each node on it
+            List<TransactionId> path = new ArrayList<>();
+            List<Iterator<TransactionId>> edges = new ArrayList<>();
+            Map<TransactionId, Integer> onPath = new HashMap<>();
+            path.add(start);
+            edges.add(graph.get(start).iterator());
+            onPath.put(start, 0);
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.get(edges.size() - 1);
+                if (!it.hasNext()) {
+                    TransactionId t = path.remove(path.size() - 1);
+                    edges.remove(edges.size() - 1);
+                    onPath.remove(t);
+                    done.add(t);
+                    continue;
+                }
+                TransactionId next = it.next();
+                Integer at = onPath.get(next);
+                if (at != null)
+                    return new ArrayList<>(path.subList(at, path.size()));
+                List<TransactionId> out = graph.get(next);
+                if (out == null || done.contains(next))
+                    continue;
+                onPath.put(next, path.size());
+                path.add(next);
+                edges.add(out.iterator());
+            }
+        }
+        return null;
+    }
+}
@@ -43,6 +43,7 @@ public class Delete extends Operator {
         // some code goes here
         mark = 0;
         super.open();
+        declareWrites(it);
         it.open();
         while (it.hasNext()) {
             Tuple t = it.next();
@@ -56,6 +57,21 @@ public class Delete extends Operator {
         }
     }
 
+    /**
+     * Declare that tid writes the tables the tuples to delete come from,
+     * those scanned below op through operators with one child, so that
+     * their scans lock them for writing up front.
+     */
+    private void declareWrites(OpIterator op) {
+        if (op instanceof SeqScan)
+            Database.getBufferPool().declareWrite(tid, ((SeqScan)op).getTableId());
+        else if (op instanceof Operator) {
+            OpIterator[] children = ((Operator)op).getChildren();
+            if (children != null && children.length == 1)
+                declareWrites(children[0]);
+        }
+    }
+
     public void close() {
         // some code goes here
         it.close();
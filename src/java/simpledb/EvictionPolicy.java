@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame. The BufferPool reports every page that enters, is hit
+ * in, or leaves the pool; the policy only ever hands back candidates, the
+ * BufferPool does the actual flushing and discarding.
+ * <p>
+ * Implementations must keep all four operations O(1) amortized, since they
+ * sit on the page fault path.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** System property used to pick the policy of a new BufferPool. */
+    String POLICY_PROPERTY = "simpledb.bufferpool.policy";
+
+    /** Name of the default policy. */
+    String DEFAULT_POLICY = "clock";
+
+    /**
+     * A page was read into the pool.
+     *
+     * @param pid the id of the page that became resident
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * A resident page was requested again.
+     *
+     * @param pid the id of the page that was hit
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * A page left the pool, either because it was evicted or because it was
+     * discarded. Unknown page ids are ignored.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The page is not removed
+     * from the policy; the BufferPool calls {@link #pageRemoved} once it has
+     * actually dropped it.
+     *
+     * @param evictable tells whether a candidate may be evicted right now
+     *                  (e.g. it is clean and not pinned); it sees each
+     *                  candidate looked at, so the caller may take note of
+     *                  the others on the way
+     * @return the victim, or null if no resident page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * The pool was resized. Policies that size internal structures from
+     * the number of frames adjust them; the default does nothing.
+     *
+     * @param numPages the new number of frames in the pool
+     */
+    default void resize(int numPages) {
+    }
+
+    /**
+     * Create a policy by name.
+     *
+     * @param name "clock" or "2q"
+     * @param numPages expected number of resident pages
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static EvictionPolicy forName(String name, int numPages) {
+        if (name == null || name.equalsIgnoreCase(DEFAULT_POLICY))
+            return new ClockEvictionPolicy(numPages);
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQueueEvictionPolicy(numPages);
+        throw new IllegalArgumentException("Unknown eviction policy: " + name);
+    }
+}
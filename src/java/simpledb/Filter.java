@@ -79,12 +79,13 @@ public class Filter extends Operator {
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return null;
+        return new OpIterator[]{it};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
+        it = children[0];
     }
 
 }
@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of page-sized frames carved out of direct (off-heap) memory.
+ * The BufferPool allocates the arena once, reads pages into its frames in
+ * place and hands a frame back when its page is evicted, so the Java heap
+ * does not grow with the size of the pool and the garbage collector never
+ * has to trace page contents.
+ * <p>
+ * The arena is optional: it is enabled by setting the
+ * {@value #OFF_HEAP_PROPERTY} system property to true. When every frame is
+ * in use (the pool may briefly hold more pages than it was sized for),
+ * {@link #acquire()} returns null and the page is read onto the heap.
+ * The capacity can be changed with {@link #setCapacity} when the pool is
+ * resized.
+ * <p>
+ * Frames are carved out of small chunks so that shrinking can give memory
+ * back: it retires whole chunks, and once every frame of a retired chunk
+ * has been dropped nothing refers to the chunk and its memory is freed.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** System property that turns the arena on. */
+    public static final String OFF_HEAP_PROPERTY = "simpledb.bufferpool.offheap";
+
+    /** Frames per direct allocation; also the unit in which memory is freed. */
+    static final int CHUNK_FRAMES = 64;
+
+    /** One direct allocation. Only its frames refer to its memory. */
+    private static class Chunk {
+        final int frames;
+        volatile boolean retired;   // set by a shrink; its frames are dropped
+
+        Chunk(int frames) {
+            this.frames = frames;
+        }
+    }
+
+    private final int frameSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+    private final AtomicInteger numFree;    // frames of live chunks in free
+    private final AtomicInteger allocated;  // frames of live chunks
+    private final Deque<Chunk> chunks;      // live chunks, oldest first
+    private final Map<ByteBuffer, Chunk> chunkOf;   // frame -> its chunk
+    private volatile int capacity;          // frames the arena may hold
+
+    /**
+     * @param numFrames number of frames to allocate
+     * @param frameSize size of each frame in bytes, normally the page size
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.numFree = new AtomicInteger(0);
+        this.allocated = new AtomicInteger(0);
+        this.chunks = new ArrayDeque<>();
+        this.chunkOf = Collections.synchronizedMap(new IdentityHashMap<>());
+        this.capacity = numFrames;
+        allocate(numFrames);
+    }
+
+    /** Allocate up to n new frames, within the capacity, onto the free list. */
+    private synchronized void allocate(int n) {
+        n = Math.min(n, capacity - allocated.get());
+        while (n > 0) {
+            int k = Math.min(CHUNK_FRAMES, n);
+            Chunk chunk = new Chunk(k);
+            ByteBuffer memory = ByteBuffer.allocateDirect(k * frameSize);
+            for (int i = 0; i < k; i++) {
+                memory.limit((i + 1) * frameSize).position(i * frameSize);
+                ByteBuffer frame = memory.slice();
+                chunkOf.put(frame, chunk);
+                free.add(frame);
+            }
+            chunks.addLast(chunk);
+            allocated.addAndGet(k);
+            numFree.addAndGet(k);
+            n -= k;
+        }
+    }
+
+    /** Forget a frame of a retired chunk. */
+    private void drop(ByteBuffer frame) {
+        chunkOf.remove(frame);
+    }
+
+    /** @return the size of each frame in bytes */
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of frames not currently holding a page */
+    public int available() {
+        return numFree.get();
+    }
+
+    /** @return the number of frames allocated and not retired */
+    int allocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Change the number of frames the arena may hold. Growing allocates
+     * nothing up front: new frames are allocated when {@link #acquire()}
+     * runs out. Shrinking retires the newest chunks until the arena fits;
+     * their free frames are dropped now and the rest as they are released.
+     */
+    public void setCapacity(int numFrames) {
+        synchronized (this) {
+            capacity = numFrames;
+            while (allocated.get() > capacity && !chunks.isEmpty()) {
+                Chunk chunk = chunks.pollLast();
+                chunk.retired = true;
+                allocated.addAndGet(-chunk.frames);
+            }
+        }
+        // drop the retired chunks' free frames, putting the others back
+        for (int n = free.size(); n > 0; n--) {
+            ByteBuffer frame = free.poll();
+            if (frame == null)
+                break;
+            Chunk chunk = chunkOf.get(frame);
+            if (chunk == null || chunk.retired) {
+                numFree.decrementAndGet();
+                drop(frame);
+            } else {
+                free.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Take a free frame.
+     *
+     * @return a cleared frame, or null if all frames are in use
+     */
+    public ByteBuffer acquire() {
+        while (true) {
+            ByteBuffer frame = free.poll();
+            if (frame == null) {
+                allocate(CHUNK_FRAMES);
+                frame = free.poll();
+                if (frame == null)
+                    return null;
+            }
+            numFree.decrementAndGet();
+            Chunk chunk = chunkOf.get(frame);
+            if (chunk == null || chunk.retired) {
+                drop(frame);    // raced with a shrink
+                continue;
+            }
+            frame.clear();
+            return frame;
+        }
+    }
+
+    /**
+     * Give a frame back. The page that lived in it must no longer be used.
+     */
+    public void release(ByteBuffer frame) {
+        Chunk chunk = chunkOf.get(frame);
+        if (chunk == null || chunk.retired) {
+            drop(frame);        // its chunk was retired by a shrink
+            return;
+        }
+        free.offer(frame);
+        numFree.incrementAndGet();
+    }
+}
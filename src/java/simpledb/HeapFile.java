@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -9,6 +12,14 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A scan locks the whole table S instead of locking each page, or SIX if
+ * its transaction has declared that it writes the table
+ * ({@link BufferPool#declareWrite}), so that it need not convert the lock
+ * at its first write. Inserts and deletes lock the table
+ * and the page IX and the tuple X, so transactions writing different
+ * tuples of a page do not wait for each other; only adding a page to the
+ * file locks that page X.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -23,15 +34,20 @@ public class HeapFile implements DbFile {
         private TransactionId tid;
         private int curPage;
         private Iterator<Tuple> it;
+        private BufferRing ring;    // private frames for a big scan, or null
 
         public HeapFileIterator(TransactionId tid) {
             this.tid = tid;
         }
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            close();
+            // one table lock covers every page the scan reads
+            Database.getBufferPool().lockScan(tid, getId());
             curPage = 0;
+            ring = Database.getBufferPool().scanRing(numPages());
             HeapPageId pid = new HeapPageId(getId(), curPage);
-            HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
             it = hp.iterator();
         }
 
@@ -42,9 +58,11 @@ public class HeapFile implements DbFile {
             if (it.hasNext())
                 return true;
             if (curPage + 1 < f.length() / BufferPool.getPageSize()) {
+                // done with this page, let the buffer pool evict it again
+                Database.getBufferPool().unpinPage(tid, new HeapPageId(getId(), curPage));
                 curPage++;
                 HeapPageId pid = new HeapPageId(getId(), curPage);
-                HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
                 it = hp.iterator();
                 return it.hasNext();
             }
@@ -66,6 +84,8 @@ public class HeapFile implements DbFile {
 
         @Override
         public void close() {
+            if (it != null)
+                Database.getBufferPool().unpinPage(tid, new HeapPageId(getId(), curPage));
             curPage = 0;
             it = null;
         }
@@ -122,21 +142,69 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        if (f == null)
+        return readPage(pid, ByteBuffer.wrap(new byte[BufferPool.getPageSize()]));
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        if (f == null || frame.capacity() != BufferPool.getPageSize())
             return null;
         Page p = null;
-        byte[] data = new byte[BufferPool.getPageSize()];
-        try {
-            RandomAccessFile raf = new RandomAccessFile(f, "r");
-            raf.seek(pid.getPageNumber() * BufferPool.getPageSize());
-            raf.read(data, 0, data.length);
-            p = new HeapPage((HeapPageId)pid, data);
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long offset = (long)pid.getPageNumber() * BufferPool.getPageSize();
+            frame.clear();
+            while (frame.hasRemaining() && ch.read(frame, offset + frame.position()) >= 0)
+                ;
+            // past the end of the file the page reads as empty
+            while (frame.hasRemaining())
+                frame.put((byte)0);
+            frame.clear();
+            p = new HeapPage((HeapPageId)pid, frame);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return p;
     }
 
+    /**
+     * Reads a run of consecutive pages with a single positional read;
+     * anything else is read page by page.
+     */
+    public Page[] readPages(PageId[] pids, ByteBuffer[] frames) {
+        int n = pids.length;
+        boolean run = f != null && n > 0;
+        for (int i = 0; run && i < n; i++)
+            run = pids[i] instanceof HeapPageId && pids[i].getTableId() == getId()
+                    && pids[i].getPageNumber() == pids[0].getPageNumber() + i
+                    && frames[i].capacity() == BufferPool.getPageSize();
+        if (!run)
+            return DbFile.super.readPages(pids, frames);
+
+        Page[] pages = new Page[n];
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            for (ByteBuffer frame : frames)
+                frame.clear();
+            ch.position((long)pids[0].getPageNumber() * BufferPool.getPageSize());
+            long want = (long)n * BufferPool.getPageSize();
+            for (long got = 0; got < want; ) {
+                long r = ch.read(frames);
+                if (r < 0)
+                    break;
+                got += r;
+            }
+            for (int i = 0; i < n; i++) {
+                // past the end of the file the page reads as empty
+                while (frames[i].hasRemaining())
+                    frames[i].put((byte)0);
+                frames[i].clear();
+                pages[i] = new HeapPage((HeapPageId)pids[i], frames[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -164,23 +232,33 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> pages = new ArrayList<>();
-        for (int i = 0; i < maxPage; i++) {
+        int n = numPages();
+        for (int i = 0; i < n; i++) {
             HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (hp.getNumEmptySlots() != 0) {
-                hp.insertTuple(t);
+            HeapPage hp = (HeapPage)bp.getPage(tid, pid, LockMode.IX);
+            // a slot is only taken if its tuple can be locked X at once
+            if (hp.getNumEmptySlots() != 0
+                    && hp.insertTuple(tid, t, slot -> bp.tryLockTuple(tid, new RecordId(pid, slot)))) {
                 hp.markDirty(true, tid);
                 pages.add(hp);
                 break;
             }
+            // no slot for us: only the one we modify stays pinned for the caller
+            bp.unpinPage(tid, pid);
         }
         if (pages.size() == 0) {
-            HeapPageId pid = new HeapPageId(getId(), maxPage++);
-            HeapPage hp = new HeapPage(pid, HeapPage.createEmptyPageData());
-            writePage(hp);
-            hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            hp.insertTuple(t);
+            HeapPageId pid;
+            synchronized (this) {
+                // written before it is locked, so the next insert finds the file grown
+                pid = new HeapPageId(getId(), numPages());
+                writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+                maxPage = pid.getPageNumber() + 1;
+            }
+            HeapPage hp = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
+            if (!hp.insertTuple(tid, t, slot -> true))
+                throw new DbException("no room for the tuple on a new page");
             hp.markDirty(true, tid);
             pages.add(hp);
         }
@@ -192,12 +270,19 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> pages = new ArrayList<>();
         PageId pid = t.getRecordId().getPageId();
         for (int i = 0; i < maxPage; i++) {
             if (i == pid.getPageNumber()) {
-                HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                hp.deleteTuple(t);
+                bp.lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+                HeapPage hp = (HeapPage)bp.getPage(tid, pid, LockMode.IX);
+                if (!hp.deleteTuple(tid, t)) {
+                    // another writer's changes are on disk: wait for it under page X
+                    bp.unpinPage(tid, pid);
+                    hp = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
+                    hp.deleteTuple(tid, t);
+                }
                 hp.markDirty(true, tid);
                 pages.add(hp);
             }
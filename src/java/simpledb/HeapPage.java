@@ -2,10 +2,29 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.function.IntPredicate;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page is kept in its on-disk format in a page-sized buffer, and
+ * tuples are decoded from it when they are asked for. When the BufferPool
+ * uses a {@link FrameArena} that buffer is a frame of direct memory, so a
+ * resident page costs almost no Java heap however large the pool is.
+ * The decoded tuples are kept for the next scan until the page changes,
+ * through a soft reference, so the garbage collector can still take them
+ * back when the heap runs short.
+ * <p>
+ * Several transactions may write tuples of the page at once, each holding
+ * X locks on the tuples it changes and IX on the page (see
+ * {@link HeapFile#insertTuple}). The page remembers what each of them
+ * changed, so it can be written with one transaction's changes but not
+ * the others' ({@link #committedImage}), and an aborting transaction's
+ * changes can be undone in place ({@link #rollback}). While one of them
+ * has its changes on disk uncommitted ({@link #steal}), no other joins it.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,15 +34,19 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
-    private List<Tuple> usedTp;
-    private TransactionId tid;
-    private boolean isDirty;
+    private final int headerSize;
+    private final ByteBuffer data;  // header bytes followed by the tuple slots
+
+    byte[] oldData;                 // before image, null while unmodified
+    private final Object oldDataLock = new Object();
+    private final PageLatch latch = new PageLatch();
+    private volatile TransactionId tid;
+    // slots each transaction changed, with their bytes before its first
+    // change to them (null for an empty slot); guarded by the latch
+    private final Map<TransactionId, Map<Integer, byte[]>> writes = new HashMap<>(4);
+    private TransactionId stolenBy; // has its changes on disk uncommitted; guarded by the latch
+    private volatile SoftReference<Tuple[]> decoded;    // slots decoded by iterator(), or null
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -43,27 +66,20 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, Math.max(data.length, BufferPool.getPageSize()))));
+    }
+
+    /**
+     * Create a HeapPage that lives in the given page-sized buffer. The page
+     * reads and writes the buffer in place, so the caller must not reuse it
+     * until the page is no longer in use.
+     */
+    HeapPage(HeapPageId id, ByteBuffer frame) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        this.data = frame;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -88,9 +104,18 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
+            long stamp = latch.readLock();
+            try {
+                synchronized(oldDataLock)
+                {
+                    // copied under the lock: a writer saves the before image
+                    // here before its first change
+                    oldDataRef = oldData;
+                    if (oldDataRef == null)
+                        oldDataRef = copyData();
+                }
+            } finally {
+                latch.unlockRead(stamp);
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -101,13 +126,39 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * The current contents become the before image, less the changes of
+     * transactions still writing tuples of the page. The copy is only
+     * taken when the page is next modified, so clean pages do not carry one.
+     */
     public void setBeforeImage() {
+        long stamp = latch.writeLock();
+        try {
+            synchronized(oldDataLock)
+            {
+            oldData = writes.isEmpty() ? null : committedBytes(null);
+            }
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Save the before image ahead of the first change since the last one;
+     * the caller holds the write latch.
+     */
+    private void keepBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        if (oldData == null)
+            oldData = copyData();
         }
     }
 
+    public PageLatch getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -116,22 +167,23 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return offset of the given slot in the page buffer */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in the given slot, or return null if it is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        if (!slotUsed(slotId))
             return null;
-        }
+
+        byte[] bytes = new byte[td.getSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(slotOffset(slotId));
+        view.get(bytes);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -150,6 +202,72 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Encode a tuple into the given slot; a null tuple zeroes the slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            if (t == null)
+                dos.write(new byte[td.getSize()]);
+            else
+                for (int j=0; j<td.numFields(); j++)
+                    t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        ByteBuffer view = data.duplicate();
+        view.position(slotOffset(slotId));
+        view.put(baos.toByteArray(), 0, td.getSize());
+    }
+
+    /** @return a copy of the given slot, or null if it is empty */
+    private byte[] slotBytes(int slotId) {
+        if (!slotUsed(slotId))
+            return null;
+        byte[] bytes = new byte[td.getSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(slotOffset(slotId));
+        view.get(bytes);
+        return bytes;
+    }
+
+    /** Put back a slot saved by {@link #slotBytes} into buf, a page buffer. */
+    private void putSlot(ByteBuffer buf, int slotId, byte[] bytes) {
+        ByteBuffer view = buf.duplicate();
+        view.position(slotOffset(slotId));
+        view.put(bytes != null ? bytes : new byte[td.getSize()]);
+        markSlotUsed(buf, slotId, bytes != null);
+    }
+
+    /**
+     * Remember the slot as it was before tid first changed it; the caller
+     * holds the write latch.
+     */
+    private void recordWrite(TransactionId tid, int slotId) {
+        Map<Integer, byte[]> slots = writes.computeIfAbsent(tid, k -> new HashMap<>());
+        if (!slots.containsKey(slotId))
+            slots.put(slotId, slotBytes(slotId));
+        this.tid = tid;
+    }
+
+    /**
+     * @return the page bytes without the changes of the transactions
+     *         writing tuples, except keep's; the caller holds the latch
+     */
+    private byte[] committedBytes(TransactionId keep) {
+        byte[] bytes = copyData();
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for (Map.Entry<TransactionId, Map<Integer, byte[]>> w : writes.entrySet())
+            if (!w.getKey().equals(keep))
+                for (Map.Entry<Integer, byte[]> slot : w.getValue().entrySet())
+                    putSlot(buf, slot.getKey(), slot.getValue());
+        return bytes;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -162,64 +280,16 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return latch.read(this::copyData);
+    }
 
-        return baos.toByteArray();
+    /** Copy the page buffer; the caller makes sure nobody modifies it. */
+    private byte[] copyData() {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer view = data.duplicate();
+        view.clear();
+        view.get(bytes, 0, Math.min(bytes.length, view.remaining()));
+        return bytes;
     }
 
     /**
@@ -251,10 +321,83 @@ public class HeapPage implements Page {
         int i = rid.getTupleNumber();
         if (!this.pid.equals(pid))
             throw new DbException("Not on this page.");
-        if (!isSlotUsed(i))
-            throw new DbException("Already empty.");
-        tuples[i] = null;
-        markSlotUsed(i, false);
+        long stamp = latch.writeLock();
+        try {
+            if (!slotUsed(i))
+                throw new DbException("Already empty.");
+            keepBeforeImage();
+            writeTuple(i, null);
+            markSlotUsed(i, false);
+            decoded = null;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Delete a tuple on behalf of tid, which holds an X lock on it, and
+     * remember the change for {@link #committedImage} and {@link #rollback}.
+     *
+     * @return false if another transaction has its changes to this page on
+     *         disk uncommitted; the caller then has to lock the whole page
+     * @throws DbException if this tuple is not on this page, or tuple slot
+     *         is already empty.
+     */
+    boolean deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int i = rid.getTupleNumber();
+        if (!pid.equals(rid.getPageId()))
+            throw new DbException("Not on this page.");
+        long stamp = latch.writeLock();
+        try {
+            if (stolenBy != null && !stolenBy.equals(tid))
+                return false;
+            if (!slotUsed(i))
+                throw new DbException("Already empty.");
+            keepBeforeImage();
+            recordWrite(tid, i);
+            writeTuple(i, null);
+            markSlotUsed(i, false);
+            decoded = null;
+            return true;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Add a tuple on behalf of tid in the first empty slot claim accepts,
+     * and remember the change for {@link #committedImage} and
+     * {@link #rollback}. claim is called under the write latch, so it must
+     * not wait: the caller locks the slot's tuple X there if it can be done
+     * at once, which passes over a slot freed by a delete that has not
+     * committed yet.
+     *
+     * @return false if no slot could be claimed, or another transaction has
+     *         its changes to this page on disk uncommitted
+     * @throws DbException if tupledesc is mismatch.
+     */
+    boolean insertTuple(TransactionId tid, Tuple t, IntPredicate claim) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("Fail to match TupleDesc.");
+        long stamp = latch.writeLock();
+        try {
+            if (stolenBy != null && !stolenBy.equals(tid))
+                return false;
+            for (int i = 0; i < numSlots; i++)
+                if (!slotUsed(i) && claim.test(i)) {
+                    keepBeforeImage();
+                    recordWrite(tid, i);
+                    writeTuple(i, t);
+                    t.setRecordId(new RecordId(pid, i));
+                    markSlotUsed(i, true);
+                    decoded = null;
+                    return true;
+                }
+            return false;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -267,30 +410,45 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (usedTp == null)
-            iterator();
-        if (usedTp.size() == numSlots)
-            throw new DbException("Page is full.");
         if (!td.equals(t.getTupleDesc()))
             throw new DbException("Fail to match TupleDesc.");
-        for (int i = 0; i < tuples.length; i++)
-            if (!isSlotUsed(i)) {
-                tuples[i] = t;
-                t.setRecordId(new RecordId(pid, i));
-                markSlotUsed(i, true);
-                break;
-            }
+        long stamp = latch.writeLock();
+        try {
+            for (int i = 0; i < numSlots; i++)
+                if (!slotUsed(i)) {
+                    keepBeforeImage();
+                    writeTuple(i, t);
+                    t.setRecordId(new RecordId(pid, i));
+                    markSlotUsed(i, true);
+                    decoded = null;
+                    return;
+                }
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+        throw new DbException("Page is full.");
     }
 
     /**
      * Marks this page as dirty/not dirty and record that transaction
-     * that did the dirtying
+     * that did the dirtying. Marking it clean also forgets which
+     * transactions changed which tuples.
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
-        isDirty = dirty;
-        this.tid = dirty ? tid : null;
+        if (dirty) {
+            this.tid = tid;
+            return;
+        }
+        long stamp = latch.writeLock();
+        try {
+            writes.clear();
+            stolenBy = null;
+            this.tid = null;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
     }
 
     /**
@@ -302,15 +460,122 @@ public class HeapPage implements Page {
         return tid;
     }
 
+    /** @return true if tid is the last to dirty the page, or has tuple changes on it */
+    public boolean isDirtiedBy(TransactionId tid) {
+        TransactionId last = this.tid;
+        if (last == null || tid == null)
+            return false;
+        if (last.equals(tid))
+            return true;
+        long stamp = latch.readLock();
+        try {
+            return writes.containsKey(tid);
+        } finally {
+            latch.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * A copy of the page without the changes of other transactions writing
+     * tuples. Always a copy, taken under the latch, since others may go on
+     * changing the page while it is written.
+     */
+    public HeapPage committedImage(TransactionId tid) {
+        long stamp = latch.readLock();
+        try {
+            return new HeapPage(pid, ByteBuffer.wrap(committedBytes(tid)));
+        } finally {
+            latch.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The before image becomes the page less the changes of the
+     * transactions still writing tuples; the page stays dirty while there
+     * are any.
+     */
+    public void markCommitted(TransactionId tid) {
+        long stamp = latch.writeLock();
+        try {
+            writes.remove(tid);
+            if (tid.equals(stolenBy))
+                stolenBy = null;
+            synchronized(oldDataLock)
+            {
+            oldData = writes.isEmpty() ? null : committedBytes(null);
+            }
+            this.tid = writes.isEmpty() ? null : writes.keySet().iterator().next();
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Put back the slots tid changed. Not done for a transaction whose
+     * changes are on disk, or which changed the page without saying which
+     * tuples: the whole page must be restored for those.
+     */
+    public boolean rollback(TransactionId tid) {
+        long stamp = latch.writeLock();
+        try {
+            if (!writes.containsKey(tid) || tid.equals(stolenBy))
+                return false;
+            for (Map.Entry<Integer, byte[]> slot : writes.remove(tid).entrySet())
+                putSlot(data, slot.getKey(), slot.getValue());
+            decoded = null;
+            if (writes.isEmpty()) {
+                synchronized(oldDataLock)
+                {
+                oldData = null;
+                }
+                this.tid = null;
+            }
+            else if (tid.equals(this.tid))
+                this.tid = writes.keySet().iterator().next();
+            return true;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * A copy of the page taken under the latch. If several transactions
+     * are writing tuples, it holds none of their changes, so nothing on
+     * disk needs undoing if any of them aborts. Otherwise it holds the
+     * changes of the one writer, with the same before image and dirtier
+     * for the caller to log, and no other transaction may write the page
+     * until that one completes.
+     */
+    public HeapPage steal() {
+        long stamp = latch.writeLock();
+        try {
+            if (writes.size() > 1)
+                return new HeapPage(pid, ByteBuffer.wrap(committedBytes(null)));
+            TransactionId writer = writes.isEmpty() ? tid : writes.keySet().iterator().next();
+            HeapPage image = new HeapPage(pid, ByteBuffer.wrap(copyData()));
+            synchronized(oldDataLock)
+            {
+            image.oldData = oldData;
+            }
+            image.tid = writer;
+            stolenBy = writer;
+            return image;
+        } finally {
+            latch.unlockWrite(stamp);
+        }
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int cnt = 0;
-        for (int i = 0; i < tuples.length; i++)
-            if (!isSlotUsed(i)) cnt++;
-        return cnt;
+        return latch.read(() -> {
+            int cnt = 0;
+            for (int i = 0; i < numSlots; i++)
+                if (!slotUsed(i)) cnt++;
+            return cnt;
+        });
     }
 
     /**
@@ -318,7 +583,11 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        if ((header[i / 8] >> (i % 8) & 1) == 1)
+        return slotUsed(i);     // one byte: always consistent
+    }
+
+    private boolean slotUsed(int i) {
+        if ((data.get(i / 8) >> (i % 8) & 1) == 1)
             return true;
         return false;
     }
@@ -329,10 +598,15 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        markSlotUsed(data, i, value);
+    }
+
+    private static void markSlotUsed(ByteBuffer buf, int i, boolean value) {
+        byte b = buf.get(i / 8);
         if (value)
-            header[i / 8] = (byte)(header[i / 8] | (1 << (i % 8)));
+            buf.put(i / 8, (byte)(b | (1 << (i % 8))));
         else
-            header[i / 8] = (byte)(header[i / 8] & ~(1 << (i % 8)));
+            buf.put(i / 8, (byte)(b & ~(1 << (i % 8))));
     }
 
     /**
@@ -341,13 +615,48 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        if (tuples == null)
-            return null;
-        usedTp = new ArrayList<>();
-        for (int i = 0; i < tuples.length; i++)
-            if (isSlotUsed(i))
-                usedTp.add(tuples[i]);
-        return usedTp.iterator();
+        // decoded up front so the iterator does not depend on the buffer
+        Tuple[] tuples = decodedTuples();
+        return new Iterator<Tuple>() {
+            private int next = skipEmpty(0);
+
+            private int skipEmpty(int i) {
+                while (i < tuples.length && tuples[i] == null)
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < tuples.length;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tuples[next];
+                next = skipEmpty(next + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return the tuple of every slot, null for empty ones, decoded now
+     *         unless they still are from an earlier call
+     */
+    private Tuple[] decodedTuples() {
+        SoftReference<Tuple[]> ref = decoded;
+        Tuple[] tuples = ref == null ? null : ref.get();
+        if (tuples != null)
+            return tuples;
+        return latch.read(() -> {
+            Tuple[] slots = new Tuple[numSlots];
+            for (int i = 0; i < numSlots; i++)
+                slots[i] = readTuple(i);
+            // under the read latch: a change clears this only after us
+            decoded = new SoftReference<>(slots);
+            return slots;
+        });
     }
 }
 
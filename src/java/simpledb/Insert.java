@@ -53,6 +53,8 @@ public class Insert extends Operator {
         // some code goes here
         mark = 0;
         super.open();
+        // the child may scan the table inserted into
+        Database.getBufferPool().declareWrite(tid, id);
         it.open();
         while (it.hasNext()) {
             Tuple t = it.next();
@@ -1,275 +1,750 @@
 package simpledb;
 
-import javafx.util.Pair;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Multi-granularity locks for the BufferPool: tables, pages and tuples
+ * (RecordIds) are locked in the {@link LockMode}s IS, IX, S, SIX and X,
+ * as are the keys of B+ tree indexes (see {@link #acquireKey}).
+ * Locking a page first takes IS or IX on its table, locking a tuple IS or
+ * IX on its table and page, unless a lock held higher up already covers
+ * the request. A table S or X lock covers all of the table's pages. A heap
+ * scan takes one lock on the table, S, or SIX if its transaction writes
+ * the table (see {@link BufferPool#declareWrite});
+ * a heap write locks the tuple X under IX on its page and table, so
+ * writers of different tuples of a page do not wait for each other.
+ * When a transaction holds more than {@value #ESCALATION_PROPERTY}
+ * (default {@value #DEFAULT_ESCALATION}) page locks on one table, they are
+ * escalated to a single S or X lock on the table, if that can be granted
+ * without waiting.
+ * <p>
+ * Every resource that is locked or waited for has a queue: the
+ * transactions holding it with their modes, and the requests waiting for
+ * it in FIFO order. A
+ * request that cannot be granted parks its thread. Whenever a lock is
+ * released, the requests at the head of the queue that are now compatible
+ * are granted and their threads unparked, so a waiter runs as soon as the
+ * conflicting lock is gone. No request overtakes a conflicting one that
+ * waits, so writers are not starved by a stream of readers. A conversion
+ * (a holder asking for a stronger mode, which it then holds joined with
+ * its old one) waits ahead of all ordinary requests, behind earlier
+ * conversions only, since requests behind it have to wait for the mode it
+ * holds anyway.
+ * <p>
+ * Deadlocks are handled according to the {@value #DEADLOCK_PROPERTY}
+ * system property (see {@link DeadlockMode}). By default a
+ * {@link DeadlockDetector} thread periodically searches the waits-for graph
+ * and aborts one transaction of every cycle; the graph is kept up to date
+ * incrementally, since each waiting request records what it waits for
+ * whenever its queue changes, so acquiring a lock never searches it.
+ * Wait-die and wound-wait need no graph: they order conflicts by
+ * transaction age as they arise. An aborted waiter gets
+ * TransactionAbortedException. So does a wounded transaction that is not
+ * waiting, at its next lock request of any kind, even for a lock it
+ * already holds: every page, tuple and key it uses is requested here, so
+ * the wound takes effect at once.
+ * <p>
+ * The lock table is split into {@value #LOCK_TABLE_SHARDS} shards by
+ * resource hash, each a plain map guarded by its own latch, so
+ * transactions working on different pages rarely meet on a monitor.
+ * Queues are dropped once their resource is neither locked nor waited
+ * for. Each transaction's locks are also listed per transaction, so
+ * releasing them at commit or abort costs O(locks held).
+ *
+ * @Threadsafe
+ */
 public class Lock {
-    private Map<PageId, List<TransactionId>> rLock; // read lock (PageId key)
-    private Map<PageId, TransactionId> wLock;       // write lock (PageId key)
-    private Map<TransactionId, List<Pair<TransactionId, PageId>>>  wait; // waitList
 
+    /** System property selecting the deadlock handling, see {@link DeadlockMode}. */
+    public static final String DEADLOCK_PROPERTY = "simpledb.lock.deadlock";
+
+    /** System property: page locks on one table before escalating to a table lock. */
+    public static final String ESCALATION_PROPERTY = "simpledb.lock.escalation";
+
+    static final int DEFAULT_ESCALATION = 512;
+
+    /** Number of independently latched shards of the lock table. */
+    static final int LOCK_TABLE_SHARDS = 64;
+
+    /** The resource standing for a whole table. */
+    private static final class TableResource {
+        final int tableId;
+
+        TableResource(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableResource && ((TableResource) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 0x9E3779B9;
+        }
+    }
+
+    /** A key of a B+ tree index, standing for itself and the gap below it. */
+    private static final class KeyResource {
+        final int tableId;
+        final Field key;    // null for the end of the index
+
+        KeyResource(int tableId, Field key) {
+            this.tableId = tableId;
+            this.key = key;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyResource))
+                return false;
+            KeyResource other = (KeyResource) o;
+            return other.tableId == tableId
+                    && (key == null ? other.key == null : other.key != null && key.equals(other.key));
+        }
+
+        public int hashCode() {
+            return (Objects.hashCode(key) * 31 + tableId) * 0x9E3779B9;
+        }
+    }
+
+    /** The locks of one transaction; updated by whichever thread grants them. */
+    private static class TxLocks {
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
+    }
+
+    /** How deadlocks are dealt with. */
+    public enum DeadlockMode {
+        /** A background thread breaks cycles in the waits-for graph ("detect"). */
+        DETECT,
+        /** A transaction may only wait for younger ones, else it aborts ("wait-die"). */
+        WAIT_DIE,
+        /** An older transaction aborts the younger ones it waits for ("wound-wait"). */
+        WOUND_WAIT;
+
+        /**
+         * @param name "detect", "wait-die" or "wound-wait"; null for detect
+         * @throws IllegalArgumentException if the name is unknown
+         */
+        public static DeadlockMode forName(String name) {
+            if (name == null)
+                return DETECT;
+            for (DeadlockMode m : values())
+                if (m.name().replace('_', '-').equalsIgnoreCase(name))
+                    return m;
+            throw new IllegalArgumentException("Unknown deadlock mode: " + name);
+        }
+    }
+
+    /** A waiting lock request; guarded by the latch of its shard. */
+    private static class Request {
+        final TransactionId tid;
+        final Object res;
+        final LockMode mode;        // mode to hold once granted
+        final boolean upgrade;      // a conversion: tid already holds res
+        final LockQueue queue;
+        final Thread thread;
+        volatile boolean granted;
+        volatile boolean cancelled; // aborted: the waiting thread withdraws it
+        volatile List<TransactionId> blockers = Collections.emptyList(); // waits-for edges
+
+        Request(TransactionId tid, Object res, LockMode mode, boolean upgrade, LockQueue queue) {
+            this.tid = tid;
+            this.res = res;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.queue = queue;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /** Holders and waiters of one resource, guarded by the latch of its shard. */
+    private static class LockQueue {
+        final Map<TransactionId, LockMode> holders = new HashMap<>(4);
+        final List<Request> waiting = new ArrayList<>(2);
+
+        /** @return true if tid may hold the resource in the given mode now */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet())
+                if (!Objects.equals(h.getKey(), tid) && !mode.compatible(h.getValue()))
+                    return false;
+            return true;
+        }
+    }
+
+    /** One partition of the lock table; its monitor is the shard latch. */
+    private static class Shard {
+        final HashMap<Object, LockQueue> queues = new HashMap<>();
+    }
+
+    private final Shard[] shards;                                       // by resource hash
+    private final ConcurrentHashMap<TransactionId, TxLocks> held;       // locks per tid
+    private final ConcurrentHashMap<TransactionId, Request> waitsOn;    // tid to its waiting request
+    private final Set<TransactionId> wounded;   // to abort at their next wait (wound-wait)
+    private final DeadlockMode mode;
+    private final DeadlockDetector detector;    // null unless mode is DETECT
+    private final int escalation;               // page locks per table before escalating
+    private final LongAdder waits = new LongAdder();    // requests that had to wait
+
+    /**
+     * Creates a lock table that handles deadlocks as the system properties
+     * say.
+     */
     public Lock() {
-        rLock = new HashMap<>();
-        wLock = new HashMap<>();
-        wait = new HashMap<>();
+        this(DeadlockMode.forName(System.getProperty(DEADLOCK_PROPERTY)));
     }
 
     /**
-     * 检查四个数据结构是否为空
+     * @param mode how to deal with deadlocks; DETECT starts a detector
+     *             configured from the system properties
      */
-    private void checkNull() {
-        if (rLock == null)
-            rLock = new HashMap<>();
-        if (wLock == null)
-            wLock = new HashMap<>();
-        if (wait == null)
-            wait = new HashMap<>();
+    public Lock(DeadlockMode mode) {
+        shards = new Shard[LOCK_TABLE_SHARDS];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard();
+        held = new ConcurrentHashMap<>();
+        waitsOn = new ConcurrentHashMap<>();
+        wounded = ConcurrentHashMap.newKeySet();
+        this.mode = mode;
+        this.escalation = Integer.getInteger(ESCALATION_PROPERTY, DEFAULT_ESCALATION);
+        if (mode == DeadlockMode.DETECT) {
+            detector = DeadlockDetector.fromProperties(this);
+            detector.start();
+        } else {
+            detector = null;
+        }
+    }
+
+    /** Stop the deadlock detector, if any. Called when the pool is replaced. */
+    public void shutdown() {
+        if (detector != null)
+            detector.shutdown();
+    }
+
+    private Shard shardOf(Object res) {
+        int h = res.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (LOCK_TABLE_SHARDS - 1)];
+    }
+
+    /** Record a granted lock; caller holds the shard latch. */
+    private void grant(LockQueue q, TransactionId tid, Object res, LockMode mode) {
+        if (q.holders.put(tid, mode) != null)
+            return;     // a conversion: already listed
+        TxLocks locks = held.computeIfAbsent(tid, k -> new TxLocks());
+        locks.resources.add(res);
+        if (res instanceof PageId)
+            locks.pagesPerTable.merge(((PageId) res).getTableId(), 1, Integer::sum);
+    }
+
+    /** Forget a released lock in its transaction's list. */
+    private void forget(TransactionId tid, Object res) {
+        TxLocks locks = tid == null ? null : held.get(tid);
+        if (locks != null && locks.resources.remove(res) && res instanceof PageId)
+            locks.pagesPerTable.merge(((PageId) res).getTableId(), -1, Integer::sum);
     }
 
     /**
-     * 锁查找
-     *
-     * @param tid - 对应的事务
-     * @param pid - 对应的页
-     * @param perm - 请求
-     * @return boolean - 可以进行perm请求返回true，否则false
+     * Bring a queue up to date after it changed: grant the requests at its
+     * head that have become compatible, then recompute what each remaining
+     * request waits for and apply the wait-die or wound-wait rule. Caller
+     * holds the shard latch.
      */
-    public synchronized boolean grantLock(TransactionId tid, PageId pid, Permissions perm) {
-        checkNull();
-        // init
-        List<TransactionId> permList = rLock.get(pid);
-        List<Pair<TransactionId, PageId>> waitList = wait.get(tid);
-        if (permList == null) permList = new ArrayList<>();
-        if (waitList == null) waitList = new ArrayList<>();
-        TransactionId admin = wLock.get(pid);
-
-        if (perm == Permissions.READ_ONLY) {
-            // read only
-            // 写锁不空且不为tid
-            if (admin != null && !tid.equals(admin))
-            {
-                Pair<TransactionId, PageId> tp = new Pair<>(admin, pid);
-                if (!waitList.contains(tp)) waitList.add(tp);
-                wait.put(tid, waitList);
-                return false;
-            }
-            // 写锁为空或者拥有tid的写锁
-            if (!permList.contains(tid))
-                permList.add(tid);
-            rLock.put(pid, permList);
+    private void queueChanged(LockQueue q) {
+        while (!q.waiting.isEmpty()) {
+            Request r = q.waiting.get(0);
+            if (!q.compatible(r.tid, r.mode))
+                break;
+            q.waiting.remove(0);
+            grant(q, r.tid, r.res, r.mode);
+            r.granted = true;
+            LockSupport.unpark(r.thread);
         }
-        else {
-            // write
-            // 拥有tid的写锁
-            if (tid.equals(admin)) return true;
-            // 写锁不为空且不是tid的写锁
-            if (admin != null) {
-                Pair<TransactionId, PageId> tp = new Pair<>(admin, pid);
-                if (!waitList.contains(tp)) waitList.add(tp);
-                wait.put(tid, waitList);
-                return false;
-            }
-            // 写锁为空
-            // 拥有超过1个读锁
-            if (permList.size() > 1) {
-                for (int i = 0; i < permList.size(); i++) {
-                    TransactionId pTid = permList.get(i);
-                    Pair<TransactionId, PageId> tp = new Pair<>(pTid, pid);
-                    if (!waitList.contains(tp) && !tid.equals(pTid)) waitList.add(tp);
-                }
-                wait.put(tid, waitList);
-                return false;
+        for (int i = 0; i < q.waiting.size(); i++) {
+            Request r = q.waiting.get(i);
+            List<TransactionId> blockers = new ArrayList<>(2);
+            for (Map.Entry<TransactionId, LockMode> h : q.holders.entrySet())
+                if (!Objects.equals(h.getKey(), r.tid) && !r.mode.compatible(h.getValue()))
+                    blockers.add(h.getKey());
+            for (int j = 0; j < i; j++) {
+                Request ahead = q.waiting.get(j);
+                if (!Objects.equals(ahead.tid, r.tid) && !r.mode.compatible(ahead.mode))
+                    blockers.add(ahead.tid);
             }
-            // 只有1个读锁，且不是tid的读锁
-            if (permList.size() == 1 && !permList.contains(tid)) {
-                TransactionId pTid = permList.get(0);
-                Pair<TransactionId, PageId> tp = new Pair<>(pTid, pid);
-                if (!waitList.contains(tp) && !tid.equals(pTid)) waitList.add(tp);
-                wait.put(tid, waitList);
-                return false;
+            r.blockers = blockers;
+            if (mode == DeadlockMode.DETECT)
+                continue;
+            for (TransactionId b : blockers) {
+                if (mode == DeadlockMode.WAIT_DIE && b.getId() < r.tid.getId())
+                    cancel(r);      // younger waits for older: die
+                else if (mode == DeadlockMode.WOUND_WAIT && b.getId() > r.tid.getId())
+                    wound(b);       // older waits for younger: wound it
             }
-            wLock.put(pid, tid);
-        }
-        // unlock waitList
-        for (Pair<TransactionId, PageId> tp : waitList) {
-            if (pid.equals(tp.getValue()))
-                waitList.remove(tp);
         }
-        return true;
     }
 
     /**
-     * 解锁
+     * Abort a waiting request. Its thread wakes up, withdraws the request
+     * and throws TransactionAbortedException. Needs no latch.
+     */
+    private static void cancel(Request r) {
+        r.cancelled = true;
+        LockSupport.unpark(r.thread);
+    }
+
+    /** Make a transaction abort now if it waits, or else at its next lock request. */
+    private void wound(TransactionId tid) {
+        wounded.add(tid);
+        Request r = waitsOn.get(tid);
+        if (r != null)
+            cancel(r);
+    }
+
+    /** Abort a wounded transaction that asks for a lock; see {@link #wound}. */
+    private void checkWound(TransactionId tid) throws TransactionAbortedException {
+        if (tid != null && wounded.contains(tid))
+            throw new TransactionAbortedException();
+    }
+
+    /**
+     * Lock a page for reading (S) or writing (X), waiting as long as that
+     * conflicts with locks held by other transactions. IS or IX is taken on
+     * the table first; nothing more is needed if the transaction's table
+     * lock already covers the page. May escalate the transaction's page
+     * locks on the table to a table lock.
      *
-     * @param tid - 对应的事务
-     * @param pid - 对应的页
+     * @param tid - the transaction asking for the lock
+     * @param pid - the page to lock
+     * @param perm - READ_ONLY for a shared lock, READ_WRITE for exclusive
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
      */
-    public synchronized void unLock(TransactionId tid, PageId pid) {
-        checkNull();
-
-        // init
-        List<TransactionId> permList = rLock.get(pid);
-        TransactionId admin = wLock.get(pid);
-        if (permList != null) {
-            permList.remove(tid);
-            if (permList.isEmpty())
-                rLock.remove(pid);
-            else
-                rLock.put(pid, permList);
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        acquire(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Lock a page in any mode, after IS (for IS or S) or IX (for the other
+     * modes) on its table, unless a table lock already covers it. A B+ tree
+     * leaf is locked IS by a range scan that locks the keys it reads, and
+     * SIX by an insert or delete, which excludes other writers of the page
+     * but leaves its other keys to concurrent scans.
+     *
+     * @param tid - the transaction asking for the lock
+     * @param pid - the page to lock
+     * @param mode - the mode to lock it in
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        checkWound(tid);
+        TableResource table = new TableResource(pid.getTableId());
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.coversChildren(mode))
+            return;
+        lock(tid, table, intention(mode), true);
+        lock(tid, pid, mode, true);
+        maybeEscalate(tid, table);
+    }
+
+    /**
+     * Lock a page like {@link #acquire(TransactionId, PageId, LockMode)}, but
+     * only if that can be done at once, e.g. by a B+ tree split or merge,
+     * which may not wait under its latch. Never escalates.
+     *
+     * @param tid - the transaction asking for the lock
+     * @param pid - the page to lock
+     * @param mode - the mode to lock it in
+     * @return true if tid now holds the page in mode, or a lock covering it
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, LockMode mode) {
+        TableResource table = new TableResource(pid.getTableId());
+        try {
+            LockMode tableMode = heldMode(tid, table);
+            if (tableMode != null && tableMode.coversChildren(mode))
+                return true;
+            return lock(tid, table, intention(mode), false) && lock(tid, pid, mode, false);
+        } catch (TransactionAbortedException e) {
+            throw new AssertionError("aborted without waiting", e);
         }
-        if (tid.equals(admin))
-            wLock.remove(pid);
-        // update wait info
+    }
+
+    /** @return the intention mode to take on a table before locking part of it in mode */
+    private static LockMode intention(LockMode mode) {
+        return mode == LockMode.IS || mode == LockMode.S ? LockMode.IS : LockMode.IX;
     }
 
     /**
-     * 获得锁信息
+     * Lock a whole table for reading (S) or writing (X); covers every page
+     * and tuple of the table.
      *
-     * @param tid - 对应的事务
-     * @param pid - 对应的页
-     * @return boolean - 锁存在返回true，否则false
+     * @param tid - the transaction asking for the lock
+     * @param tableId - the table to lock
+     * @param perm - READ_ONLY for a shared lock, READ_WRITE for exclusive
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
      */
-    public synchronized boolean getLock(TransactionId tid, PageId pid) {
-        checkNull();
+    public void acquireTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        acquireTable(tid, tableId, LockMode.of(perm));
+    }
+
+    /**
+     * Lock a whole table in any mode, e.g. SIX for a scan by a transaction
+     * that writes the table.
+     *
+     * @param tid - the transaction asking for the lock
+     * @param tableId - the table to lock
+     * @param mode - the mode to lock it in
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
+     */
+    public void acquireTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        checkWound(tid);
+        lock(tid, new TableResource(tableId), mode, true);
+    }
+
+    /**
+     * Lock a single tuple for reading (S) or writing (X), after IS or IX
+     * on its table and page, unless a table or page lock already covers it.
+     *
+     * @param tid - the transaction asking for the lock
+     * @param rid - the tuple to lock
+     * @param perm - READ_ONLY for a shared lock, READ_WRITE for exclusive
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
+     */
+    public void acquireTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        checkWound(tid);
+        PageId pid = rid.getPageId();
+        TableResource table = new TableResource(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.coversChildren(mode))
+            return;
+        lock(tid, table, LockMode.intention(perm), true);
+        LockMode pageMode = heldMode(tid, pid);
+        if (pageMode != null && pageMode.coversChildren(mode))
+            return;
+        lock(tid, pid, LockMode.intention(perm), true);
+        lock(tid, rid, mode, true);
+    }
 
-        // init
-        List<TransactionId> permList = rLock.get(pid);
-        if (permList != null && permList.contains(tid)) return true;
-        TransactionId admin = wLock.get(pid);
-        if (tid.equals(admin)) return true;
-        return false;
+    /**
+     * Lock a tuple X only if that can be done at once, e.g. to claim an
+     * empty slot for an insert: a slot freed by a delete that has not
+     * committed yet is still locked, and the insert looks for another one.
+     * Never waits, so it may be called under a page latch.
+     *
+     * @param tid - the transaction asking for the lock
+     * @param rid - the tuple to lock
+     * @return true if tid now holds the tuple X, or a lock covering it
+     */
+    public boolean tryAcquireTuple(TransactionId tid, RecordId rid) {
+        PageId pid = rid.getPageId();
+        TableResource table = new TableResource(pid.getTableId());
+        try {
+            LockMode tableMode = heldMode(tid, table);
+            if (tableMode != null && tableMode.coversChildren(LockMode.X))
+                return true;
+            if (!lock(tid, table, LockMode.IX, false))
+                return false;
+            LockMode pageMode = heldMode(tid, pid);
+            if (pageMode != null && pageMode.coversChildren(LockMode.X))
+                return true;
+            return lock(tid, pid, LockMode.IX, false) && lock(tid, rid, LockMode.X, false);
+        } catch (TransactionAbortedException e) {
+            throw new AssertionError("aborted without waiting", e);
+        }
     }
 
     /**
-     * 检查死锁（递归）
+     * Lock a key of a B+ tree index for reading (S) or writing (X), after IS
+     * or IX on its table, unless a table lock already covers it. The lock
+     * stands for the key and the gap between it and the next smaller key:
+     * a range scan locks every key it reads and the first one past its
+     * range, and an insert locks the key after the new one, so nothing can
+     * be inserted into a range being scanned.
      *
-     * @param tid - 对应的事务
-     * @param mark - 查环状态数组
-     *               -1 正在访问dfs树下子树
-     *         null / 0 未访问
-     *                1 dfs树下子树全访问
-     * @return boolean - 出现死锁返回true，否则false
+     * @param tid - the transaction asking for the lock
+     * @param tableId - the index
+     * @param key - the key, or null for the end of the index, after every key
+     * @param perm - READ_ONLY for a shared lock, READ_WRITE for exclusive
+     * @return true if tid held no lock on the key before, so one taken only
+     *         for the duration of an operation may be released after it
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         abort to prevent or break a deadlock
      */
-    public synchronized boolean isDead(TransactionId tid, Map<TransactionId, Integer> mark) {
-        List<Pair<TransactionId, PageId>> waitList = wait.get(tid);
-        mark.put(tid, -1);
-        if (waitList == null) {
-            mark.put(tid, 1);
+    public boolean acquireKey(TransactionId tid, int tableId, Field key, Permissions perm)
+            throws TransactionAbortedException {
+        checkWound(tid);
+        TableResource table = new TableResource(tableId);
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.coversChildren(LockMode.of(perm)))
             return false;
+        lock(tid, table, LockMode.intention(perm), true);
+        KeyResource res = new KeyResource(tableId, key);
+        boolean fresh = heldMode(tid, res) == null;
+        lock(tid, res, LockMode.of(perm), true);
+        return fresh;
+    }
+
+    /**
+     * Release a key lock before the transaction ends.
+     *
+     * @param tid - the transaction holding the lock
+     * @param tableId - the index
+     * @param key - the key, or null for the end of the index
+     * @see #acquireKey
+     */
+    public void unLockKey(TransactionId tid, int tableId, Field key) {
+        unLock(tid, new KeyResource(tableId, key));
+    }
+
+    /**
+     * Replace a transaction's page locks on a table by one table lock once
+     * there are too many of them: X if it intends to write the table, else
+     * S. Only done if the table lock can be granted at once; otherwise the
+     * page locks stay and escalation is tried again with the next one.
+     */
+    private void maybeEscalate(TransactionId tid, TableResource table)
+            throws TransactionAbortedException {
+        TxLocks locks = tid == null ? null : held.get(tid);
+        if (locks == null || locks.pagesPerTable.getOrDefault(table.tableId, 0) <= escalation)
+            return;
+        LockMode tableMode = heldMode(tid, table);
+        LockMode target = tableMode == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!lock(tid, table, target, false))
+            return;
+        for (Object res : locks.resources) {
+            PageId pid = res instanceof PageId ? (PageId) res
+                    : res instanceof RecordId ? ((RecordId) res).getPageId() : null;
+            if (pid != null && pid.getTableId() == table.tableId)
+                unLock(tid, res);
         }
-        for (int i = 0; i < waitList.size(); i++) {
-            Pair<TransactionId, PageId> tp = waitList.get(i);
-            TransactionId nextTid = tp.getKey();
-            //System.out.println("Now trace with Pair<" + tid.toString() + ", " + nextTid.toString() + ">");
-            if (!mark.containsKey(nextTid) || mark.get(nextTid) == 0) {
-                // 未加入mark序列（未被访问)，在序列且标记为0
-                boolean f = isDead(nextTid, mark);
-                if (f) return true;
-            }
-            if (!tid.equals(nextTid) && mark.get(nextTid) == -1) return true;
+    }
+
+    /** @return the mode tid holds res in, or null */
+    private LockMode heldMode(TransactionId tid, Object res) {
+        Shard shard = shardOf(res);
+        synchronized (shard) {
+            LockQueue q = shard.queues.get(res);
+            return q == null ? null : q.holders.get(tid);
         }
-        mark.put(tid, 1);
-        return false;
+    }
+
+    /** @return the mode tid holds a table in, or null */
+    LockMode tableMode(TransactionId tid, int tableId) {
+        return heldMode(tid, new TableResource(tableId));
     }
 
     /**
-     * 检查死锁（入口）
+     * Lock a resource in a mode, or convert a lock tid holds on it to the
+     * join of the two modes.
      *
-     * @param tid - 对应的事务
-     * @param pid - 对应的页
-     * @param mark - 如上
-     * @return boolean - 出现死锁返回true，否则false
+     * @param wait whether to wait if the lock cannot be granted at once
+     * @return false if it could not be granted at once and wait is false
+     * @throws IllegalArgumentException if tid is null: a lock nobody holds
+     *         could never be released
      */
-    public synchronized boolean isDead(TransactionId tid, PageId pid, Map<TransactionId, Integer> mark) {
-        if (mark == null) mark = new HashMap<>();
-        mark.put(tid, -1);
-        List<Pair<TransactionId, PageId>> waitList = wait.get(tid);
-        if (waitList == null) {
-            mark.put(tid, 1);
-            return false;
+    private boolean lock(TransactionId tid, Object res, LockMode want, boolean wait)
+            throws TransactionAbortedException {
+        if (tid == null)
+            throw new IllegalArgumentException("lock requested without a transaction");
+        Shard shard = shardOf(res);
+        Request r;
+        synchronized (shard) {
+            LockQueue q = shard.queues.computeIfAbsent(res, k -> new LockQueue());
+            LockMode current = q.holders.get(tid);
+            if (current != null && current.covers(want))
+                return true;
+            LockMode mode = current == null ? want : current.join(want);
+            boolean upgrade = current != null;
+            if (q.compatible(tid, mode) && (upgrade || q.waiting.isEmpty())) {
+                grant(q, tid, res, mode);
+                return true;
+            }
+            if (!wait) {
+                retireIfIdle(shard, res, q);
+                return false;
+            }
+            r = new Request(tid, res, mode, upgrade, q);
+            waits.increment();
+            int at = q.waiting.size();
+            if (upgrade)
+                for (at = 0; at < q.waiting.size() && q.waiting.get(at).upgrade; at++)
+                    ;
+            q.waiting.add(at, r);
+            waitsOn.put(tid, r);
+            queueChanged(q);
         }
-        for (int i = 0; i < waitList.size(); i++) {
-            Pair<TransactionId, PageId> tp = waitList.get(i);
-            TransactionId nextTid = tp.getKey();
-            PageId nextPid = tp.getValue();
-            //System.out.println(tid.toString() + " wait " + nextTid.toString() + " on " + nextPid);
-            if (pid.equals(nextPid)) {
-                if (!mark.containsKey(nextTid) || mark.get(nextTid) == 0) {
-                    // 未加入mark序列（未被访问)，在序列且标记为0
-                    boolean f = isDead(nextTid, mark);
-                    if (f) return true;
-                }
-                if (!tid.equals(nextTid) && mark.get(nextTid) == -1) return true;
+        await(r);
+        return true;
+    }
+
+    /** Park until a queued request is granted, or give up if it is aborted. */
+    private void await(Request r) throws TransactionAbortedException {
+        boolean done = false;
+        try {
+            while (!r.granted) {
+                // a wound may have been dealt just before we started waiting
+                if (r.cancelled || wounded.contains(r.tid))
+                    throw new TransactionAbortedException();
+                LockSupport.park(this);
             }
+            done = true;
+        } finally {
+            waitsOn.remove(r.tid, r);
+            if (!done)
+                withdraw(r);
         }
-        mark.put(tid, 1);
-        return false;
     }
 
     /**
-     * 查看一个页是否可以被清除
+     * Take back a request that gave up waiting (aborted, or because its
+     * thread died). If it was granted in the meantime the lock stays held
+     * until the transaction completes.
+     */
+    private void withdraw(Request r) {
+        Shard shard = shardOf(r.res);
+        synchronized (shard) {
+            if (r.granted || !r.queue.waiting.remove(r))
+                return;
+            queueChanged(r.queue);
+            retireIfIdle(shard, r.res, r.queue);
+        }
+    }
+
+    /** Drop the queue of a resource nobody holds or waits for; caller holds the shard. */
+    private static void retireIfIdle(Shard shard, Object res, LockQueue q) {
+        if (q.holders.isEmpty() && q.waiting.isEmpty())
+            shard.queues.remove(res, q);
+    }
+
+    /**
+     * A snapshot of the waits-for graph: each waiting transaction with the
+     * transactions it waits for. Reads the edges the requests keep, without
+     * latching anything, so it may be slightly stale.
+     */
+    Map<TransactionId, List<TransactionId>> waitsForGraph() {
+        Map<TransactionId, List<TransactionId>> graph = new HashMap<>();
+        for (Request r : waitsOn.values())
+            if (!r.granted && !r.cancelled)
+                graph.put(r.tid, r.blockers);
+        return graph;
+    }
+
+    /**
+     * Abort a waiting transaction to break a deadlock.
      *
-     * @param pid - 对应的页
-     * @return boolean - 如果没有事务占用返回true，否则false
+     * @return false if it is no longer waiting
      */
-    public boolean isEmpty(PageId pid) {
-        List<TransactionId> permList = rLock.get(pid);
-        TransactionId admin = wLock.get(pid);
-        if ((permList == null || permList.isEmpty()) && (admin == null)) return true;
-        return false;
+    boolean abortWaiter(TransactionId tid) {
+        Request r = waitsOn.get(tid);
+        if (r == null || r.granted)
+            return false;
+        cancel(r);
+        return true;
     }
 
     /**
-     * 删除所有锁
+     * Release a page or tuple lock and grant whatever was waiting for it.
+     * Locks on the table are kept.
      *
-     * @param tid - 对应的事务
+     * @param tid - the transaction holding the lock
+     * @param res - the locked PageId or RecordId
      */
-    public void deleteLocks(TransactionId tid) {
-        // find
-        List<PageId> permList = new ArrayList<>();
-        Set<PageId> key = rLock.keySet();
-        permList.addAll(key);
-        // unlock
-        for (int i = 0; i < permList.size(); i++)
-            unLock(tid, permList.get(i));
-        // update waitList
-        Set<TransactionId> key2 = wait.keySet();
-        Iterator<TransactionId> it2 = key2.iterator();
-        while (it2.hasNext()) {
-            TransactionId pTid = it2.next();
-            // 经过abort，tid不需要再等待任何事务的完成
-            if (tid.equals(pTid)) {
-                it2.remove();
-                continue;
-            }
-            // 查找其余的tid是否在等待该事务的完成
-            List<Pair<TransactionId, PageId>> waitList = wait.get(pTid);
-            if (waitList == null || waitList.isEmpty()) {
-                it2.remove();
-                continue;
-            }
-            Iterator<Pair<TransactionId, PageId>> it3 = waitList.iterator();
-            while (it3.hasNext()) {
-                if (tid.equals(it3.next().getKey()))
-                    it3.remove();
-            }
-            if (waitList.isEmpty())
-                it2.remove();
-            else
-                wait.put(pTid, waitList);
+    public void unLock(TransactionId tid, Object res) {
+        forget(tid, res);
+        release(tid, res);
+    }
+
+    /** Drop tid from the holders of a resource and grant its waiters. */
+    private void release(TransactionId tid, Object res) {
+        Shard shard = shardOf(res);
+        synchronized (shard) {
+            LockQueue q = shard.queues.get(res);
+            if (q == null || q.holders.remove(tid) == null)
+                return;
+            queueChanged(q);
+            retireIfIdle(shard, res, q);
         }
     }
 
     /**
-     * 撤销对锁的依赖
+     * @param tid - the transaction
+     * @param pid - the page
+     * @return true if tid holds a lock on pid, or a table lock covering it
+     */
+    public boolean getLock(TransactionId tid, PageId pid) {
+        if (heldMode(tid, pid) != null)
+            return true;
+        LockMode tableMode = tableMode(tid, pid.getTableId());
+        return tableMode != null && tableMode.coversChildren(LockMode.S);
+    }
+
+    /**
+     * @param tid - the transaction asking, or null
+     * @param pid - the page
+     * @return true if a transaction other than tid holds a lock that lets it
+     *         write pid, on the page or on its whole table
+     */
+    public boolean writeLockedByOther(TransactionId tid, PageId pid) {
+        return !grantable(tid, pid, LockMode.S)
+                || !grantable(tid, new TableResource(pid.getTableId()), LockMode.IS);
+    }
+
+    /** @return true if no holder of res other than tid conflicts with mode */
+    private boolean grantable(TransactionId tid, Object res, LockMode mode) {
+        Shard shard = shardOf(res);
+        synchronized (shard) {
+            LockQueue q = shard.queues.get(res);
+            return q == null || q.compatible(tid, mode);
+        }
+    }
+
+    /**
+     * @return the number of lock requests so far that could not be granted
+     *         at once and had to wait
+     */
+    public long waitCount() {
+        return waits.sum();
+    }
+
+    /**
+     * @param tid - the transaction
+     * @return the number of locks tid holds, on tables, pages, tuples and keys
+     */
+    public int locksHeld(TransactionId tid) {
+        TxLocks locks = tid == null ? null : held.get(tid);
+        return locks == null ? 0 : locks.resources.size();
+    }
+
+    /**
+     * Release all locks of a transaction, and withdraw the request it left
+     * waiting, if any; a thread still waiting on it is aborted. Only the
+     * resources the transaction holds are visited.
      *
-     * @param tid - 对应的事务
-     * @param pid - 对应的页
+     * @param tid - the transaction
      */
-    public synchronized void unWait(TransactionId tid, PageId pid) {
-        List<Pair<TransactionId, PageId>> waitList = wait.get(tid);
-        for (Pair<TransactionId, PageId> tp : waitList)
-            if (pid.equals(tp.getValue()))
-                waitList.remove(tp);
+    public void deleteLocks(TransactionId tid) {
+        if (tid == null)
+            return;
+        Request r = waitsOn.get(tid);
+        if (r != null) {
+            cancel(r);
+            withdraw(r);
+        }
+        TxLocks locks = held.remove(tid);
+        if (locks != null)
+            for (Object res : locks.resources)
+                release(tid, res);
+        wounded.remove(tid);
     }
 }
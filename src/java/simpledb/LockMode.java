@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * The lock modes of multi-granularity locking. A transaction takes an
+ * intention mode (IS or IX) on a table before it locks pages or tuples of
+ * the table in S or X mode; S and X on the table itself cover everything
+ * in it. SIX is S on the whole table plus the intention to write parts of
+ * it, what a scan that updates some of the rows it reads needs.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    //                                    IS     IX     S      SIX    X
+    private static final boolean[][] COMPATIBLE = {
+            /* IS  */ {                   true,  true,  true,  true,  false },
+            /* IX  */ {                   true,  true,  false, false, false },
+            /* S   */ {                   true,  false, true,  false, false },
+            /* SIX */ {                   true,  false, false, false, false },
+            /* X   */ {                   false, false, false, false, false },
+    };
+
+    /** @return true if two transactions may hold this mode and other at once */
+    public boolean compatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode granting everything this mode and other grant */
+    public LockMode join(LockMode other) {
+        if (this == other || other == IS)
+            return this;
+        if (this == IS)
+            return other;
+        if (this == X || other == X)
+            return X;
+        return SIX;     // any two of IX, S and SIX
+    }
+
+    /** @return true if holding this mode already grants other */
+    public boolean covers(LockMode other) {
+        return join(other) == this;
+    }
+
+    /**
+     * @return true if holding this mode on a table (or page) grants other
+     *         on every page (or tuple) in it. Only S, SIX and X do: an
+     *         intention mode grants nothing below itself.
+     */
+    public boolean coversChildren(LockMode other) {
+        switch (this) {
+        case X:
+            return true;
+        case S:
+        case SIX:
+            return other == IS || other == S;
+        default:
+            return false;
+        }
+    }
+
+    /** @return the mode that lets a transaction read (S) or write (X) */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** @return READ_WRITE if this mode lets a transaction write some of what it locks */
+    public Permissions permissions() {
+        return this == IS || this == S ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+    }
+
+    /** @return the intention mode to take on the parent before locking with perm */
+    public static LockMode intention(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? IX : IS;
+    }
+}
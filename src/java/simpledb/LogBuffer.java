@@ -0,0 +1,240 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The tail of a log file, kept in memory. An appender reserves the bytes
+ * of a record with a compare-and-set on the tail offset, serializes the
+ * record into a ring of direct memory, in the format {@link
+ * java.io.DataOutput} would write it, and publishes it. Appenders do not
+ * wait for each other: they serialize in parallel, and may publish out of
+ * order. The log is published up to the first record still being
+ * serialized, and only that prefix is drained to the file, in large
+ * writes, by a force or when an appender needs room in the ring.
+ * <p>
+ * Offsets are file offsets. A record larger than the ring is written to
+ * the file directly once everything before it is.
+ *
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Bytes in the ring. */
+    static final int DEFAULT_SIZE = 1 << 20;
+
+    private static final ConcurrentHashMap<String, byte[]> utf = new ConcurrentHashMap<>();
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final AtomicLong tail = new AtomicLong();       // next offset to reserve
+    private final AtomicLong published = new AtomicLong();  // serialized up to here
+    // records published out of order, start to end, until the prefix reaches them
+    private final ConcurrentHashMap<Long, Long> done = new ConcurrentHashMap<>();
+    private volatile long drained;  // the file holds the log up to here; guarded by this
+    private volatile FileChannel channel;
+    private long writes;            // calls to FileChannel.write; guarded by this
+
+    /**
+     * @param channel the log file
+     * @param start offset at which to append
+     * @param size bytes in the ring
+     */
+    LogBuffer(FileChannel channel, long start, int size) {
+        this.channel = channel;
+        this.capacity = size;
+        this.ring = ByteBuffer.allocateDirect(size);
+        reset(channel, start);
+    }
+
+    /**
+     * Append to another file, or at another offset. Nothing may be
+     * reserved but not drained, and no appender may be running.
+     */
+    synchronized void reset(FileChannel channel, long start) {
+        if (drained != tail.get())
+            throw new IllegalStateException("log buffer not drained");
+        this.channel = channel;
+        tail.set(start);
+        published.set(start);
+        drained = start;
+    }
+
+    /** A reserved record, serialized by one thread. */
+    class Record {
+        final long start;
+        final long end;
+        private final ByteBuffer view;
+
+        private Record(long start, long end, ByteBuffer view) {
+            this.start = start;
+            this.end = end;
+            this.view = view;
+        }
+
+        void putInt(int v) {
+            if (view.remaining() >= 4)
+                view.putInt(v);
+            else
+                for (int shift = 24; shift >= 0; shift -= 8)
+                    putByte((byte) (v >>> shift));
+        }
+
+        void putLong(long v) {
+            if (view.remaining() >= 8)
+                view.putLong(v);
+            else
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    putByte((byte) (v >>> shift));
+        }
+
+        /** Append a string as {@link java.io.DataOutput#writeUTF} does. */
+        void putUTF(String s) {
+            put(utf(s));
+        }
+
+        void put(byte[] b) {
+            int off = 0;
+            while (off < b.length) {
+                if (!view.hasRemaining())
+                    view.position(0);
+                int n = Math.min(view.remaining(), b.length - off);
+                view.put(b, off, n);
+                off += n;
+            }
+        }
+
+        private void putByte(byte b) {
+            if (!view.hasRemaining())
+                view.position(0);
+            view.put(b);
+        }
+    }
+
+    /**
+     * Reserve the next size bytes of the log, waiting for room in the
+     * ring if it is full. The record must be serialized completely and
+     * then passed to {@link #publish}.
+     */
+    Record reserve(int size) throws IOException {
+        long start = tail.getAndAdd(size);
+        long end = start + size;
+        if (size > capacity)
+            return new Record(start, end, ByteBuffer.allocate(size));
+        // the bytes we are about to overwrite must be in the file
+        while (end - drained > capacity) {
+            drain();
+            if (end - drained > capacity)
+                LockSupport.parkNanos(10000);
+        }
+        ByteBuffer view = ring.duplicate();
+        view.position((int) (start % capacity));
+        return new Record(start, end, view);
+    }
+
+    /** The record is serialized; the log may be written up to its end once
+        everything before it is. */
+    void publish(Record r) throws IOException {
+        if (r.end - r.start > capacity) {
+            // too large for the ring: write it ourselves, in its turn
+            awaitPublished(r.start);
+            synchronized (this) {
+                drain();
+                r.view.flip();
+                while (r.view.hasRemaining()) {
+                    channel.write(r.view, r.start + r.view.position());
+                    writes++;
+                }
+                drained = r.end;
+            }
+        }
+        if (!published.compareAndSet(r.start, r.end))
+            done.put(r.start, r.end);
+        // carry the prefix over records that finished before it reached them
+        while (true) {
+            long p = published.get();
+            Long e = done.get(p);
+            if (e == null)
+                return;
+            if (published.compareAndSet(p, e))
+                done.remove(p);
+        }
+    }
+
+    /** Wait until the log is serialized up to the given offset. */
+    void awaitPublished(long offset) {
+        while (published.get() < offset)
+            LockSupport.parkNanos(10000);
+    }
+
+    /** @return the offset the next record reserved will start at */
+    long offset() {
+        return tail.get();
+    }
+
+    /** @return the offset up to which the file holds the log */
+    long drainedOffset() {
+        return drained;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Write what is published to the file, without forcing it.
+     *
+     * @return the offset up to which the file holds the log
+     */
+    synchronized long drain() throws IOException {
+        long from = drained;
+        long to = published.get();
+        while (from < to) {
+            ByteBuffer src = ring.duplicate();
+            int pos = (int) (from % capacity);
+            int n = (int) Math.min(to - from, capacity - pos);
+            src.limit(pos + n).position(pos);
+            while (src.hasRemaining()) {
+                channel.write(src, from + (src.position() - pos));
+                writes++;
+            }
+            from += n;
+        }
+        drained = Math.max(drained, to);
+        return drained;
+    }
+
+    /** Overwrite a long already in the file, e.g. the checkpoint pointer. */
+    void writeLongAt(long position, long v) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8).putLong(v);
+        b.flip();
+        while (b.hasRemaining())
+            channel.write(b, position + b.position());
+    }
+
+    /** @return the number of writes to the file so far */
+    synchronized long writeCount() {
+        return writes;
+    }
+
+    /** @return s encoded as {@link java.io.DataOutput#writeUTF} does */
+    static byte[] utf(String s) {
+        return utf.computeIfAbsent(s, LogBuffer::encode);
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+            new DataOutputStream(bytes).writeUTF(s);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -2,7 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.*;
 
 /**
@@ -14,13 +20,14 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+Appending a record takes no monitor, see the log buffer note below.
+Some methods in BufferPool are synchronized, and write log records (on
+page flushed) while holding the BufferPool lock; the log file flushes
+BufferPool pages (on checkpoints, rollback and recovery.)  This can
+lead to deadlock.  For that reason, any LogFile operation that needs to
+access the BufferPool while holding the LogFile lock or the append lock
+exclusively must not be declared synchronized and must begin with a
+block like:
 
 <p>
 <pre>
@@ -32,6 +39,61 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+Only {@link #rollback}, {@link #logCheckpoint} and {@link #recover} do
+so; {@link #logAbort} rolls back, then appends its record like a commit.
+
+<p>
+<u> Group commit: </u>
+<p>
+
+A commit appends its COMMIT record, then waits until the log is
+durable up to that record.  The first waiter
+becomes the flusher: it waits for the batching window set by {@value
+#GROUP_COMMIT_PROPERTY} so that more commits can join, forces the log
+once for everything appended so far, and wakes all commits it made
+durable.  Commits arriving during the force form the next batch.
+
+<p>
+<u> Log buffer: </u>
+<p>
+
+Records are appended to a {@link LogBuffer} and reach the file when it
+is drained, by a force or when it is full; anything reading the file
+must drain it first.  Appending, forcing and updating transactions
+do not take the lock: appenders reserve their bytes in the buffer
+without waiting for each other, and only hold the append lock shared.
+Checkpoints, truncation and recovery take it exclusively, so that no
+record is in flight while they look at the whole log.  Positions in
+the log are also named by log sequence numbers (LSNs): the offset a
+byte had when it was appended, plus the bytes truncation has removed
+from the front of the log since.  Unlike offsets, LSNs only grow, and
+{@link #force(long)} takes one.
+
+<p>
+<u> Recovery: </u>
+<p>
+
+Pages reach the disk only after the log describes them: BufferPool logs
+the uncommitted changes of a page and forces the log before writing it.
+{@link #recover} first reads the last checkpoint, which lists the live
+transactions, then scans the log forward from the first record of the
+oldest of them.  Records from the checkpoint on are redone, repeating
+history: the checkpoint wrote every page, so nothing before it needs
+redo.  Redo is done by a {@link ParallelRedo}, whose workers each replay
+the pages hashed to them, in log order.  Transactions without a COMMIT
+or ABORT record are then undone, all of their updates in reverse log
+order, and an ABORT is logged for each.  Every update undone, by
+recovery or by {@link #rollback}, is logged with a compensation (CLR)
+record holding the restored page, so an undo interrupted by a crash is
+redone and not undone twice.  B+ tree pages are logged by their file
+instead, whole at every change, and undone logically: a split or merge
+is committed at once, and may have moved what a loser changed.  They
+are redone from the first record scanned, not from the checkpoint,
+since the checkpoint writes them only as they were last committed.  A
+torn record at the end of the log, left by a crash during a write, is
+cut off.  {@link #getRecoveryMillis} and
+its siblings report the last recovery.
 */
 
 /**
@@ -51,8 +113,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are nine record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+INDEX, STRUCTURE, BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,6 +123,28 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> DELTA records describe an update by the bytes it changed: a page
+id, written like the one in page data and read with
+LogFile.readPageId(), then a {@link PageDelta}.  The first update of a
+page after a checkpoint is logged with an UPDATE record, so that redo
+has a whole page to start from; later ones with a DELTA record, unless
+it would not be smaller or its before image is not the page last
+logged.  LogFile.redo() and LogFile.undo() apply them.
+
+<li> CLR records compensate an update undone: page data of the page
+as restored, then the offset of the UPDATE, DELTA or INDEX record undone.
+
+<li> INDEX records describe an insert into or delete from a B+ tree
+leaf: an integer, 1 for an insert, then page data of the leaf after
+the change, then the tuple, as an integer length and the bytes its
+fields serialize to.  Redo installs the page; undo deletes or inserts
+the tuple again through {@link BTreeFile#undo}, wherever splits and
+merges have moved it since.
+
+<li> STRUCTURE records describe a B+ tree split or merge, a nested top
+action that is never undone: an integer count, then page data of each
+page it changed.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
@@ -75,23 +159,47 @@ public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
+    static final int INDEX_RECORD = 8;
+    static final int STRUCTURE_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** System property: microseconds a commit waits for others to share its force; 0 by default. */
+    public static final String GROUP_COMMIT_PROPERTY = "simpledb.log.groupcommit";
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
-
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+    Map<Long,Long> tidToLogBytes = new ConcurrentHashMap<Long,Long>(); // update bytes per live tid
+    // checksum of the page last logged, for pages logged since the last
+    // checkpoint; cleared under appendLock
+    Map<PageId,Long> logged = new ConcurrentHashMap<PageId,Long>();
+
+    final long groupWindowNanos;
+    // shared by appenders and flushers, exclusive while the whole log is looked at
+    final ReentrantReadWriteLock appendLock = new ReentrantReadWriteLock();
+    final LogBuffer log;
+    long truncated = 0;     // bytes truncation removed, offset + truncated = LSN; protected by appendLock
+    long durableLsn = 0;    // the log is on disk up to here; protected by this
+    boolean flushing;       // a flusher is forcing outside the lock; protected by this
+    long forces = 0;        // for GroupCommitTest; protected by this
+
+    // the last recovery; protected by this
+    long recoveryMillis = 0;
+    long recordsRedone = 0;
+    long recordsUndone = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,9 +213,16 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogBuffer.DEFAULT_SIZE);
+    }
+
+    /** @param bufferSize bytes of log to buffer in memory */
+    LogFile(File f, int bufferSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        groupWindowNanos = Math.max(Long.getLong(GROUP_COMMIT_PROPERTY, 0), 0) * 1000;
+        log = new LogBuffer(raf.getChannel(), raf.length(), bufferSize);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -123,20 +238,49 @@ public class LogFile {
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
+    // Appenders must call this before taking the append lock.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            appendLock.writeLock().lock();
+            try {
+                if (recoveryUndecided) {
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    log.reset(raf.getChannel(), raf.length());
+                    recoveryUndecided = false;
+                }
+            } finally {
+                appendLock.writeLock().unlock();
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** Reserve a record of the given size; the caller must fill it and
+        pass it to {@link #publish}. */
+    private LogBuffer.Record reserve(int size) throws IOException {
+        appendLock.readLock().lock();
+        try {
+            return log.reserve(size);
+        } catch (IOException | RuntimeException e) {
+            appendLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /** @return the LSN of the end of the record */
+    private long publish(LogBuffer.Record r) throws IOException {
+        try {
+            log.publish(r);
+            return r.end + truncated;
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -144,81 +288,333 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+        // B+ trees first, logging their compensations; they may split
+        // pages, so not under our monitor
+        Database.getBufferPool().rollbackIndexes(tid);
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord); it takes the locks
+        // it needs itself
+        rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
-        }
+        // the record itself is appended like a COMMIT, under the shared
+        // append lock only
+        preAppend();
+        //Debug.log("ABORT");
+        LogBuffer.Record r = reserve(INT_SIZE + 2 * LONG_SIZE);
+        r.putInt(ABORT_RECORD);
+        r.putLong(tid.getId());
+        r.putLong(r.start);
+        tidToFirstLogRecord.remove(tid.getId());
+        tidToLogBytes.remove(tid.getId());
+        force(publish(r));
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        commits appended concurrently; see the group commit note above.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        LogBuffer.Record r = reserve(INT_SIZE + 2 * LONG_SIZE);
+        r.putInt(COMMIT_RECORD);
+        r.putLong(tid.getId());
+        r.putLong(r.start);
+        // a checkpoint must not list us once our commit record is logged
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLogBytes.remove(tid.getId());
+        force(publish(r));
+    }
+
+    /** Force the log to disk up to the given LSN, sharing the force
+        with concurrent commits; returns at once if it already is.
+
+        @param upToLsn The log must be durable up to here
+    */
+    public void force(long upToLsn) throws IOException {
+        boolean interrupted = false;
+        synchronized (this) {
+            try {
+                while (durableLsn < upToLsn) {
+                    if (!flushing) {
+                        flushing = true;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            if (durableLsn >= upToLsn)
+                return;
+        }
+
+        // we are the flusher; let more commits join the batch
+        if (groupWindowNanos > 0)
+            LockSupport.parkNanos(groupWindowNanos);
+        long target = -1;
+        // appenders go on meanwhile; truncation waits for us
+        appendLock.readLock().lock();
+        try {
+            log.awaitPublished(Math.min(upToLsn - truncated, log.offset()));
+            long drained = log.drain();
+            log.channel().force(true);
+            target = drained + truncated;
+        } finally {
+            appendLock.readLock().unlock();
+            // only now: a checkpoint holding this may be waiting for
+            // the append lock
+            synchronized (this) {
+                flushing = false;
+                if (target >= 0) {
+                    forces++;
+                    durableLsn = Math.max(durableLsn, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** @return the number of forces made by group commit */
+    synchronized long getForceCount() {
+        return forces;
+    }
+
+    /** @return true if the transaction has begun and logs its updates */
+    public boolean isLogged(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** @return the bytes of update records written so far by a live
+        transaction, 0 if none
+    */
+    public long logBytesWritten(TransactionId tid) {
+        Long n = tidToLogBytes.get(tid.getId());
+        return n == null ? 0 : n;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page
+        was logged since the last checkpoint, and before is the page
+        logged last, write a DELTA record of the bytes that changed
+        instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + log.offset());
+        preAppend();
+        // a checkpoint must not come between choosing the record type
+        // and appending the record
+        appendLock.readLock().lock();
+        try {
+            // serialize the pages before reserving, so the copy cannot fail
+            byte[] beforeBytes = before.getPageData();
+            byte[] afterBytes = after.getPageData();
+            byte[] beforeData = pageData(before, beforeBytes);
+            byte[] afterData = pageData(after, afterBytes);
+            int size = INT_SIZE + LONG_SIZE + beforeData.length + afterData.length + LONG_SIZE;
+
+            // a delta must start from the page redo will have built
+            Long last = logged.put(after.getId(), checksum(afterBytes));
+            PageDelta delta = last == null || last != checksum(beforeBytes) ? null
+                    : PageDelta.diff(beforeBytes, afterBytes);
+            byte[] pid = null;
+            if (delta != null) {
+                pid = pageId(after.getId());
+                int deltaSize = INT_SIZE + LONG_SIZE + pid.length + delta.size() + LONG_SIZE;
+                if (deltaSize < size)
+                    size = deltaSize;
+                else
+                    delta = null;
+            }
+
+            LogBuffer.Record r = reserve(size);
+            if (delta == null) {
+                /* update record conists of
+
+                   record type
+                   transaction id
+                   before page data (see writePageData)
+                   after page data
+                   start offset
+                */
+                r.putInt(UPDATE_RECORD);
+                r.putLong(tid.getId());
+
+                r.put(beforeData);
+                r.put(afterData);
+            } else {
+                r.putInt(DELTA_RECORD);
+                r.putLong(tid.getId());
+                r.put(pid);
+                r.put(delta.serialize());
+            }
+            r.putLong(r.start);
+            tidToLogBytes.merge(tid.getId(), (long) size, Long::sum);
+            long lsn = publish(r);
+
+            Debug.log("WRITE OFFSET = " + r.end);
+            return lsn;
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** Write a CLR record: the update at the given offset was undone,
+        restoring the page to p.
+
+        @return the LSN of the end of the record
+    */
+    private long logCompensation(long tid, Page p, long undone) throws IOException {
+        preAppend();
+        byte[] data = p.getPageData();
+        byte[] page = pageData(p, data);
+        LogBuffer.Record r = reserve(INT_SIZE + LONG_SIZE + page.length + 2 * LONG_SIZE);
+        r.putInt(CLR_RECORD);
+        r.putLong(tid);
+        r.put(page);
+        r.putLong(undone);
+        r.putLong(r.start);
+        logged.put(p.getId(), checksum(data));
+        return publish(r);
+    }
+
+    /** Write an INDEX record: tid inserted t into a B+ tree leaf, or
+        deleted it from one, which data holds as it is now.  The caller
+        holds the latch of the leaf.
+
+        @return the LSN of the record, which names it in the CLR of its
+        undo
+    */
+    public long logIndex(TransactionId tid, boolean inserted, Tuple t, Page leaf, byte[] data)
+        throws IOException {
+        preAppend();
+        byte[] page = pageData(leaf, data);
+        byte[] tuple = tupleData(t);
+        LogBuffer.Record r = reserve(INT_SIZE + LONG_SIZE + INT_SIZE + page.length
+                + INT_SIZE + tuple.length + LONG_SIZE);
+        r.putInt(INDEX_RECORD);
+        r.putLong(tid.getId());
+        r.putInt(inserted ? 1 : 0);
+        r.put(page);
+        r.putInt(tuple.length);
+        r.put(tuple);
+        r.putLong(r.start);
+        long lsn = r.start + truncated;
+        logged.put(leaf.getId(), checksum(data));
+        publish(r);
+        return lsn;
+    }
+
+    /** Write a CLR record: the INDEX record with the given LSN was undone,
+        leaving the leaf as data holds it.  The caller holds the latch of
+        the leaf.
+    */
+    public void logIndexUndo(TransactionId tid, Page leaf, byte[] data, long undone)
+        throws IOException {
+        preAppend();
+        byte[] page = pageData(leaf, data);
+        LogBuffer.Record r = reserve(INT_SIZE + LONG_SIZE + page.length + 2 * LONG_SIZE);
+        r.putInt(CLR_RECORD);
+        r.putLong(tid.getId());
+        r.put(page);
+        r.putLong(undone - truncated);
+        r.putLong(r.start);
+        logged.put(leaf.getId(), checksum(data));
+        publish(r);
+    }
+
+    /** Write a STRUCTURE record: a B+ tree split or merge left pages as
+        data holds them.  The caller keeps the leaves among them latched,
+        since other transactions go on changing them.
+    */
+    public void logStructure(TransactionId tid, List<Page> pages, List<byte[]> data)
+        throws IOException {
         preAppend();
-        /* update record conists of
+        ArrayList<byte[]> images = new ArrayList<byte[]>();
+        int size = INT_SIZE + LONG_SIZE + INT_SIZE + LONG_SIZE;
+        for (int i = 0; i < pages.size(); i++) {
+            images.add(pageData(pages.get(i), data.get(i)));
+            size += images.get(i).length;
+        }
+        LogBuffer.Record r = reserve(size);
+        r.putInt(STRUCTURE_RECORD);
+        r.putLong(tid.getId());
+        r.putInt(images.size());
+        for (byte[] image : images)
+            r.put(image);
+        r.putLong(r.start);
+        for (int i = 0; i < pages.size(); i++)
+            logged.put(pages.get(i).getId(), checksum(data.get(i)));
+        publish(r);
+    }
+
+    /** @return the fields of t, serialized */
+    private static byte[] tupleData(Tuple t) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.getField(i).serialize(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** @return the tuple tupleData() serialized */
+    private static Tuple readTuple(TupleDesc td, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(in));
+        } catch (java.text.ParseException e) {
+            throw new IOException(e);
+        }
+        return t;
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /** @return a checksum of page data, to tell whether it is the page
+        last logged */
+    static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue() << 32 | (Arrays.hashCode(data) & 0xffffffffL);
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    void writePageData(DataOutput out, Page p) throws IOException{
+        out.write(pageData(p, p.getPageData()));
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** @return pid serialized as in page data: class name, then its ints */
+    byte[] pageId(PageId pid) {
+        int pageInfo[] = pid.serialize();
+        byte[] idName = LogBuffer.utf(pid.getClass().getName());
+        ByteBuffer out = ByteBuffer.allocate(idName.length + INT_SIZE * (pageInfo.length + 1));
+        out.put(idName);
+        out.putInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.putInt(pageInfo[i]);
+        }
+        return out.array();
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** @return p, whose data is pageData, serialized as writePageData writes it */
+    byte[] pageData(Page p, byte[] pageData) {
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -233,49 +629,92 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        byte[] pageName = LogBuffer.utf(pageClassName);
+        byte[] id = pageId(pid);
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        ByteBuffer out = ByteBuffer.allocate(pageName.length + id.length
+                + INT_SIZE + pageData.length);
+        out.put(pageName);
+        out.put(id);
+        out.putInt(pageData.length);
+        out.put(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        return out.array();
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
+    Page readPageData(DataInput raf) throws IOException {
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        return makePage(pageClassName, pid, pageData);
+    }
+
+    /** Read past page data written by writePageData() */
+    void skipPageData(DataInput in) throws IOException {
+        in.readUTF();
+        in.readUTF();
+        skip(in, in.readInt() * INT_SIZE);
+        skip(in, in.readInt());
+    }
 
+    private static void skip(DataInput in, int n) throws IOException {
+        if (in.skipBytes(n) != n)
+            throw new EOFException();
+    }
+
+    /** Read a page id written by pageId() */
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = new Integer(in.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** @return the page of the named class with the given id and data */
+    Page makePage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        Page newPage = null;
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            // the (PageId, byte[]) constructor; pages may have others
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    pageConst = c;
+            }
+            if (pageConst == null)
+                throw new IOException("no page constructor for " + pageClassName);
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,11 +734,25 @@ public class LogFile {
 
     }
 
+    /** @return p with the change of a DELTA record applied */
+    Page redo(Page p, PageDelta delta) throws IOException {
+        byte[] data = p.getPageData();
+        delta.redo(data);
+        return makePage(p.getClass().getName(), p.getId(), data);
+    }
+
+    /** @return p with the change of a DELTA record taken back */
+    Page undo(Page p, PageDelta delta) throws IOException {
+        byte[] data = p.getPageData();
+        delta.undo(data);
+        return makePage(p.getClass().getName(), p.getId(), data);
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,50 +760,66 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        LogBuffer.Record r = reserve(INT_SIZE + 2 * LONG_SIZE);
+        r.putInt(BEGIN_RECORD);
+        r.putLong(tid.getId());
+        r.putLong(r.start);
+        // before publishing, so a checkpoint cannot miss us
+        tidToFirstLogRecord.put(tid.getId(), r.start);
+        publish(r);
+
+        Debug.log("BEGIN OFFSET = " + r.end);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
+        // write back committed pages first, outside the locks, so that
+        // flushAllPages below has little left to do while holding them
+        Database.getBufferPool().flushCommittedPages();
+        // the buffer pool lock first: flushAllPages takes it while we hold
+        // the append lock exclusively, and a commit holding it may be
+        // waiting to append; it also keeps commits and steals from writing
+        // pages between the flush and the checkpoint record
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                // no records in flight while we list the live transactions
+                appendLock.writeLock().lock();
+                try {
+                    long startCpOffset;
+                    Set<Long> keys = new HashSet<Long>(tidToFirstLogRecord.keySet());
+                    Iterator<Long> els = keys.iterator();
+                    force();
+                    Database.getBufferPool().flushAllPages();
+                    // updates after the checkpoint log their pages whole first
+                    logged.clear();
+                    LogBuffer.Record r = reserve(INT_SIZE + LONG_SIZE + INT_SIZE
+                            + 2 * LONG_SIZE * keys.size() + LONG_SIZE);
+                    startCpOffset = r.start;
+                    r.putInt(CHECKPOINT_RECORD);
+                    r.putLong(-1); //no tid , but leave space for convenience
+
+                    //write list of outstanding transactions
+                    r.putInt(keys.size());
+                    while (els.hasNext()) {
+                        Long key = els.next();
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                        r.putLong(key);
+                        //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                        r.putLong(tidToFirstLogRecord.get(key));
+                    }
+                    r.putLong(startCpOffset);
+                    publish(r);
+
+                    //once the CP is on disk, make sure the CP location at the
+                    // beginning of the log file is updated
+                    force();
+                    log.writeLongAt(0, startCpOffset);
+                    //Debug.log("CP OFFSET = " + r.end);
+                } finally {
+                    appendLock.writeLock().unlock();
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
 
@@ -361,6 +830,17 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        // no appender or flusher may use the old file meanwhile
+        appendLock.writeLock().lock();
+        try {
+            truncate();
+        } finally {
+            appendLock.writeLock().unlock();
+        }
+    }
+
+    private void truncate() throws IOException {
+        log.drain();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -390,9 +870,9 @@ public class LogFile {
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        FileOutputStream logNew = new FileOutputStream(newFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(logNew, 1 << 16));
+        out.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
         raf.seek(minLogRecord);
 
@@ -401,38 +881,60 @@ public class LogFile {
             try {
                 int type = raf.readInt();
                 long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                long newStart = out.size();
 
                 Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                out.writeInt(type);
+                out.writeLong(record_tid);
 
                 switch (type) {
                 case UPDATE_RECORD:
                     Page before = readPageData(raf);
                     Page after = readPageData(raf);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    writePageData(out, before);
+                    writePageData(out, after);
+                    break;
+                case DELTA_RECORD:
+                    out.write(pageId(readPageId(raf)));
+                    out.write(PageDelta.read(raf).serialize());
+                    break;
+                case CLR_RECORD:
+                    writePageData(out, readPageData(raf));
+                    out.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    break;
+                case INDEX_RECORD:
+                    out.writeInt(raf.readInt());
+                    writePageData(out, readPageData(raf));
+                    byte[] tuple = readBytes(raf);
+                    out.writeInt(tuple.length);
+                    out.write(tuple);
+                    break;
+                case STRUCTURE_RECORD:
+                    int numPages = raf.readInt();
+                    out.writeInt(numPages);
+                    while (numPages-- > 0)
+                        writePageData(out, readPageData(raf));
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    out.writeInt(numXactions);
                     while (numXactions-- > 0) {
                         long xid = raf.readLong();
                         long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        out.writeLong(xid);
+                        out.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    // only for live transactions
+                    tidToFirstLogRecord.replace(record_tid, newStart);
                     break;
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
+                out.writeLong(newStart);
                 raf.readLong();
 
             } catch (EOFException e) {
@@ -442,14 +944,21 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        // the old log was durable up to durableLsn; make all of the new one so
+        out.flush();
+        logNew.getChannel().force(true);
+        out.close();
+
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        long end = raf.length();
+        log.reset(raf.getChannel(), end);
+        truncated += minLogRecord - LONG_SIZE;
+        durableLsn = end + truncated;
         //print();
     }
 
@@ -463,11 +972,139 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
+        // the buffer pool lock keeps flushPage and flushAllPages, which
+        // hold it, from stealing a page of tid between the scan of its
+        // updates and the discard of the restored pages: the steal would
+        // log an update no compensation covers
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                // make the file hold our records
+                force();
+                long end = log.drainedOffset();
+
+                ArrayList<Long> updates = new ArrayList<Long>();
+                try (LogReader in = new LogReader(first)) {
+                    while (in.offset() < end) {
+                        int type = in.readInt();
+                        long record_tid = in.readLong();
+                        long start = in.offset() - INT_SIZE - LONG_SIZE;
+                        boolean ours = record_tid == tid.getId();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                            skipPageData(in);
+                            skipPageData(in);
+                            if (ours)
+                                updates.add(start);
+                            break;
+                        case DELTA_RECORD:
+                            readPageId(in);
+                            PageDelta.read(in);
+                            if (ours)
+                                updates.add(start);
+                            break;
+                        case CLR_RECORD:
+                            skipPageData(in);
+                            long undone = in.readLong();
+                            if (ours)
+                                updates.remove(Long.valueOf(undone));
+                            break;
+                        case INDEX_RECORD:
+                            // taken back by its B+ tree, see BufferPool.rollbackIndexes
+                            in.readInt();
+                            skipPageData(in);
+                            skip(in, in.readInt());
+                            break;
+                        case STRUCTURE_RECORD:
+                            for (int n = in.readInt(); n > 0; n--)
+                                skipPageData(in);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skip(in, in.readInt() * 2 * LONG_SIZE);
+                            break;
+                        }
+                        in.readLong();
+                    }
+                }
+
+                // the disk holds what the log describes: pages are logged
+                // when they are written
+                Map<PageId,Page> pages = new HashMap<PageId,Page>();
+                undoUpdates(tid.getId(), updates, pages);
+                force();
+                for (Page p : pages.values()) {
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(p.getId());
+                }
+            }
+        }
+    }
+
+    /** Undo updates of a transaction, the last first, logging a CLR for
+        each.
+
+        @param updates offsets of UPDATE and DELTA records
+        @param pages the pages undone so far; updated
+    */
+    private void undoUpdates(long tid, List<Long> updates, Map<PageId,Page> pages)
+        throws IOException {
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            long offset = updates.get(i);
+            raf.seek(offset);
+            int type = raf.readInt();
+            raf.readLong();
+            Page restored;
+            if (type == UPDATE_RECORD) {
+                restored = readPageData(raf);
+            } else if (type == DELTA_RECORD) {
+                PageId pid = readPageId(raf);
+                PageDelta delta = PageDelta.read(raf);
+                Page p = pages.get(pid);
+                if (p == null)
+                    p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                restored = undo(p, delta);
+            } else {
+                throw new IOException("record at " + offset + " is not an update");
             }
+            pages.put(restored.getId(), restored);
+            logCompensation(tid, restored, offset);
+        }
+    }
+
+    /** Undo the INDEX record at offset, written by a loser, through its
+        B+ tree, which logs a CLR for it.
+
+        @param leaves the leaves undone so far, pinned; updated
+    */
+    private void undoIndex(long tid, long offset, HashMap<PageId,Page> leaves)
+        throws IOException {
+        raf.seek(offset + INT_SIZE + LONG_SIZE);
+        boolean inserted = raf.readInt() == 1;
+        raf.readUTF();
+        PageId pid = readPageId(raf);
+        skip(raf, raf.readInt());
+        byte[] tuple = readBytes(raf);
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+        // logged while it is undone, so that the CLR is written
+        tidToFirstLogRecord.putIfAbsent(tid, offset);
+        file.undo(new TransactionId(tid), inserted, readTuple(file.getTupleDesc(), tuple),
+                offset + truncated, leaves);
+    }
+
+    /** Page data of a record, as read for redo. */
+    private class PageImage {
+        final String pageClass;
+        final PageId pid;
+        final byte[] data;
+
+        PageImage(DataInput in) throws IOException {
+            pageClass = in.readUTF();
+            pid = readPageId(in);
+            data = readBytes(in);
         }
     }
 
@@ -477,7 +1114,10 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            // remember what was cached, for a warm restart
+            Database.getBufferPool().saveState();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            log.drain();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -488,14 +1128,265 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The buffer pool is then warmed up, from the recovered pages.
     */
     public void recover() throws IOException {
+        // the buffer pool lock first: undoing a B+ tree loser writes its
+        // pages through writeIndexPages, which takes it, while we hold
+        // the append lock exclusively; nothing else runs during recovery
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                long started = System.nanoTime();
+                appendLock.writeLock().lock();
+                try {
+                    recoverLog();
+                } finally {
+                    appendLock.writeLock().unlock();
+                }
+                recoveryMillis = (System.nanoTime() - started) / 1000000;
+                Debug.log("RECOVERED IN " + recoveryMillis + " MS: " + recordsRedone
+                        + " RECORDS REDONE, " + recordsUndone + " UNDONE");
+                // so the next restart starts from here
+                if (recordsRedone + recordsUndone > 0)
+                    logCheckpoint();
             }
          }
+        Database.getBufferPool().warmUp();
+    }
+
+    private void recoverLog() throws IOException {
+        recordsRedone = 0;
+        recordsUndone = 0;
+        if (raf.length() < LONG_SIZE) {
+            // nothing was ever logged
+            raf.setLength(0);
+            raf.seek(0);
+            raf.writeLong(NO_CHECKPOINT_ID);
+            log.reset(raf.getChannel(), raf.length());
+            return;
+        }
+
+        // analysis: the checkpoint lists the transactions live then
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        long redoFrom = LONG_SIZE;
+        long scanFrom = LONG_SIZE;
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            raf.seek(cpLoc);
+            if (raf.readInt() != CHECKPOINT_RECORD)
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            raf.readLong();
+            redoFrom = scanFrom = cpLoc;
+            int numOutstanding = raf.readInt();
+            for (int i = 0; i < numOutstanding; i++) {
+                raf.readLong();
+                scanFrom = Math.min(scanFrom, raf.readLong());
+            }
+        }
+
+        // redo from the checkpoint; find the losers from their first record
+        Map<Long,List<Long>> losers = new HashMap<Long,List<Long>>();
+        ParallelRedo redo = ParallelRedo.fromProperties(this);
+        long end = scanFrom;
+        try (LogReader in = new LogReader(scanFrom)) {
+            while (true) {
+                long start = in.offset();
+                int type;
+                long tid;
+                ArrayList<PageImage> images = new ArrayList<PageImage>();
+                PageId pid = null;
+                PageDelta delta = null;
+                long undone = -1;
+                try {
+                    type = in.readInt();
+                    tid = in.readLong();
+                    boolean redone = start >= redoFrom;
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        skipPageData(in);
+                        if (redone)
+                            images.add(new PageImage(in));
+                        else
+                            skipPageData(in);
+                        break;
+                    case CLR_RECORD:
+                        PageImage restored = new PageImage(in);
+                        // B+ tree pages are redone from the first record
+                        if (redone || restored.pid instanceof BTreePageId)
+                            images.add(restored);
+                        undone = in.readLong();
+                        break;
+                    case INDEX_RECORD:
+                        in.readInt();
+                        images.add(new PageImage(in));
+                        skip(in, in.readInt());
+                        break;
+                    case STRUCTURE_RECORD:
+                        for (int n = in.readInt(); n > 0; n--)
+                            images.add(new PageImage(in));
+                        break;
+                    case DELTA_RECORD:
+                        pid = readPageId(in);
+                        delta = PageDelta.read(in);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        skip(in, in.readInt() * 2 * LONG_SIZE);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                    case BEGIN_RECORD:
+                        break;
+                    default:
+                        Debug.log("TORN RECORD AT " + start + ": TYPE " + type);
+                        break;
+                    }
+                    if (type < ABORT_RECORD || type > STRUCTURE_RECORD || in.readLong() != start)
+                        break;
+                } catch (IOException | RuntimeException e) {
+                    // cut short, or garbage the write never finished
+                    Debug.log("TORN RECORD AT " + start + ": " + e);
+                    break;
+                }
+                end = in.offset();
+
+                // the record is whole
+                for (PageImage image : images)
+                    redo.image(image.pageClass, image.pid, image.data);
+                if (delta != null && start >= redoFrom)
+                    redo.delta(pid, delta);
+                switch (type) {
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                case INDEX_RECORD:
+                    losers.computeIfAbsent(tid, k -> new ArrayList<Long>()).add(start);
+                    break;
+                case CLR_RECORD:
+                    if (losers.containsKey(tid))
+                        losers.get(tid).remove(Long.valueOf(undone));
+                    break;
+                case BEGIN_RECORD:
+                    losers.computeIfAbsent(tid, k -> new ArrayList<Long>());
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    losers.remove(tid);
+                    break;
+                }
+            }
+        } finally {
+            recordsRedone = redo.finish();
+        }
+        if (end < raf.length()) {
+            // cut off a record the crash tore
+            Debug.log("TRUNCATING TORN LOG TAIL AT " + end + " OF " + raf.length());
+            raf.setLength(end);
+        }
+        log.reset(raf.getChannel(), end);
+        raf.getChannel().force(true);
+
+        // undo the losers' updates, the last first
+        TreeMap<Long,Long> updates = new TreeMap<Long,Long>();
+        for (Map.Entry<Long,List<Long>> e : losers.entrySet())
+            for (long offset : e.getValue())
+                updates.put(offset, e.getKey());
+        Map<PageId,Page> pages = new HashMap<PageId,Page>();
+        HashMap<PageId,Page> leaves = new HashMap<PageId,Page>();
+        for (Map.Entry<Long,Long> e : updates.descendingMap().entrySet()) {
+            raf.seek(e.getKey());
+            if (raf.readInt() == INDEX_RECORD)
+                undoIndex(e.getValue(), e.getKey(), leaves);
+            else
+                undoUpdates(e.getValue(), Collections.singletonList(e.getKey()), pages);
+        }
+        recordsUndone = updates.size();
+        force();
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            Database.getBufferPool().discardPage(p.getId());
+        }
+        BufferPool bp = Database.getBufferPool();
+        bp.writeIndexPages(leaves.values());
+        for (long tid : losers.keySet()) {
+            // releases what undoIndex pinned and locked
+            bp.transactionComplete(new TransactionId(tid), false);
+        }
+        for (long tid : losers.keySet()) {
+            LogBuffer.Record r = reserve(INT_SIZE + 2 * LONG_SIZE);
+            r.putInt(ABORT_RECORD);
+            r.putLong(tid);
+            r.putLong(r.start);
+            publish(r);
+        }
+        force();
+        tidToFirstLogRecord.clear();
+        tidToLogBytes.clear();
+    }
+
+    /** @return bytes written as an int count, then the bytes */
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    /** @return the milliseconds the last recovery took */
+    public synchronized long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /** @return the number of records the last recovery redid */
+    public synchronized long getRecordsRedone() {
+        return recordsRedone;
+    }
+
+    /** @return the number of updates the last recovery undid */
+    public synchronized long getRecordsUndone() {
+        return recordsUndone;
+    }
+
+    /** Reads the log file from an offset, through a buffer of its own. */
+    private class LogReader extends DataInputStream {
+        LogReader(long offset) throws IOException {
+            super(new Position(new FileInputStream(logFile), offset));
+        }
+
+        /** @return the offset of the next byte to read */
+        long offset() {
+            return ((Position) in).offset;
+        }
+    }
+
+    /** Counts the bytes read; never skips past the end of the file. */
+    private static class Position extends FilterInputStream {
+        long offset;
+
+        Position(FileInputStream file, long offset) throws IOException {
+            super(new BufferedInputStream(file, 1 << 16));
+            file.getChannel().position(offset);
+            this.offset = offset;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                offset++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                offset += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[(int) Math.min(n, 1 << 12)];
+            int read = read(scratch, 0, scratch.length);
+            return Math.max(read, 0);
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1394,36 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything appended so far to disk, including records
+        appended concurrently that are still being serialized. */
+    public void force() throws IOException {
+        long target;
+        appendLock.readLock().lock();
+        try {
+            log.awaitPublished(log.offset());
+            target = log.drain() + truncated;
+            log.channel().force(true);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+        synchronized (this) {
+            durableLsn = Math.max(durableLsn, target);
+        }
+    }
+
+    /** @return the LSN the next record appended will start at */
+    public long getCurrentLsn() {
+        appendLock.readLock().lock();
+        try {
+            return log.offset() + truncated;
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    public synchronized long getDurableLsn() {
+        return durableLsn;
     }
 
 }
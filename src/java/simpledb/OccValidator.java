@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bookkeeping for optimistic concurrency control, the BufferPool's
+ * alternative to {@link Lock} when {@value BufferPool#CONCURRENCY_PROPERTY}
+ * is "occ". Transactions take no locks. Each committed page carries a
+ * version, the number of the commit that last wrote it, and a transaction
+ * records the version of every page it reads. Pages it writes are private
+ * copies nobody else sees until it commits.
+ * <p>
+ * At commit the transaction is validated: if any page it read has been
+ * committed by someone else since, it aborts. Otherwise its copies are
+ * installed and their versions bumped. Validation and installation of one
+ * commit are not interleaved with another's (the BufferPool serializes
+ * them), so committed transactions are serializable at page granularity.
+ * A transaction's versions are recorded before it reads the page, and a
+ * page is installed before its version is bumped, so a reader can only
+ * see a version older than the page it got, never a newer one.
+ *
+ * @Threadsafe
+ */
+public class OccValidator {
+
+    /** Read and write set of one transaction; used by its own thread. */
+    private static class TxState {
+        final Map<PageId, Long> reads = new HashMap<>();
+        final Map<PageId, Page> writes = new LinkedHashMap<>();
+    }
+
+    private final ConcurrentHashMap<PageId, Long> versions; // pages committed since startup
+    private final ConcurrentHashMap<TransactionId, TxState> txs;
+    private long commits;   // guarded by the caller's commit serialization
+
+    public OccValidator() {
+        versions = new ConcurrentHashMap<>();
+        txs = new ConcurrentHashMap<>();
+    }
+
+    private TxState state(TransactionId tid) {
+        return txs.computeIfAbsent(tid, k -> new TxState());
+    }
+
+    /** Record that tid is about to read the committed version of a page. */
+    void read(TransactionId tid, PageId pid) {
+        TxState tx = state(tid);
+        synchronized (tx) {
+            tx.reads.putIfAbsent(pid, versions.getOrDefault(pid, 0L));
+        }
+    }
+
+    /** @return tid's private copy of a page, or null if it has not written it */
+    Page written(TransactionId tid, PageId pid) {
+        TxState tx = txs.get(tid);
+        if (tx == null)
+            return null;
+        synchronized (tx) {
+            return tx.writes.get(pid);
+        }
+    }
+
+    /** Make page tid's private copy, to be installed if tid commits. */
+    void write(TransactionId tid, Page page) {
+        TxState tx = state(tid);
+        synchronized (tx) {
+            tx.writes.put(page.getId(), page);
+        }
+    }
+
+    /**
+     * Check that nothing tid read has been committed since; the caller
+     * serializes commits. A transaction that passes starts over with empty
+     * read and write sets.
+     *
+     * @return the pages to install
+     * @throws TransactionAbortedException if tid conflicts with a commit
+     */
+    Collection<Page> validate(TransactionId tid) throws TransactionAbortedException {
+        TxState tx = txs.get(tid);
+        if (tx == null)
+            return Collections.emptyList();
+        synchronized (tx) {
+            for (Map.Entry<PageId, Long> r : tx.reads.entrySet())
+                if (versions.getOrDefault(r.getKey(), 0L) != r.getValue().longValue())
+                    throw new TransactionAbortedException();
+            List<Page> pages = new ArrayList<>(tx.writes.values());
+            tx.reads.clear();
+            tx.writes.clear();
+            return pages;
+        }
+    }
+
+    /** @return the number for a commit that passed validation */
+    long nextCommit() {
+        return ++commits;
+    }
+
+    /** A page of the commit has been installed; bump its version. */
+    void installed(PageId pid, long commit) {
+        versions.put(pid, commit);
+    }
+
+    /** Forget the read and write set of a completed transaction. */
+    void end(TransactionId tid) {
+        if (tid != null)
+            txs.remove(tid);
+    }
+}
@@ -56,4 +56,69 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the latch guarding the contents of this page while they are
+     * read or modified; unrelated to the transactional locks.
+     */
+    public PageLatch getLatch();
+
+    /**
+     * Return true if tid has changed this page and not committed yet. By
+     * default a page is changed by one transaction at a time, the one
+     * {@link #isDirty} names.
+     */
+    public default boolean isDirtiedBy(TransactionId tid) {
+        return tid != null && tid.equals(isDirty());
+    }
+
+    /**
+     * Return the page as it must be written when tid commits: with the
+     * changes of tid, without those other transactions have not committed
+     * yet. By default this page itself.
+     */
+    public default Page committedImage(TransactionId tid) {
+        return this;
+    }
+
+    /**
+     * The changes of tid were committed: they become part of the before
+     * image, and the page is clean unless other transactions still have
+     * changes on it.
+     */
+    public default void markCommitted(TransactionId tid) {
+        setBeforeImage();
+        markDirty(false, null);
+    }
+
+    /**
+     * Undo the changes of an aborting transaction in place, if this page
+     * knows what they were.
+     *
+     * @return false if the caller must put back the committed version of
+     *         the whole page instead, as by default
+     */
+    public default boolean rollback(TransactionId tid) {
+        return false;
+    }
+
+    /**
+     * Return the page as it may be written to disk before its changes are
+     * committed: by default this page itself, whose changes the caller
+     * logs first, or a copy without any uncommitted change when they
+     * cannot be undone from the log alone.
+     */
+    public default Page steal() {
+        return this;
+    }
+
+    /**
+     * Return true if the file of this page logs every change to it, with
+     * the page as changed, when it makes the change; BufferPool then logs
+     * nothing for the page before writing it, and only forces the log.
+     * False by default.
+     */
+    public default boolean logsChanges() {
+        return false;
+    }
 }
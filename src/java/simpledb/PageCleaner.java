@@ -0,0 +1,107 @@
+package simpledb;
+
+/**
+ * Background writer for the BufferPool in write-back mode. Committed pages
+ * stay in the pool with their committed version still to be written; the
+ * cleaner writes them ahead of demand so that eviction almost always finds
+ * a clean victim instead of having to write one itself.
+ * <p>
+ * Each round the cleaner tops up the share of frames that could be evicted
+ * right away to the target clean ratio ({@value #CLEAN_RATIO_PROPERTY},
+ * default {@value #DEFAULT_CLEAN_RATIO}), writing at most
+ * {@value #IO_RATE_PROPERTY} pages per second (default
+ * {@value #DEFAULT_IO_RATE}). A thread that found no clean victim can wake
+ * the cleaner early.
+ *
+ * @see BufferPool
+ */
+public class PageCleaner extends Thread {
+
+    /** System property for the fraction of frames to keep evictable. */
+    public static final String CLEAN_RATIO_PROPERTY = "simpledb.cleaner.cleanratio";
+    /** System property for the maximum pages written per second. */
+    public static final String IO_RATE_PROPERTY = "simpledb.cleaner.pagespersecond";
+
+    static final double DEFAULT_CLEAN_RATIO = 0.25;
+    static final int DEFAULT_IO_RATE = 2000;
+
+    /** Time between rounds when nobody asks for clean pages. */
+    private static final long ROUND_MILLIS = 20;
+
+    private final BufferPool pool;
+    private final double cleanRatio;
+    private final double pagesPerNano;
+    private final double maxBurst;
+    private boolean requested;      // guarded by this
+    private volatile boolean stopped;
+
+    /**
+     * @param pool the buffer pool to clean
+     * @param cleanRatio fraction of the pool to keep evictable
+     * @param pagesPerSecond maximum write rate
+     */
+    public PageCleaner(BufferPool pool, double cleanRatio, int pagesPerSecond) {
+        super("simpledb-page-cleaner");
+        if (cleanRatio < 0 || cleanRatio > 1 || pagesPerSecond <= 0)
+            throw new IllegalArgumentException("bad page cleaner settings");
+        this.pool = pool;
+        this.cleanRatio = cleanRatio;
+        this.pagesPerNano = pagesPerSecond / 1e9;
+        // let a quiet cleaner save up at most a tenth of a second of writes
+        this.maxBurst = Math.max(1.0, pagesPerSecond / 10.0);
+        setDaemon(true);
+    }
+
+    /**
+     * Create a cleaner configured from the system properties.
+     */
+    static PageCleaner fromProperties(BufferPool pool) {
+        double ratio = DEFAULT_CLEAN_RATIO;
+        String r = System.getProperty(CLEAN_RATIO_PROPERTY);
+        if (r != null)
+            ratio = Double.parseDouble(r);
+        return new PageCleaner(pool, ratio,
+                Integer.getInteger(IO_RATE_PROPERTY, DEFAULT_IO_RATE));
+    }
+
+    /** Ask for a round now, e.g. because eviction found no clean page. */
+    public synchronized void wake() {
+        requested = true;
+        notify();
+    }
+
+    /** Stop the cleaner; pages it has not written stay pending. */
+    public void shutdown() {
+        stopped = true;
+        interrupt();
+    }
+
+    public void run() {
+        double tokens = 0;
+        long last = System.nanoTime();
+        while (!stopped) {
+            try {
+                synchronized (this) {
+                    if (!requested)
+                        wait(ROUND_MILLIS);
+                    requested = false;
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(tokens + (now - last) * pagesPerNano, maxBurst);
+            last = now;
+
+            int wanted = pool.cleanDeficit(cleanRatio);
+            int budget = Math.min(wanted, (int) tokens);
+            if (budget > 0) {
+                try {
+                    tokens -= pool.writeBack(budget);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The bytes of a page that an update changed: for each changed range, its
+ * offset in the page data and its bytes before and after. Inserting a
+ * tuple into a heap page changes a header bit and the tuple's slot, so its
+ * delta is a few dozen bytes where the two page images are two pages.
+ * Ranges closer than {@value #GAP} bytes are merged, since each range costs
+ * that much to describe.
+ * <p>
+ * {@link #redo} applies the change to page data holding the before image,
+ * {@link #undo} takes it back from page data holding the after image.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Unchanged bytes worth one range header. */
+    static final int GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the changes from before to after, or null if the two do not
+     *         have the same length
+     */
+    static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            return null;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;    // exclusive end of the changes so far
+            for (i = end; i < before.length && i - end < GAP; i++) {
+                if (before[i] != after[i])
+                    end = i + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            b[r] = Arrays.copyOfRange(before, start, end);
+            a[r] = Arrays.copyOfRange(after, start, end);
+        }
+        return new PageDelta(offsets, b, a);
+    }
+
+    /** @return the number of changed ranges */
+    int ranges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes {@link #serialize} returns */
+    int size() {
+        int n = 4;
+        for (byte[] b : before)
+            n += 8 + 2 * b.length;
+        return n;
+    }
+
+    /**
+     * @return the delta as a count of ranges, then for each an offset, a
+     *         length and the bytes before and after
+     */
+    byte[] serialize() {
+        ByteBuffer out = ByteBuffer.allocate(size());
+        out.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.putInt(offsets[r]);
+            out.putInt(before[r].length);
+            out.put(before[r]);
+            out.put(after[r]);
+        }
+        return out.array();
+    }
+
+    /** Read a delta written by {@link #serialize}. */
+    static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] b = new byte[n][];
+        byte[][] a = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            b[r] = new byte[length];
+            in.readFully(b[r]);
+            a[r] = new byte[length];
+            in.readFully(a[r]);
+        }
+        return new PageDelta(offsets, b, a);
+    }
+
+    /** Apply the change to page data holding the before image. */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /** Take the change back from page data holding the after image. */
+    void undo(byte[] data) {
+        for (int r = offsets.length - 1; r >= 0; r--)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+}
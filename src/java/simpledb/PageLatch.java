@@ -0,0 +1,50 @@
+package simpledb;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Short-term latch of one resident page, held only while the page's
+ * contents are physically read or modified. Unlike the transactional locks
+ * of {@link Lock} it is never held across operator calls, and it protects
+ * the in-memory structure of the page, not the transaction's view of the
+ * data: the page methods that change it take it exclusively, the ones that
+ * decode it read optimistically.
+ * <p>
+ * Latches are not reentrant; a page method that holds its latch must only
+ * call unlatched helpers of the page.
+ *
+ * @see Page#getLatch
+ */
+public final class PageLatch extends StampedLock {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Run a read of the page without blocking writers. If a writer got in
+     * meanwhile (the read may then have seen a torn state, or failed on
+     * it), the read is repeated under the shared latch.
+     *
+     * @param reader reads the page and returns what it found
+     * @return what reader returned from a consistent state of the page
+     */
+    public <T> T read(Supplier<T> reader) {
+        long stamp = tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T value = reader.get();
+                if (validate(stamp))
+                    return value;
+            } catch (RuntimeException e) {
+                if (validate(stamp))
+                    throw e;    // a genuine failure, not a torn read
+            }
+        }
+        stamp = readLock();
+        try {
+            return reader.get();
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The redo pass of recovery, spread over worker threads. Pages are
+ * partitioned by the hash of their id, so each page is replayed by one
+ * worker, in log order, and the pages of different workers independently.
+ * The reader only parses records; a worker applies them to the data of
+ * its pages, kept in memory, and writes the pages to their files at the
+ * end, or when it holds more than {@value #PAGES_PER_WORKER} of them.
+ * Written pages are dropped from the buffer pool.
+ * <p>
+ * {@value #THREADS_PROPERTY} sets the number of workers, the number of
+ * processors by default.
+ *
+ * @see LogFile#recover
+ */
+class ParallelRedo {
+
+    /** System property: number of redo workers. */
+    public static final String THREADS_PROPERTY = "simpledb.recovery.redothreads";
+
+    /** Records a worker may have queued. */
+    static final int QUEUE_SIZE = 1024;
+    /** Pages a worker keeps in memory. */
+    static final int PAGES_PER_WORKER = 1 << 12;
+
+    /** A record to replay: a whole page, or a change to one. */
+    private static class Redo {
+        final PageId pid;
+        final String pageClass;
+        final byte[] data;
+        final PageDelta delta;
+
+        Redo(PageId pid, String pageClass, byte[] data, PageDelta delta) {
+            this.pid = pid;
+            this.pageClass = pageClass;
+            this.data = data;
+            this.delta = delta;
+        }
+    }
+
+    private static final Redo DONE = new Redo(null, null, null, null);
+
+    private final LogFile log;
+    private final ArrayList<BlockingQueue<Redo>> queues = new ArrayList<BlockingQueue<Redo>>();
+    private final ArrayList<Thread> workers = new ArrayList<Thread>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final AtomicInteger pages = new AtomicInteger();
+    private long records;
+
+    /**
+     * Start the workers.
+     *
+     * @param log the log being recovered, which makes the pages
+     * @param threads number of workers
+     */
+    ParallelRedo(LogFile log, int threads) {
+        this.log = log;
+        for (int i = 0; i < Math.max(threads, 1); i++) {
+            BlockingQueue<Redo> queue = new ArrayBlockingQueue<Redo>(QUEUE_SIZE);
+            Thread t = new Thread(() -> replay(queue), "redo-" + i);
+            t.setDaemon(true);
+            queues.add(queue);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /** Start as many workers as {@value #THREADS_PROPERTY} says. */
+    static ParallelRedo fromProperties(LogFile log) {
+        return new ParallelRedo(log, Integer.getInteger(THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Replay a record holding the whole page, of the named class. */
+    void image(String pageClass, PageId pid, byte[] data) throws IOException {
+        submit(new Redo(pid, pageClass, data, null));
+    }
+
+    /** Replay a DELTA record. */
+    void delta(PageId pid, PageDelta delta) throws IOException {
+        submit(new Redo(pid, null, null, delta));
+    }
+
+    private void submit(Redo r) throws IOException {
+        rethrow();
+        records++;
+        BlockingQueue<Redo> queue = queues.get(Math.floorMod(r.pid.hashCode(), queues.size()));
+        try {
+            while (!queue.offer(r, 100, TimeUnit.MILLISECONDS))
+                rethrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        }
+    }
+
+    /**
+     * Wait for the workers to replay everything submitted and write their
+     * pages.
+     *
+     * @return the number of records replayed
+     */
+    long finish() throws IOException {
+        boolean interrupted = false;
+        try {
+            for (BlockingQueue<Redo> queue : queues) {
+                while (true) {
+                    try {
+                        queue.put(DONE);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            for (Thread t : workers) {
+                while (t.isAlive()) {
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        rethrow();
+        return records;
+    }
+
+    /** @return the number of page writes so far */
+    int pagesWritten() {
+        return pages.get();
+    }
+
+    private void rethrow() throws IOException {
+        Throwable t = failure.get();
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t instanceof UncheckedIOException)
+            throw ((UncheckedIOException) t).getCause();
+        if (t != null)
+            throw new IOException("redo failed", t);
+    }
+
+    /** The data of a page being replayed. */
+    private static class Image {
+        final String pageClass;
+        final byte[] data;
+
+        Image(String pageClass, byte[] data) {
+            this.pageClass = pageClass;
+            this.data = data;
+        }
+    }
+
+    private void replay(BlockingQueue<Redo> queue) {
+        // least recently replayed first
+        LinkedHashMap<PageId, Image> replayed = new LinkedHashMap<PageId, Image>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, Image> eldest) {
+                if (size() <= PAGES_PER_WORKER)
+                    return false;
+                try {
+                    write(eldest.getKey(), eldest.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }
+        };
+        boolean done = false;
+        try {
+            while (true) {
+                Redo r = queue.take();
+                if (r == DONE) {
+                    done = true;
+                    break;
+                }
+                if (r.delta == null) {
+                    replayed.put(r.pid, new Image(r.pageClass, r.data));
+                    continue;
+                }
+                Image image = replayed.get(r.pid);
+                if (image == null) {
+                    // the page was written before the redo point, or by us
+                    Page p = file(r.pid).readPage(r.pid);
+                    image = new Image(p.getClass().getName(), p.getPageData());
+                    replayed.put(r.pid, image);
+                }
+                r.delta.redo(image.data);
+            }
+            for (Map.Entry<PageId, Image> e : replayed.entrySet())
+                write(e.getKey(), e.getValue());
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            // take the rest, so the reader is not blocked
+            try {
+                while (!done && queue.take() != DONE)
+                    ;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void write(PageId pid, Image image) throws IOException {
+        file(pid).writePage(log.makePage(image.pageClass, pid, image.data));
+        Database.getBufferPool().discardPage(pid);
+        pages.incrementAndGet();
+    }
+
+    private static DbFile file(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId());
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sequential read-ahead for HeapFile pages. The BufferPool reports every
+ * heap page it hands out; once a table has been read in page order for
+ * {@link #SEQUENTIAL_RUN} pages (or a scan announced itself with
+ * {@link #expectScan}), an I/O thread starts loading the next pages of the
+ * table into the pool, so the scan finds them resident. The window is
+ * topped up whenever the scan has consumed half of it.
+ * <p>
+ * Pages are loaded through the same latched miss path as getPage, so a page
+ * is never read twice or installed over a newer version. A scan that asks
+ * for a page the I/O thread is about to load waits for it rather than
+ * reading it a second time. The I/O thread never evicts a dirty or pinned
+ * page; if the pool has no room the window is dropped.
+ * <p>
+ * The window size is taken from the {@value #WINDOW_PROPERTY} system
+ * property (default {@value #DEFAULT_WINDOW} pages, 0 disables read-ahead)
+ * and is capped at a quarter of the pool's current size. A scan that reads through a
+ * {@link BufferRing} has its pages read ahead into the ring, at most half
+ * a ring at a time.
+ *
+ * @see BufferPool
+ */
+public class ReadAhead {
+
+    /** System property with the number of pages to read ahead. */
+    public static final String WINDOW_PROPERTY = "simpledb.bufferpool.readahead";
+
+    static final int DEFAULT_WINDOW = 16;
+
+    /** Pages read in order before a table counts as being scanned. */
+    static final int SEQUENTIAL_RUN = 2;
+
+    /** Read-ahead state of one table, guarded by its own monitor. */
+    private static class Run {
+        int lastPage = -1;  // last page handed out
+        int length;         // pages handed out in order so far
+        int next;           // next page the I/O thread will load
+        int end;            // end (exclusive) of the queued window
+        boolean active;     // an I/O task is working on [next, end)
+        BufferRing ring;    // ring of the scan, or null
+    }
+
+    private final BufferPool pool;
+    private final int window;
+    private final ConcurrentHashMap<Integer, Run> runs;
+    private final ExecutorService io;
+
+    /**
+     * @param pool the pool to load pages into
+     * @param window number of pages to read ahead
+     */
+    public ReadAhead(BufferPool pool, int window) {
+        this.pool = pool;
+        this.window = window;
+        this.runs = new ConcurrentHashMap<>();
+        this.io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "simpledb-read-ahead");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create the read-ahead for a pool from the system properties.
+     *
+     * @return the read-ahead, or null if it is disabled
+     */
+    static ReadAhead fromProperties(BufferPool pool) {
+        int window = Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW);
+        return window > 0 ? new ReadAhead(pool, window) : null;
+    }
+
+    /** Stop the I/O thread; queued windows are dropped. */
+    public void shutdown() {
+        io.shutdownNow();
+    }
+
+    private Run runOf(int tableId) {
+        return runs.computeIfAbsent(tableId, id -> new Run());
+    }
+
+    /**
+     * Announce that a table is about to be scanned from its first page, so
+     * read-ahead can start right away.
+     */
+    public void expectScan(int tableId) {
+        Run run = runOf(tableId);
+        synchronized (run) {
+            run.lastPage = -1;
+            run.length = SEQUENTIAL_RUN - 1;
+        }
+    }
+
+    /**
+     * Called by the BufferPool before it reads a page that is not resident.
+     * If the page is in the window the I/O thread is working on, wait until
+     * it has been loaded.
+     *
+     * @return true if the caller waited and should look the page up again
+     */
+    boolean awaitPage(PageId pid) {
+        if (!(pid instanceof HeapPageId))
+            return false;
+        Run run = runs.get(pid.getTableId());
+        if (run == null)
+            return false;
+        int pgNo = pid.getPageNumber();
+        boolean waited = false;
+        synchronized (run) {
+            while (run.active && run.next <= pgNo && pgNo < run.end) {
+                try {
+                    run.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                waited = true;
+            }
+        }
+        return waited;
+    }
+
+    /**
+     * Called by the BufferPool for every page it hands out; detects
+     * sequential access and queues read-ahead.
+     *
+     * @param ring the ring the page was read through, or null
+     */
+    void pageAccessed(PageId pid, BufferRing ring) {
+        if (!(pid instanceof HeapPageId))
+            return;
+        int tableId = pid.getTableId();
+        int pgNo = pid.getPageNumber();
+        Run run = runOf(tableId);
+        synchronized (run) {
+            if (pgNo == run.lastPage)
+                return;
+            run.length = pgNo == run.lastPage + 1 ? run.length + 1 : 1;
+            run.lastPage = pgNo;
+            run.ring = ring;
+            int ahead = Math.min(window, pool.getNumPages() / 4);
+            if (ring != null)
+                ahead = Math.min(ahead, ring.capacity() / 2);
+            if (run.length < SEQUENTIAL_RUN || run.end - pgNo > ahead / 2)
+                return;
+            int from = Math.max(run.end, pgNo + 1);
+            int to = Math.min(pgNo + 1 + ahead, numPages(tableId));
+            if (from >= to)
+                return;
+            run.end = to;
+            if (run.active)
+                return;
+            run.active = true;
+            run.next = from;
+        }
+        try {
+            io.execute(() -> prefetch(tableId, run));
+        } catch (RejectedExecutionException e) {
+            synchronized (run) {
+                run.active = false;
+                run.notifyAll();
+            }
+        }
+    }
+
+    private static int numPages(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return file instanceof HeapFile ? ((HeapFile) file).numPages() : 0;
+    }
+
+    /** I/O task: load the queued window of a table one page at a time. */
+    private void prefetch(int tableId, Run run) {
+        while (true) {
+            int pgNo;
+            BufferRing ring;
+            synchronized (run) {
+                if (run.next >= run.end || Thread.currentThread().isInterrupted()) {
+                    run.active = false;
+                    run.notifyAll();
+                    return;
+                }
+                pgNo = run.next;
+                ring = run.ring;
+            }
+            boolean loaded;
+            try {
+                loaded = pool.prefetchPage(new HeapPageId(tableId, pgNo), ring);
+            } catch (Exception e) {
+                loaded = false;
+            }
+            synchronized (run) {
+                if (loaded) {
+                    run.next = pgNo + 1;
+                } else {
+                    // no room in the pool: drop the window
+                    run.end = run.next;
+                }
+                run.notifyAll();
+            }
+        }
+    }
+}
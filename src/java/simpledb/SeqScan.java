@@ -50,6 +50,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    int getTableId() {
+        return tableId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -83,6 +90,7 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        Database.getBufferPool().expectSequentialScan(tableId);
         it.open();
     }
 
@@ -9,15 +9,42 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
+    private TransactionScheduler scheduler; // that admitted it, while it holds a slot
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true if the transaction will not write; with MVCC on
+     *                 it then reads a snapshot taken at start, without locks,
+     *                 else it locks each table it reads as a whole. It is not
+     *                 logged, and its writes fail with DbException
+     * @see BufferPool#beginReadOnly
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
-    /** Start the transaction running */
+    /**
+     * Start the transaction running, once the TransactionScheduler admits
+     * it; read-only transactions reading a snapshot are not held back.
+     */
     public void start() {
+        if (!readOnly || Database.getBufferPool().getVersionStore() == null) {
+            TransactionScheduler s = Database.getTransactionScheduler();
+            s.admit();
+            scheduler = s;
+        }
         started = true;
+        if (readOnly) {
+            // nothing to redo or undo: no log records
+            Database.getBufferPool().beginReadOnly(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +56,35 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /** @return true if the transaction was created read-only */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if it failed validation under
+     *         optimistic concurrency control; it has been aborted
+     * @throws IOException if its pages could not be logged or written; it
+     *         has been aborted too, and the pages written undone
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                Database.getBufferPool().commitPages(tid);
+            } catch (TransactionAbortedException | IOException e) {
+                // not committed: abort. The pages commitPages wrote before
+                // failing are undone from the log, like any page written
+                // before commit, before the locks are released
+                try {
+                    transactionComplete(true);
+                } catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -41,25 +95,47 @@ public class Transaction {
 
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
-
-        if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+        try {
+            complete(abort);
+        } finally {
+            if (scheduler != null) {
+                // the same one even if the database was reset meanwhile
+                TransactionScheduler s = scheduler;
+                scheduler = null;
+                s.complete(abort);
             }
+        }
+    }
 
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private void complete(boolean abort) throws IOException {
 
-            //setting this here means we could possibly write multiple abort records -- OK?
+        if (started && readOnly) {
+            // only locks, pins and the snapshot to release
             started = false;
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            return;
+        }
+
+        if (started) {
+            try {
+                //write commit / abort records
+                if (abort) {
+                    Database.getLogFile().logAbort(tid); //does rollback too
+                } else {
+                    // the dirty pages were written by commitPages, in commit()
+                    Database.getLogFile().logCommit(tid);
+                }
+            } finally {
+                // even if the log failed: locks and pins must not outlive us
+                try {
+                    Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
+            }
         }
     }
 }
@@ -17,6 +17,11 @@ public class TransactionId implements Serializable {
         myid = counter.getAndIncrement();
     }
 
+    /** The transaction with the given id, e.g. one recovery found in the log. */
+    TransactionId(long id) {
+        myid = id;
+    }
+
     public long getId() {
         return myid;
     }
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control for transactions. At most a multiprogramming level
+ * (MPL) of transactions run at once; {@link Transaction#start} waits for a
+ * slot, and waiting transactions are admitted in the order they arrived.
+ * Under high contention more concurrent transactions only mean more lock
+ * waits and more deadlock victims, so the scheduler adapts the level: after
+ * every {@value #WINDOW} completions it looks at the fraction of them that
+ * aborted and at the number of lock waits per transaction. If either is
+ * too high, the level is cut by a quarter (down to {@value #MIN_LIMIT});
+ * otherwise, if the level was reached in the window, it is raised by one,
+ * up to the maximum set by {@value #MPL_PROPERTY}. Without that property
+ * transactions are admitted at once, as before.
+ * <p>
+ * Read-only transactions reading from snapshots take no locks, and are
+ * not counted.
+ *
+ * @Threadsafe
+ */
+public class TransactionScheduler {
+
+    /** System property: the most transactions to run at once; unset or 0 for no limit. */
+    public static final String MPL_PROPERTY = "simpledb.scheduler.mpl";
+
+    /** Completions between adjustments of the level. */
+    static final int WINDOW = 32;
+    /** The level is never cut below this. */
+    static final int MIN_LIMIT = 2;
+    /** Fraction of aborted transactions above which the level is cut. */
+    static final double MAX_ABORT_RATE = 0.1;
+    /** Lock waits per transaction above which the level is cut. */
+    static final double MAX_WAIT_RATE = 2.0;
+
+    private final int maxLimit;             // 0 for no admission control
+    private final LongSupplier lockWaits;   // lock waits so far
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Condition> queue = new ArrayDeque<>();    // waiting, in arrival order
+
+    // guarded by lock
+    private int limit;
+    private int active;
+    private int completed;          // in the current window
+    private int aborted;
+    private boolean saturated;      // the level was reached in the current window
+    private long lastWaits;         // lock waits when the window started
+
+    /**
+     * @param maxLimit the most transactions to run at once, 0 for no limit
+     * @param lockWaits counts the lock requests that had to wait, see
+     *                  {@link Lock#waitCount}
+     */
+    public TransactionScheduler(int maxLimit, LongSupplier lockWaits) {
+        this.maxLimit = Math.max(maxLimit, 0);
+        this.lockWaits = lockWaits;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Create a scheduler configured from the system properties, watching
+     * the lock waits of the database's buffer pool.
+     */
+    static TransactionScheduler fromProperties() {
+        return new TransactionScheduler(Integer.getInteger(MPL_PROPERTY, 0),
+                () -> Database.getBufferPool().lockWaits());
+    }
+
+    /**
+     * Wait until a transaction may start, behind those already waiting.
+     */
+    public void admit() {
+        if (maxLimit == 0)
+            return;
+        lock.lock();
+        try {
+            if (queue.isEmpty() && active < limit) {
+                started();
+                return;
+            }
+            Condition turn = lock.newCondition();
+            queue.add(turn);
+            while (queue.peek() != turn || active >= limit)
+                turn.awaitUninterruptibly();
+            queue.poll();
+            started();
+            wakeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A transaction admitted before has committed or aborted; let the next
+     * one in.
+     *
+     * @param abort true if it aborted
+     */
+    public void complete(boolean abort) {
+        if (maxLimit == 0)
+            return;
+        lock.lock();
+        try {
+            active--;
+            completed++;
+            if (abort)
+                aborted++;
+            if (completed >= WINDOW)
+                adapt();
+            wakeNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Count an admitted transaction; caller holds the lock. */
+    private void started() {
+        active++;
+        if (active >= limit)
+            saturated = true;
+    }
+
+    /** Signal the first waiter if there is room for it; caller holds the lock. */
+    private void wakeNext() {
+        if (!queue.isEmpty() && active < limit)
+            queue.peek().signal();
+    }
+
+    /** Adjust the level to the window just ended; caller holds the lock. */
+    private void adapt() {
+        long waits = lockWaits.getAsLong();
+        // the counter starts over if the buffer pool is replaced
+        long newWaits = waits >= lastWaits ? waits - lastWaits : waits;
+        double abortRate = (double) aborted / completed;
+        double waitRate = (double) newWaits / completed;
+        if (abortRate > MAX_ABORT_RATE || waitRate > MAX_WAIT_RATE)
+            limit = Math.max(Math.min(MIN_LIMIT, maxLimit), limit - Math.max(limit / 4, 1));
+        else if (saturated && limit < maxLimit)
+            limit++;
+        completed = 0;
+        aborted = 0;
+        saturated = active >= limit;
+        lastWaits = waits;
+    }
+
+    /** @return the current multiprogramming level, 0 if there is no limit */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of admitted transactions that have not completed */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of transactions waiting to be admitted */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha), a cheap approximation of LRU-2.
+ * <p>
+ * Pages seen for the first time go to a FIFO queue (A1in). Only a page that
+ * is referenced again after it has been pushed out of A1in -- remembered by
+ * id in the ghost queue A1out -- is promoted to the LRU queue Am. A long
+ * sequential scan therefore churns through A1in without disturbing the hot
+ * pages in Am.
+ * <p>
+ * A hit takes no lock: it is queued, and the queued hits are applied to Am
+ * when the next victim is chosen. Past {@value #HIT_BUFFER} queued hits
+ * more are dropped, which only costs those pages a move in Am. Pages the
+ * pool refuses to give up are moved to the back of their queue, so the
+ * next search does not look at them first again.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<PageId> a1in;   // FIFO of pages seen once
+    private final LinkedHashSet<PageId> am;     // LRU of hot pages, eldest first
+    private final LinkedHashSet<PageId> a1out;  // ids recently pushed out of a1in
+    private int kin;
+    private int kout;
+
+    /** Most hits queued before they are applied. */
+    static final int HIT_BUFFER = 1024;
+
+    private final ConcurrentLinkedQueue<PageId> hits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedHits = new AtomicInteger();
+
+    /**
+     * @param numPages number of frames in the pool; A1in is sized to a
+     *                 quarter of it and A1out remembers half as many ids
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        a1in = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        resize(numPages);
+    }
+
+    public synchronized void resize(int numPages) {
+        kin = Math.max(numPages / 4, 1);
+        kout = Math.max(numPages / 2, 1);
+        while (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid))
+            return;
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (queuedHits.incrementAndGet() > HIT_BUFFER) {
+            queuedHits.decrementAndGet();
+            return;
+        }
+        hits.add(pid);
+    }
+
+    /** Apply the queued hits; caller holds the monitor. */
+    private void drainHits() {
+        PageId pid;
+        while ((pid = hits.poll()) != null) {
+            queuedHits.decrementAndGet();
+            // hits in A1in are deliberately ignored: they are usually
+            // correlated references from the same scan or operator
+            if (am.remove(pid))
+                am.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        drainHits();
+        boolean a1inFirst = a1in.size() > kin || am.isEmpty();
+        PageId victim = firstEvictable(a1inFirst ? a1in : am, evictable);
+        if (victim == null)
+            victim = firstEvictable(a1inFirst ? am : a1in, evictable);
+        return victim;
+    }
+
+    /**
+     * @return the first evictable page of the queue, or null; the pages
+     *         passed over go to its back
+     */
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        List<PageId> skipped = null;
+        PageId victim = null;
+        for (Iterator<PageId> it = queue.iterator(); it.hasNext(); ) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                victim = pid;
+                break;
+            }
+            if (skipped == null)
+                skipped = new ArrayList<>();
+            skipped.add(pid);
+            it.remove();
+        }
+        if (skipped != null)
+            queue.addAll(skipped);
+        return victim;
+    }
+}
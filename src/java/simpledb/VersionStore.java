@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Old page versions for snapshot reads (MVCC). Commits are numbered by a
+ * commit clock. A read-only transaction takes a snapshot of the clock when
+ * it starts and from then on reads every page as it was committed at that
+ * time, without taking any locks, so it neither waits for writers nor
+ * makes them wait.
+ * <p>
+ * The pool always knows the latest committed version of a page: it is the
+ * before image of the resident page. When a commit replaces it, the old
+ * version is kept here, tagged with the commit that ended it. A snapshot
+ * reads the oldest kept version ended after its snapshot, or the latest
+ * committed version if there is none.
+ * <p>
+ * A commit first stores the versions it ends, then installs the new ones,
+ * and only then publishes its number; commits are serialized by the
+ * caller. A snapshot taken before the commit is published thus finds the
+ * old versions, and one taken after finds the new ones installed.
+ * <p>
+ * A background thread drops versions no running snapshot can read any
+ * more, every {@value #GC_INTERVAL_PROPERTY} milliseconds (default
+ * {@value #DEFAULT_GC_INTERVAL}).
+ *
+ * @see BufferPool
+ */
+public class VersionStore {
+
+    /** System property that turns on snapshot reads for read-only transactions. */
+    public static final String MVCC_PROPERTY = "simpledb.mvcc";
+    /** System property for the milliseconds between version garbage collections. */
+    public static final String GC_INTERVAL_PROPERTY = "simpledb.mvcc.gcinterval";
+
+    static final long DEFAULT_GC_INTERVAL = 1000;
+
+    /** A page as it was committed until commit {@code end}. */
+    private static class Version {
+        final long end;
+        final Page image;
+
+        Version(long end, Page image) {
+            this.end = end;
+            this.image = image;
+        }
+    }
+
+    private volatile long clock;    // last published commit
+    private final ConcurrentHashMap<PageId, ConcurrentLinkedDeque<Version>> versions; // oldest first
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+    private final TreeMap<Long, Integer> active;    // running snapshots; guarded by this
+    private final Timer collector;                  // background GC, or null
+
+    /**
+     * @param gcIntervalMillis time between background garbage collections;
+     *                         0 for none
+     */
+    public VersionStore(long gcIntervalMillis) {
+        versions = new ConcurrentHashMap<>();
+        snapshots = new ConcurrentHashMap<>();
+        active = new TreeMap<>();
+        if (gcIntervalMillis > 0) {
+            collector = new Timer("simpledb-version-gc", true);
+            collector.schedule(new TimerTask() {
+                public void run() {
+                    collect();
+                }
+            }, gcIntervalMillis, gcIntervalMillis);
+        } else {
+            collector = null;
+        }
+    }
+
+    /**
+     * Create a store configured from the system properties.
+     */
+    static VersionStore fromProperties() {
+        return new VersionStore(Long.getLong(GC_INTERVAL_PROPERTY, DEFAULT_GC_INTERVAL));
+    }
+
+    /** Stop the background garbage collection. */
+    public void shutdown() {
+        if (collector != null)
+            collector.cancel();
+    }
+
+    /**
+     * Give a transaction a snapshot of the last published commit.
+     *
+     * @return the snapshot
+     */
+    public synchronized long begin(TransactionId tid) {
+        long ts = clock;
+        if (snapshots.putIfAbsent(tid, ts) == null)
+            active.merge(ts, 1, Integer::sum);
+        return snapshots.get(tid);
+    }
+
+    /** Forget the snapshot of a completed transaction, if it has one. */
+    public synchronized void end(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts != null && active.merge(ts, -1, Integer::sum) == 0)
+            active.remove(ts);
+    }
+
+    /** @return the snapshot of tid, or null if it reads the latest versions */
+    public Long snapshotOf(TransactionId tid) {
+        return tid == null ? null : snapshots.get(tid);
+    }
+
+    /** @return the number of the next commit; the caller serializes commits */
+    long nextCommit() {
+        return clock + 1;
+    }
+
+    /**
+     * Keep a committed page version that a commit is about to replace.
+     *
+     * @param end the number of that commit, from {@link #nextCommit}
+     */
+    void retire(PageId pid, Page image, long end) {
+        versions.compute(pid, (k, chain) -> {
+            if (chain == null)
+                chain = new ConcurrentLinkedDeque<>();
+            chain.addLast(new Version(end, image));
+            return chain;
+        });
+    }
+
+    /** Make a commit visible to snapshots taken from now on. */
+    void publish(long commit) {
+        clock = commit;
+    }
+
+    /**
+     * @return the version of the page a snapshot reads, or null if it reads
+     *         the latest committed version
+     */
+    Page find(PageId pid, long snapshot) {
+        ConcurrentLinkedDeque<Version> chain = versions.get(pid);
+        if (chain != null)
+            for (Version v : chain)
+                if (v.end > snapshot)
+                    return v.image;
+        return null;
+    }
+
+    /**
+     * Drop the versions no running or future snapshot reads: those ended
+     * by a published commit no later than the oldest running snapshot.
+     *
+     * @return the number of versions dropped
+     */
+    public int collect() {
+        long horizon;
+        synchronized (this) {
+            horizon = active.isEmpty() ? clock : active.firstKey();
+        }
+        int[] dropped = new int[1];
+        for (PageId pid : versions.keySet())
+            versions.computeIfPresent(pid, (k, chain) -> {
+                while (!chain.isEmpty() && chain.peekFirst().end <= horizon) {
+                    chain.pollFirst();
+                    dropped[0]++;
+                }
+                return chain.isEmpty() ? null : chain;
+            });
+        return dropped[0];
+    }
+
+    /** @return the number of old versions kept */
+    public int size() {
+        int n = 0;
+        for (ConcurrentLinkedDeque<Version> chain : versions.values())
+            n += chain.size();
+        return n;
+    }
+}
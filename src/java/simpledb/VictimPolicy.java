@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * VictimPolicy decides which transaction of a deadlock cycle the
+ * {@link DeadlockDetector} aborts.
+ *
+ * @see DeadlockDetector
+ */
+public interface VictimPolicy {
+
+    /** System property used to pick the policy of a new detector. */
+    String POLICY_PROPERTY = "simpledb.lock.victim";
+
+    /** Name of the default policy. */
+    String DEFAULT_POLICY = "youngest";
+
+    /**
+     * Pick the transaction to abort.
+     *
+     * @param cycle the transactions of the cycle, none of them null
+     * @param locks the lock table the cycle was found in
+     * @return one of the transactions of the cycle
+     */
+    TransactionId chooseVictim(List<TransactionId> cycle, Lock locks);
+
+    /** Newest first: the transaction that has done the least work, probably. */
+    Comparator<TransactionId> YOUNGEST_FIRST =
+            Comparator.comparingLong(TransactionId::getId).reversed();
+
+    /**
+     * Create a policy by name.
+     *
+     * @param name "youngest" (abort the most recently started transaction),
+     *             "fewestlocks" (the one holding the fewest locks) or
+     *             "leastlog" (the one that has written the least log)
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static VictimPolicy forName(String name) {
+        if (name == null || name.equalsIgnoreCase(DEFAULT_POLICY))
+            return (cycle, locks) -> cycle.stream().min(YOUNGEST_FIRST).get();
+        if (name.equalsIgnoreCase("fewestlocks"))
+            return (cycle, locks) -> cycle.stream().min(
+                    Comparator.comparingInt((TransactionId t) -> locks.locksHeld(t))
+                            .thenComparing(YOUNGEST_FIRST)).get();
+        if (name.equalsIgnoreCase("leastlog"))
+            return (cycle, locks) -> cycle.stream().min(
+                    Comparator.comparingLong((TransactionId t) -> Database.getLogFile().logBytesWritten(t))
+                            .thenComparing(YOUNGEST_FIRST)).get();
+        throw new IllegalArgumentException("Unknown victim policy: " + name);
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeKeyRangeLockingTest extends SimpleDbTestBase {
+
+	private BTreeFile bf;
+	private BufferPool bp;
+
+	@Before public void setUp() throws Exception {
+		// keys 1 to 100, all on one leaf page with room to spare
+		bf = BTreeUtility.createBTreeFile(2, 100, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	@After public void tearDown() {
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	private int count(TransactionId tid, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/** Start a thread inserting a tuple with the given key; done counts down once it is in. */
+	private Thread insert(TransactionId tid, int key, CountDownLatch done, AtomicReference<Exception> failure) {
+		Thread t = new Thread(() -> {
+			try {
+				bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+				done.countDown();
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * An insert into the leaf page a range scan has read, but outside of the
+	 * range, does not wait for the scan.
+	 */
+	@Test public void insertOutsideRangeProceeds() throws Exception {
+		TransactionId reader = new TransactionId();
+		assertEquals(20, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(20))));
+
+		TransactionId writer = new TransactionId();
+		CountDownLatch inserted = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		insert(writer, 50, inserted, failure);
+		assertTrue(inserted.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		bp.transactionComplete(writer);
+
+		assertEquals(20, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(20))));
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * An insert into a range being scanned waits until the scan's transaction
+	 * completes, so the range reads the same until then.
+	 */
+	@Test public void insertIntoRangeWaits() throws Exception {
+		TransactionId reader = new TransactionId();
+		assertEquals(20, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(20))));
+
+		TransactionId writer = new TransactionId();
+		CountDownLatch inserted = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		insert(writer, 10, inserted, failure);
+		assertFalse(inserted.await(500, TimeUnit.MILLISECONDS));
+		assertEquals(20, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(20))));
+
+		bp.transactionComplete(reader);
+		assertTrue(inserted.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		bp.transactionComplete(writer);
+	}
+
+	/**
+	 * A scan locks each leaf it reads IS, the first one and the siblings it
+	 * moves on to, so a writer cannot split a leaf the scan has read, even to
+	 * insert a key outside the scanned range.
+	 */
+	@Test public void splitOfScannedLeafWaits() throws Exception {
+		// keys 1 to 3 * perLeaf, on three full leaf pages
+		int perLeaf = BTreeUtility.getNumTuplesPerPage(2);
+		bf = BTreeUtility.createBTreeFile(2, 3 * perLeaf, null, null, 0);
+		bp = Database.getBufferPool();	// the encoder reset it
+		int end = perLeaf + 10;	// on the second leaf
+		TransactionId reader = new TransactionId();
+		assertEquals(end, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(end))));
+
+		TransactionId writer = new TransactionId();
+		CountDownLatch inserted = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		insert(writer, perLeaf + perLeaf / 2, inserted, failure);
+		assertFalse(inserted.await(500, TimeUnit.MILLISECONDS));
+		assertEquals(end, count(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(end))));
+
+		bp.transactionComplete(reader);
+		assertTrue(inserted.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		bp.transactionComplete(writer);
+
+		TransactionId after = new TransactionId();
+		assertEquals(3 * perLeaf + 1, count(after, new IndexPredicate(Op.GREATER_THAN, new IntField(0))));
+		bp.transactionComplete(after);
+	}
+
+	/**
+	 * A scan reaching a key inserted by a transaction that has not completed
+	 * waits for it, and does not return the tuple if it is rolled back.
+	 */
+	@Test public void scanWaitsForUncommittedInsert() throws Exception {
+		TransactionId writer = new TransactionId();
+		bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(50, 2));
+
+		TransactionId reader = new TransactionId();
+		CountDownLatch scanned = new CountDownLatch(1);
+		AtomicInteger found = new AtomicInteger();
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread t = new Thread(() -> {
+			try {
+				found.set(count(reader, new IndexPredicate(Op.EQUALS, new IntField(50))));
+				scanned.countDown();
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		assertFalse(scanned.await(500, TimeUnit.MILLISECONDS));
+
+		bp.transactionComplete(writer, false);
+		assertTrue(scanned.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		assertEquals(1, found.get());
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyRangeLockingTest.class);
+	}
+}
@@ -0,0 +1,225 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeLatchedSearchTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 31000;
+
+	private BTreeFile bf;
+	private BufferPool bp;
+
+	@Before public void setUp() throws Exception {
+		// a packed B+ tree whose root is an internal page: every insert splits a leaf
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+		bp = Database.resetBufferPool(500);
+	}
+
+	@After public void tearDown() {
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+	}
+
+	private int count(TransactionId tid, IndexPredicate ipred) throws Exception {
+		DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * A search locks the leaf it reads, but neither the root pointer page nor
+	 * the internal pages on its way.
+	 */
+	@Test public void searchLocksOnlyLeaves() throws Exception {
+		TransactionId tid = new TransactionId();
+		count(tid, new IndexPredicate(Op.EQUALS, new IntField(100)));
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertTrue(bp.holdsLock(tid, bf.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY,
+				new IntField(100)).getId()));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A writer that splits a leaf, and so changes the root, does not wait for
+	 * a reader of another part of the tree to finish, and readers do not wait
+	 * for the split to commit.
+	 */
+	@Test(timeout = 60000) public void splitDoesNotWaitForReaders() throws Exception {
+		TransactionId reader = new TransactionId();
+		int before = count(reader, new IndexPredicate(Op.LESS_THAN, new IntField(100)));
+
+		CountDownLatch inserted = new CountDownLatch(1);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		TransactionId writer = new TransactionId();
+		Thread t = new Thread(() -> {
+			try {
+				bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2));
+				inserted.countDown();
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		assertTrue(inserted.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+
+		// the split is committed already; only the new leaf stays locked
+		assertEquals(before, count(reader, new IndexPredicate(Op.LESS_THAN, new IntField(100))));
+		bp.transactionComplete(writer);
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * A split locks the leaves it moves tuples between, but none of the
+	 * internal pages or the root pointer page it changes.
+	 */
+	@Test public void splitLocksOnlyLeaves() throws Exception {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		TransactionId tid = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getLatchedPage(tid, rootPtrId);
+		BTreePageId rootId = rootPtr.getRootId();
+		bp.unpinPage(tid, rootPtrId);
+
+		int pages = bf.numPages();
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2));
+		assertTrue(bf.numPages() > pages);
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		for(int i = 1; i <= bf.numPages(); i++) {
+			assertFalse(bp.holdsLock(tid, new BTreePageId(bf.getId(), i, BTreePageId.INTERNAL)));
+		}
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * An abort after splits takes back the inserts of the transaction, but
+	 * not those of another that committed into the new leaves meanwhile.
+	 */
+	@Test public void abortAfterSplits() throws Exception {
+		int pages = bf.numPages();
+		TransactionId aborted = new TransactionId();
+		TransactionId committed = new TransactionId();
+		for(int i = 0; i < 1000; i++) {
+			bp.insertTuple(aborted, bf.getId(), BTreeUtility.getBTreeTuple(1000 + i, 2));
+		}
+		for(int i = 0; i < 1000; i++) {
+			bp.insertTuple(committed, bf.getId(), BTreeUtility.getBTreeTuple(3000 + i, 2));
+		}
+		assertTrue(bf.numPages() > pages);
+		bp.transactionComplete(committed);
+		bp.transactionComplete(aborted, false);
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(ROWS + 1000, count(tid, null));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * An abort after merges puts back the tuples the transaction deleted,
+	 * splitting the merged leaves again as needed.
+	 */
+	@Test public void abortAfterMerges() throws Exception {
+		TransactionId scan = new TransactionId();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		DbFileIterator it = bf.indexIterator(scan, new IndexPredicate(Op.LESS_THAN, new IntField(BTreeUtility.MAX_RAND_VALUE / 8)));
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		bp.transactionComplete(scan);
+
+		TransactionId aborted = new TransactionId();
+		for(int key : keys) {
+			DbFileIterator found = bf.indexIterator(aborted, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			found.open();
+			bp.deleteTuple(aborted, found.next());
+			found.close();
+		}
+		assertEquals(ROWS - keys.size(), count(aborted, null));
+		bp.transactionComplete(aborted, false);
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(ROWS, count(tid, null));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Concurrent inserters, each retrying its transaction when it is aborted,
+	 * leave a valid tree holding all their tuples.
+	 */
+	@Test public void concurrentInserts() throws Exception {
+		final int threads = 8;
+		final int perThread = 200;
+		ArrayList<Thread> inserters = new ArrayList<Thread>();
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		for(int i = 0; i < threads; i++) {
+			final int first = i * perThread;
+			Thread t = new Thread(() -> {
+				try {
+					for(int k = first; k < first + perThread; k++) {
+						while(true) {
+							TransactionId tid = new TransactionId();
+							try {
+								bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(k * 31 % BTreeUtility.MAX_RAND_VALUE, 2));
+								bp.transactionComplete(tid);
+								break;
+							} catch (TransactionAbortedException e) {
+								bp.transactionComplete(tid, false);
+							}
+						}
+					}
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			});
+			inserters.add(t);
+			t.start();
+		}
+		for(Thread t : inserters) {
+			t.join();
+		}
+		assertNull(failure.get());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		assertEquals(ROWS + threads * perThread, count(tid, null));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchedSearchTest.class);
+	}
+}
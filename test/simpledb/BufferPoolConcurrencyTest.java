@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+
+    private TestUtil.CountingHeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty(ReadAhead.WINDOW_PROPERTY, "0");
+        table = TestUtil.createCountingHeapFile(40, null);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(ReadAhead.WINDOW_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Run THREADS readers at once, each in its own transaction, reading
+     * random pages of the table and unpinning them again.
+     */
+    private void readConcurrently(BufferPool bp, int reads) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            long seed = i;
+            Thread t = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                Random rand = new Random(seed);
+                try {
+                    start.await();
+                    for (int n = 0; n < reads; n++) {
+                        HeapPageId pid = new HeapPageId(table.getId(), rand.nextInt(table.numPages()));
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        assertEquals(pid, p.getId());
+                        bp.unpinPage(tid, pid);
+                    }
+                    bp.transactionComplete(tid);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    /**
+     * Readers missing on the same pages at once read each page only once,
+     * when nothing has to be evicted.
+     */
+    @Test public void eachPageLoadedOnce() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        readConcurrently(bp, 500);
+        assertEquals(table.numPages(), table.reads.get());
+        assertEquals(table.numPages(), bp.residentPages());
+        assertEquals(table.numPages(), bp.pageTableSize());
+    }
+
+    /**
+     * With misses and evictions racing in a small pool, the count of
+     * frames in use matches the page table, within the pool's size.
+     */
+    @Test public void residentMatchesPageTable() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        readConcurrently(bp, 2000);
+        assertEquals(bp.pageTableSize(), bp.residentPages());
+        assertTrue(bp.residentPages() <= 10);
+        assertTrue(table.reads.get() > table.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
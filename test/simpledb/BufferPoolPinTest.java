@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends TestUtil.CreateHeapFile {
+    private PageId p0, p1, p2;
+    private TransactionId tid;
+    private BufferPool bp;
+
+    /**
+     * Set up a heap file with three pages and a buffer pool with room for two.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId t = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(t, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        this.p0 = new HeapPageId(empty.getId(), 0);
+        this.p1 = new HeapPageId(empty.getId(), 1);
+        this.p2 = new HeapPageId(empty.getId(), 2);
+        Database.getBufferPool().flushAllPages();
+
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page that is in use cannot be evicted; the pool grows instead.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertTrue(bp.isPinned(p0));
+        assertTrue(bp.isPinned(p1));
+        assertTrue(bp.isPinned(p2));
+    }
+
+    /**
+     * Once unpinned, a page becomes an eviction candidate again.
+     */
+    @Test public void unpinnedPageIsEvicted() throws Exception {
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.unpinPage(tid, p0);
+        assertFalse(bp.isPinned(p0));
+        assertTrue(bp.isPinned(p1));
+
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertTrue(bp.isPinned(p2));
+        assertTrue(bp.isPinned(p1));
+    }
+
+    /**
+     * A page fetched twice needs two unpins.
+     */
+    @Test public void pinsAreCounted() throws Exception {
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.unpinPage(tid, p0);
+        assertTrue(bp.isPinned(p0));
+        bp.unpinPage(tid, p0);
+        assertFalse(bp.isPinned(p0));
+    }
+
+    /**
+     * Completing a transaction drops the pins it still holds.
+     */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertFalse(bp.isPinned(p0));
+        assertFalse(bp.isPinned(p1));
+
+        tid = new TransactionId();
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+    }
+
+    /**
+     * The pool grows past its size only so far for pages other transactions
+     * have pinned: a miss then waits for one to be unpinned, and fails if
+     * none is in time.
+     */
+    @Test public void overshootIsBounded() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * (3 + BufferPool.MIN_OVERSHOOT), null, null);
+        int bound = 2 + BufferPool.MIN_OVERSHOOT;
+        assertTrue(big.numPages() > bound);
+        TransactionId other = new TransactionId();
+        for (int i = 0; i < bound; i++)
+            bp.getPage(other, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(big.getId(), bound), Permissions.READ_ONLY);
+            fail("expected exception");
+        } catch (DbException e) {
+            // expected
+        }
+
+        Thread unpin = new Thread(() -> bp.unpinPage(other, new HeapPageId(big.getId(), 0)));
+        unpin.start();
+        bp.getPage(tid, new HeapPageId(big.getId(), bound), Permissions.READ_ONLY);
+        unpin.join();
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * A transaction may pin more pages than the pool holds, e.g. for an
+     * internal page split; the pool grows to hold them.
+     */
+    @Test public void ownPinsGrowThePool() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * (3 + BufferPool.MIN_OVERSHOOT), null, null);
+        for (int i = 0; i < big.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        assertTrue(bp.isPinned(new HeapPageId(big.getId(), 0)));
+    }
+
+    /**
+     * A page a DbFile creates outside getPage takes a frame like a page
+     * read from disk: the pool evicts for it instead of growing.
+     */
+    @Test public void installedPageTakesAFrame() throws Exception {
+        HeapFile creating = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public ArrayList<Page> insertTuple(TransactionId t, Tuple tup) throws DbException, IOException {
+                HeapPage p = new HeapPage((HeapPageId) p2, HeapPage.createEmptyPageData());
+                p.insertTuple(tup);
+                return new ArrayList<Page>(Collections.singletonList(p));
+            }
+        };
+        Database.getCatalog().addTable(creating, SystemTestUtil.getUUID());
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.unpinPage(tid, p0);
+        bp.unpinPage(tid, p1);
+        assertEquals(2, bp.residentPages());
+
+        bp.insertTuple(tid, creating.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(2, bp.residentPages());
+        assertEquals(2, bp.pageTableSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BufferPoolResizeTest extends SimpleDbTestBase {
+
+    private TestUtil.CountingHeapFile table;
+
+    @Before public void setUp() throws Exception {
+        System.setProperty(ReadAhead.WINDOW_PROPERTY, "0");
+        table = TestUtil.createCountingHeapFile(40, null);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(ReadAhead.WINDOW_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private void read(BufferPool bp, TransactionId tid, int from, int to) throws Exception {
+        for (int pgNo = from; pgNo < to; pgNo++)
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Growing keeps the resident pages and lets more pages in.
+     */
+    @Test public void grow() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId tid = new TransactionId();
+        read(bp, tid, 0, 10);
+        bp.resize(20);
+        assertEquals(20, bp.getNumPages());
+        read(bp, tid, 10, 20);
+        bp.transactionComplete(tid);
+
+        table.reads.set(0);
+        tid = new TransactionId();
+        read(bp, tid, 0, 20);
+        bp.transactionComplete(tid);
+        assertEquals(0, table.reads.get());
+        assertEquals(20, bp.residentPages());
+    }
+
+    /**
+     * Shrinking evicts clean, unpinned pages at once.
+     */
+    @Test public void shrinkEvictsUnpinnedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(30);
+        TransactionId tid = new TransactionId();
+        read(bp, tid, 0, 30);
+        bp.transactionComplete(tid);
+
+        bp.resize(10);
+        assertEquals(10, bp.residentPages());
+        for (int pgNo = 0; pgNo < 30; pgNo++) {
+            tid = new TransactionId();
+            read(bp, tid, pgNo, pgNo + 1);
+            bp.transactionComplete(tid);
+        }
+        assertEquals(10, bp.residentPages());
+    }
+
+    /**
+     * Pinned pages survive a shrink and are given back a few at a time
+     * once they are released.
+     */
+    @Test public void shrinkKeepsPinnedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(30);
+        TransactionId tid = new TransactionId();
+        read(bp, tid, 0, 30);
+
+        bp.resize(5);
+        assertEquals(30, bp.residentPages());
+        table.reads.set(0);
+        read(bp, tid, 0, 30);
+        assertEquals(0, table.reads.get());
+
+        bp.transactionComplete(tid);
+        assertEquals(30 - BufferPool.SHRINK_STEP, bp.residentPages());
+        for (int i = 0; i < 3 && bp.residentPages() > 5; i++) {
+            TransactionId t = new TransactionId();
+            read(bp, t, 30, 31 + i);
+            bp.transactionComplete(t);
+        }
+        assertEquals(5, bp.residentPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
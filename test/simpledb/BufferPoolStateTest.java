@@ -0,0 +1,88 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BufferPoolStateTest extends SimpleDbTestBase {
+
+    private File stateFile;
+    private TestUtil.CountingHeapFile table;
+
+    @Before public void setUp() throws Exception {
+        System.setProperty(ReadAhead.WINDOW_PROPERTY, "0");
+        stateFile = File.createTempFile("pool", ".state");
+        stateFile.deleteOnExit();
+        table = TestUtil.createCountingHeapFile(20, null);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(ReadAhead.WINDOW_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private void touch(BufferPool bp, int... pgNos) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int pgNo : pgNos)
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A restarted pool gets the saved pages back in a few large reads, and
+     * no longer has to read them one at a time.
+     */
+    @Test public void warmUpReloadsSavedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(40);
+        touch(bp, 9, 3, 4, 5, 6, 10, 11, 12);
+        bp.saveState(stateFile);
+
+        bp = Database.resetBufferPool(40);
+        table.reads.set(0);
+        assertEquals(8, bp.warmUp(stateFile));
+        assertEquals(0, table.reads.get());
+        assertEquals(2, table.batches.size());   // pages 3-6 and 9-12
+
+        touch(bp, 3, 4, 5, 6, 9, 10, 11, 12);
+        assertEquals(0, table.reads.get());
+    }
+
+    /**
+     * When the saved list does not fit, the most used pages are kept.
+     */
+    @Test public void warmUpPrefersFrequentPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(40);
+        touch(bp, 0, 1, 2, 3);
+        touch(bp, 2, 3);
+        touch(bp, 2, 3);
+        bp.saveState(stateFile);
+
+        bp = Database.resetBufferPool(2);
+        table.reads.set(0);
+        assertEquals(2, bp.warmUp(stateFile));
+        touch(bp, 2, 3);
+        assertEquals(0, table.reads.get());
+    }
+
+    /**
+     * A missing state file warms nothing up.
+     */
+    @Test public void missingFile() throws Exception {
+        stateFile.delete();
+        assertEquals(0, Database.resetBufferPool(40).warmUp(stateFile));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStateTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    @After public void tearDown() {
+        System.clearProperty(BufferRing.THRESHOLD_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Scan the hot table and return how many pages had to be read. */
+    private int scanHot(TestUtil.CountingHeapFile hot, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        int before = hot.reads.get();
+        SystemTestUtil.matchTuples(hot, tuples);
+        return hot.reads.get() - before;
+    }
+
+    /**
+     * A scan of a table larger than the pool leaves the pool's hot pages
+     * resident, and still returns every tuple.
+     */
+    @Test public void bigScanKeepsHotPages() throws Exception {
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<>();
+        TestUtil.CountingHeapFile hot = TestUtil.createCountingHeapFile(4, hotTuples);
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<>();
+        TestUtil.CountingHeapFile big = TestUtil.createCountingHeapFile(60, bigTuples);
+        Database.resetBufferPool(40);
+
+        assertEquals(4, scanHot(hot, hotTuples));
+        SystemTestUtil.matchTuples(big, bigTuples);
+        assertEquals(0, scanHot(hot, hotTuples));
+    }
+
+    /**
+     * Without the ring the same scan flushes the hot pages out.
+     */
+    @Test public void withoutRingHotPagesAreLost() throws Exception {
+        System.setProperty(BufferRing.THRESHOLD_PROPERTY, "100");
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<>();
+        TestUtil.CountingHeapFile hot = TestUtil.createCountingHeapFile(4, hotTuples);
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<>();
+        TestUtil.CountingHeapFile big = TestUtil.createCountingHeapFile(60, bigTuples);
+        Database.resetBufferPool(40);
+
+        assertEquals(4, scanHot(hot, hotTuples));
+        SystemTestUtil.matchTuples(big, bigTuples);
+        assertEquals(4, scanHot(hot, hotTuples));
+    }
+
+    /**
+     * Small tables are scanned without a ring.
+     */
+    @Test public void smallTableNoRing() {
+        BufferPool bp = Database.resetBufferPool(40);
+        assertNull(bp.scanRing(30));
+        assertEquals(5, bp.scanRing(31).capacity());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
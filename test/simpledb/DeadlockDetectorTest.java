@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DeadlockDetectorTest {
+
+    private Lock locks;
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+
+    @After public void tearDown() {
+        if (locks != null)
+            locks.shutdown();
+    }
+
+    /** Acquire a lock in a new thread; the latch counts down once granted. */
+    private CountDownLatch acquireAsync(TransactionId tid, PageId pid, Permissions perm,
+            AtomicReference<Exception> error) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquire(tid, pid, perm);
+                granted.countDown();
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * Cycles are found in a waits-for graph, and only cycles.
+     */
+    @Test public void findCycle() {
+        TransactionId a = new TransactionId(), b = new TransactionId(),
+                c = new TransactionId(), d = new TransactionId();
+        Map<TransactionId, List<TransactionId>> graph = new HashMap<>();
+        graph.put(a, Arrays.asList(b));
+        graph.put(b, Arrays.asList(c, d));
+        graph.put(d, Arrays.asList(a));
+        List<TransactionId> cycle = DeadlockDetector.findCycle(graph);
+        assertEquals(new HashSet<>(Arrays.asList(a, b, d)), new HashSet<>(cycle));
+
+        graph.remove(d);
+        assertNull(DeadlockDetector.findCycle(graph));
+    }
+
+    /**
+     * In detect mode the background detector aborts the youngest
+     * transaction of a deadlock, and the other one proceeds.
+     */
+    @Test public void detectorBreaksDeadlock() throws Exception {
+        locks = new Lock(Lock.DeadlockMode.DETECT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        locks.acquire(older, p0, Permissions.READ_WRITE);
+        locks.acquire(younger, p1, Permissions.READ_WRITE);
+        AtomicReference<Exception> olderError = new AtomicReference<>();
+        AtomicReference<Exception> youngerError = new AtomicReference<>();
+        CountDownLatch olderGot = acquireAsync(older, p1, Permissions.READ_WRITE, olderError);
+        acquireAsync(younger, p0, Permissions.READ_WRITE, youngerError);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (youngerError.get() == null)
+            assertTrue("deadlock not broken", System.currentTimeMillis() < deadline);
+        assertTrue(youngerError.get() instanceof TransactionAbortedException);
+        locks.deleteLocks(younger);
+        assertTrue(olderGot.await(5, TimeUnit.SECONDS));
+        assertNull(olderError.get());
+    }
+
+    /**
+     * The fewest-locks policy aborts the transaction holding the fewest
+     * locks, even if it is the older one.
+     */
+    @Test public void fewestLocksVictim() {
+        locks = new Lock(Lock.DeadlockMode.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        for (int pgNo = 0; pgNo < 3; pgNo++)
+            try {
+                locks.acquire(younger, new HeapPageId(2, pgNo), Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                fail();
+            }
+        List<TransactionId> cycle = Arrays.asList(older, younger);
+        assertEquals(older, VictimPolicy.forName("fewestlocks").chooseVictim(cycle, locks));
+        assertEquals(younger, VictimPolicy.forName("youngest").chooseVictim(cycle, locks));
+    }
+
+    /**
+     * Under wait-die a younger transaction that would wait for an older one
+     * aborts, while an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        locks = new Lock(Lock.DeadlockMode.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        locks.acquire(older, p0, Permissions.READ_WRITE);
+        try {
+            locks.acquire(younger, p0, Permissions.READ_ONLY);
+            fail("younger transaction should die");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(locks.getLock(younger, p0));
+
+        locks.acquire(younger, p1, Permissions.READ_WRITE);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch got = acquireAsync(older, p1, Permissions.READ_ONLY, error);
+        assertFalse(got.await(100, TimeUnit.MILLISECONDS));
+        locks.deleteLocks(younger);
+        assertTrue(got.await(5, TimeUnit.SECONDS));
+        assertNull(error.get());
+    }
+
+    /**
+     * Under wound-wait an older transaction aborts a younger one that
+     * waits, and a younger transaction waits for an older one.
+     */
+    @Test public void woundWait() throws Exception {
+        locks = new Lock(Lock.DeadlockMode.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        locks.acquire(older, p0, Permissions.READ_WRITE);
+        locks.acquire(younger, p1, Permissions.READ_WRITE);
+
+        // the younger one waits for the older one
+        AtomicReference<Exception> youngerError = new AtomicReference<>();
+        acquireAsync(younger, p0, Permissions.READ_WRITE, youngerError);
+        Thread.sleep(50);
+        assertNull(youngerError.get());
+
+        // the older one wants the younger one's page: the younger is wounded
+        AtomicReference<Exception> olderError = new AtomicReference<>();
+        CountDownLatch olderGot = acquireAsync(older, p1, Permissions.READ_WRITE, olderError);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (youngerError.get() == null)
+            assertTrue("younger transaction not wounded", System.currentTimeMillis() < deadline);
+        assertTrue(youngerError.get() instanceof TransactionAbortedException);
+        locks.deleteLocks(younger);
+        assertTrue(olderGot.await(5, TimeUnit.SECONDS));
+        assertNull(olderError.get());
+    }
+
+    /**
+     * A younger transaction wounded while it runs, not waiting, aborts at
+     * its next lock request, even for a page it holds already.
+     */
+    @Test public void woundRunningHolder() throws Exception {
+        locks = new Lock(Lock.DeadlockMode.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        locks.acquire(younger, p0, Permissions.READ_WRITE);
+
+        AtomicReference<Exception> olderError = new AtomicReference<>();
+        CountDownLatch olderGot = acquireAsync(older, p0, Permissions.READ_WRITE, olderError);
+        assertFalse(olderGot.await(100, TimeUnit.MILLISECONDS));
+        try {
+            locks.acquire(younger, p0, Permissions.READ_WRITE);
+            fail("wounded transaction got a lock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.deleteLocks(younger);
+        assertTrue(olderGot.await(5, TimeUnit.SECONDS));
+        assertNull(olderError.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockDetectorTest.class);
+    }
+}
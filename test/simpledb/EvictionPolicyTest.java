@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static HeapPageId pid(int pgno) {
+        return new HeapPageId(-1, pgno);
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy(3);
+        for (int i = 0; i < 3; i++)
+            clock.pageLoaded(pid(i));
+        // first sweep clears all bits, so the oldest page goes first
+        assertEquals(pid(0), clock.chooseVictim(p -> true));
+        clock.pageRemoved(pid(0));
+        clock.pageLoaded(pid(3));
+        clock.pageAccessed(pid(1));
+        assertEquals(pid(2), clock.chooseVictim(p -> true));
+    }
+
+    /**
+     * CLOCK skips pages the pool refuses to give up.
+     */
+    @Test public void clockSkipsUnevictable() {
+        EvictionPolicy clock = new ClockEvictionPolicy(2);
+        clock.pageLoaded(pid(0));
+        clock.pageLoaded(pid(1));
+        assertEquals(pid(1), clock.chooseVictim(p -> !p.equals(pid(0))));
+        assertNull(clock.chooseVictim(p -> false));
+    }
+
+    /**
+     * CLOCK keeps working when the pool holds more pages than announced.
+     */
+    @Test public void clockGrows() {
+        EvictionPolicy clock = new ClockEvictionPolicy(1);
+        for (int i = 0; i < 10; i++)
+            clock.pageLoaded(pid(i));
+        for (int i = 0; i < 10; i++) {
+            PageId victim = clock.chooseVictim(p -> true);
+            assertEquals(pid(i), victim);
+            clock.pageRemoved(victim);
+        }
+        assertNull(clock.chooseVictim(p -> true));
+    }
+
+    /**
+     * CLOCK drops the free slots of a shrunk pool and sweeps the pages
+     * left in the same order as before.
+     */
+    @Test public void clockResize() {
+        EvictionPolicy clock = new ClockEvictionPolicy(10);
+        for (int i = 0; i < 10; i++)
+            clock.pageLoaded(pid(i));
+        for (int i = 0; i < 8; i += 2)
+            clock.pageRemoved(pid(i));
+        clock.resize(4);
+        assertEquals(pid(1), clock.chooseVictim(p -> true));
+        clock.pageRemoved(pid(1));
+        clock.pageAccessed(pid(5));
+        assertEquals(pid(3), clock.chooseVictim(p -> true));
+        clock.pageRemoved(pid(3));
+        assertEquals(pid(7), clock.chooseVictim(p -> true));
+    }
+
+    /**
+     * 2Q: a one-time scan does not push out a page referenced twice.
+     */
+    @Test public void twoQueueScanResistant() {
+        EvictionPolicy q = new TwoQueueEvictionPolicy(8);
+        // make page 0 hot: load, evict to the ghost queue, reload
+        q.pageLoaded(pid(0));
+        q.pageRemoved(pid(0));
+        q.pageLoaded(pid(0));
+        // A1in holds a quarter of the pool; fill it past that share
+        for (int i = 1; i <= 3; i++)
+            q.pageLoaded(pid(i));
+        for (int i = 4; i <= 20; i++) {
+            q.pageLoaded(pid(i));
+            PageId victim = q.chooseVictim(p -> true);
+            assertEquals(pid(i - 3), victim);
+            q.pageRemoved(victim);
+        }
+    }
+
+    /**
+     * 2Q: hits in Am are applied when the next victim is chosen, and a page
+     * passed over goes to the back of its queue.
+     */
+    @Test public void twoQueueHitsAndSkips() {
+        EvictionPolicy q = new TwoQueueEvictionPolicy(8);
+        for (int i = 0; i < 2; i++) {
+            q.pageLoaded(pid(i));
+            q.pageRemoved(pid(i));
+            q.pageLoaded(pid(i));
+        }
+        q.pageAccessed(pid(0));
+        assertEquals(pid(1), q.chooseVictim(p -> true));
+        assertEquals(pid(0), q.chooseVictim(p -> !p.equals(pid(1))));
+        assertEquals(pid(0), q.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unknown policy names are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class) public void unknownPolicy() {
+        EvictionPolicy.forName("random", 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
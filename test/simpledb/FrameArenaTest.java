@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+
+    @After public void tearDown() {
+        System.clearProperty(FrameArena.OFF_HEAP_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * The arena hands out each direct frame once and takes them back.
+     */
+    @Test public void acquireAndRelease() {
+        FrameArena arena = new FrameArena(3, 4096);
+        Set<ByteBuffer> frames = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = arena.acquire();
+            assertTrue(frame.isDirect());
+            assertEquals(4096, frame.capacity());
+            frames.add(frame);
+        }
+        assertEquals(3, frames.size());
+        assertNull(arena.acquire());
+
+        ByteBuffer frame = frames.iterator().next();
+        arena.release(frame);
+        assertEquals(1, arena.available());
+        assertSame(frame, arena.acquire());
+    }
+
+    /** @return bytes of direct memory the JVM has not yet freed */
+    private static long directBytes() {
+        for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+            if (b.getName().equals("direct"))
+                return b.getTotalCapacity();
+        throw new AssertionError("no direct buffer pool bean");
+    }
+
+    /** Collect garbage until no more direct memory is freed. */
+    private static long settledDirectBytes() throws InterruptedException {
+        long last;
+        long now = directBytes();
+        do {
+            last = now;
+            System.gc();
+            Thread.sleep(50);
+            now = directBytes();
+        } while (now < last);
+        return now;
+    }
+
+    /**
+     * Shrinking gives the memory of the dropped frames back to the JVM,
+     * including frames that were in use and released afterwards.
+     */
+    @Test public void shrinkFreesMemory() throws Exception {
+        int frames = 16 * FrameArena.CHUNK_FRAMES;
+        long before = settledDirectBytes();
+        FrameArena arena = new FrameArena(frames, 4096);
+        assertEquals(before + frames * 4096L, directBytes());
+
+        ArrayList<ByteBuffer> inUse = new ArrayList<>();
+        for (int i = 0; i < frames / 2; i++)
+            inUse.add(arena.acquire());
+        arena.setCapacity(FrameArena.CHUNK_FRAMES);
+        assertEquals(FrameArena.CHUNK_FRAMES, arena.allocated());
+        for (ByteBuffer frame : inUse)
+            arena.release(frame);
+        inUse.clear();
+
+        long expected = before + FrameArena.CHUNK_FRAMES * 4096L;
+        for (int i = 0; i < 100 && directBytes() > expected; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertTrue(directBytes() <= expected);
+        assertNotNull(arena.acquire());     // the arena itself is still alive
+    }
+
+    /**
+     * A scan through a pool much smaller than the table recycles frames
+     * and still sees every tuple; an aborted change is undone in place.
+     */
+    @Test public void offHeapPool() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 4000, null, tuples);
+        assertTrue(f.numPages() > 4);
+
+        System.setProperty(FrameArena.OFF_HEAP_PROPERTY, "true");
+        BufferPool bp = Database.resetBufferPool(3);
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        byte[] before = page.getPageData();
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertArrayEquals(before, page.getPageData());
+        bp.transactionComplete(tid);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
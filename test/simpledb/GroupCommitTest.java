@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private File file;
+
+    private LogFile open(long windowMicros) throws Exception {
+        System.setProperty(LogFile.GROUP_COMMIT_PROPERTY, Long.toString(windowMicros));
+        try {
+            file = File.createTempFile("groupcommit", ".log");
+            file.deleteOnExit();
+            return new LogFile(file);
+        } finally {
+            System.clearProperty(LogFile.GROUP_COMMIT_PROPERTY);
+        }
+    }
+
+    @After public void tearDown() {
+        if (file != null)
+            file.delete();
+    }
+
+    /**
+     * A commit on its own forces the log before returning.
+     */
+    @Test public void aloneForcesEach() throws Exception {
+        LogFile log = open(0);
+        for (int i = 0; i < 5; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+            assertEquals(i + 1, log.getForceCount());
+        }
+    }
+
+    /**
+     * Concurrent commits share forces, and each returns only once a force
+     * covering its record is done.
+     */
+    @Test public void concurrentShareForces() throws Exception {
+        final int n = 16;
+        LogFile log = open(50000);
+        ArrayList<TransactionId> tids = new ArrayList<TransactionId>();
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            tids.add(tid);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (TransactionId tid : tids) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join(10000);
+
+        assertNull(failure.get());
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+        assertEquals(2 * n, log.getTotalRecords());
+        assertTrue("forces: " + log.getForceCount(), log.getForceCount() < n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -126,6 +128,25 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Scans of an unchanged page reuse the tuples decoded by the first one;
+     * a change makes the next scan decode the page again.
+     */
+    @Test public void iteratorReusesDecodedTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        assertSame(first, page.iterator().next());
+
+        page.deleteTuple(first);
+        Iterator<Tuple> it = page.iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            assertFalse(TestUtil.compareTuples(first, it.next()));
+            n++;
+        }
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES.length - 1, n);
+    }
+
     /**
      * JUnit suite target
      */
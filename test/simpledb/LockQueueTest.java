@@ -0,0 +1,173 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockQueueTest {
+
+    private Lock locks;
+    private PageId p0;
+
+    @Before public void setUp() {
+        locks = new Lock();
+        p0 = new HeapPageId(1, 0);
+    }
+
+    @After public void tearDown() {
+        locks.shutdown();
+    }
+
+    /** Acquire a lock in a new thread; the latch counts down once granted. */
+    private CountDownLatch acquireAsync(TransactionId tid, Permissions perm,
+            AtomicReference<Exception> error) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquire(tid, p0, perm);
+                granted.countDown();
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * A waiter is woken as soon as the conflicting lock is released, not
+     * after a polling interval.
+     */
+    @Test public void handoffIsPrompt() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        CountDownLatch granted = acquireAsync(t2, Permissions.READ_WRITE, new AtomicReference<>());
+        assertFalse(granted.await(50, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        locks.deleteLocks(t1);
+        assertTrue(granted.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(locks.getLock(t2, p0));
+        assertFalse(locks.getLock(t1, p0));
+    }
+
+    /**
+     * A reader arriving after a waiting writer queues behind it.
+     */
+    @Test public void readerDoesNotOvertakeWriter() throws Exception {
+        TransactionId reader1 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId reader2 = new TransactionId();
+        locks.acquire(reader1, p0, Permissions.READ_ONLY);
+        CountDownLatch w = acquireAsync(writer, Permissions.READ_WRITE, new AtomicReference<>());
+        Thread.sleep(50);
+        CountDownLatch r = acquireAsync(reader2, Permissions.READ_ONLY, new AtomicReference<>());
+        assertFalse(r.await(100, TimeUnit.MILLISECONDS));
+
+        locks.unLock(reader1, p0);
+        assertTrue(w.await(5, TimeUnit.SECONDS));
+        assertEquals(1, r.getCount());
+        locks.unLock(writer, p0);
+        assertTrue(r.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * An upgrade goes ahead of requests that queued before it.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        CountDownLatch w = acquireAsync(writer, Permissions.READ_WRITE, new AtomicReference<>());
+        Thread.sleep(50);
+        CountDownLatch up = acquireAsync(t1, Permissions.READ_WRITE, new AtomicReference<>());
+        Thread.sleep(50);
+
+        locks.unLock(t2, p0);
+        assertTrue(up.await(5, TimeUnit.SECONDS));
+        assertEquals(1, w.getCount());
+        locks.deleteLocks(t1);
+        assertTrue(w.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Two upgrades of the same page deadlock; one of them is aborted and
+     * the other gets the lock.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch up = acquireAsync(t1, Permissions.READ_WRITE, error);
+        Thread.sleep(50);
+        try {
+            locks.acquire(t2, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.deleteLocks(t2);
+        assertTrue(up.await(5, TimeUnit.SECONDS));
+        assertNull(error.get());
+    }
+
+    /**
+     * Completing a transaction releases exactly the locks it holds,
+     * including the intention locks on the tables.
+     */
+    @Test public void deleteLocksReleasesHeldLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int pgNo = 0; pgNo < 100; pgNo++)
+            locks.acquire(t1, new HeapPageId(1, pgNo), Permissions.READ_ONLY);
+        locks.acquire(t2, new HeapPageId(2, 0), Permissions.READ_WRITE);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        assertEquals(101, locks.locksHeld(t1));    // and IS on the table
+        assertEquals(4, locks.locksHeld(t2));
+
+        locks.deleteLocks(t1);
+        assertEquals(0, locks.locksHeld(t1));
+        assertFalse(locks.getLock(t1, p0));
+        assertTrue(locks.getLock(t2, p0));
+        assertTrue(locks.getLock(t2, new HeapPageId(2, 0)));
+
+        locks.unLock(t2, p0);
+        assertEquals(3, locks.locksHeld(t2));
+    }
+
+    /**
+     * A lock without a transaction could never be released, so it is
+     * refused rather than granted.
+     */
+    @Test public void nullTransactionIsRejected() throws Exception {
+        try {
+            locks.acquire(null, p0, Permissions.READ_ONLY);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        TransactionId t1 = new TransactionId();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTrue(locks.getLock(t1, p0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockQueueTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    /** @return a copy of the page with another page number; each is logged whole */
+    private HeapPage page(int pgNo) throws Exception {
+        return new HeapPage(new HeapPageId(page.getId().getTableId(), pgNo), page.getPageData());
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Update records are written to the file in a few large writes, and
+     * read back as the pages they were made of.
+     */
+    @Test public void updatesBatched() throws Exception {
+        final int n = 20;
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < n; i++)
+            log.logWrite(tid, page(i), page(i));
+        assertTrue(log.getDurableLsn() < log.getCurrentLsn());
+        log.logCommit(tid);
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+        assertEquals(file.length(), log.getCurrentLsn());
+        // each record would have taken a dozen writes on its own
+        assertTrue("writes: " + log.log.writeCount(), log.log.writeCount() < n);
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(LogFile.NO_CHECKPOINT_ID, in.readLong());
+            assertEquals(LogFile.BEGIN_RECORD, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            in.readLong();
+            for (int i = 0; i < n; i++) {
+                assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+                assertEquals(tid.getId(), in.readLong());
+                for (int j = 0; j < 2; j++) {
+                    Page p = log.readPageData(in);
+                    assertEquals(page(i).getId(), p.getId());
+                    assertArrayEquals(page.getPageData(), p.getPageData());
+                }
+                in.readLong();
+            }
+            assertEquals(LogFile.COMMIT_RECORD, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Forcing up to an LSN already on disk does not force again.
+     */
+    @Test public void forceUpToLsn() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, page, page);
+        assertEquals(lsn, log.getCurrentLsn());
+        log.force(lsn);
+        assertEquals(lsn, log.getDurableLsn());
+        assertEquals(1, log.getForceCount());
+
+        log.logWrite(tid, page, page);
+        log.force(lsn);
+        assertEquals(1, log.getForceCount());
+        assertEquals(lsn, log.getDurableLsn());
+    }
+
+    /**
+     * Truncation at a checkpoint shortens the file, but LSNs keep growing.
+     */
+    @Test public void lsnSurvivesTruncation() throws Exception {
+        TransactionId t1 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logWrite(t1, page, page);
+        log.logCommit(t1);
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t2);
+        long before = log.logWrite(t2, page, page);
+
+        log.logCheckpoint();
+        long after = log.getCurrentLsn();
+        assertTrue(after > before);
+        assertEquals(after, log.getDurableLsn());
+        assertTrue(file.length() < after);
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(in.readLong());
+            assertEquals(LogFile.CHECKPOINT_RECORD, in.readInt());
+            in.seek(LogFile.LONG_SIZE);
+            assertEquals(LogFile.BEGIN_RECORD, in.readInt());
+            assertEquals(t2.getId(), in.readLong());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Concurrent appenders reserve their records in parallel; each record
+     * lands whole, at the offset it was reserved at, also when the ring
+     * wraps around or the record does not fit in it.
+     */
+    @Test public void concurrentAppenders() throws Exception {
+        int record = LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE
+                + 2 * log.pageData(page, page.getPageData()).length;
+        checkConcurrentAppenders(record * 3 + 100);
+        checkConcurrentAppenders(record / 2);
+    }
+
+    private void checkConcurrentAppenders(int bufferSize) throws Exception {
+        final int threads = 8, writes = 25;
+        file.delete();
+        log = new LogFile(file, bufferSize);
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        ArrayList<Thread> running = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            int first = i * writes;
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    start.await();
+                    log.logXactionBegin(tid);
+                    for (int j = 0; j < writes; j++)
+                        log.logWrite(tid, page(first + j), page(first + j));
+                    log.logCommit(tid);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            t.start();
+            running.add(t);
+        }
+        start.countDown();
+        for (Thread t : running)
+            t.join(60000);
+        assertNull(failure.get());
+        assertEquals(log.getCurrentLsn(), log.getDurableLsn());
+        assertEquals(file.length(), log.getCurrentLsn());
+
+        HashMap<Long, Integer> updates = new HashMap<Long, Integer>();
+        int commits = 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(LogFile.LONG_SIZE);
+            while (in.getFilePointer() < in.length()) {
+                long offset = in.getFilePointer();
+                int type = in.readInt();
+                long tid = in.readLong();
+                if (type == LogFile.UPDATE_RECORD) {
+                    for (int j = 0; j < 2; j++)
+                        assertArrayEquals(page.getPageData(), log.readPageData(in).getPageData());
+                    updates.merge(tid, 1, Integer::sum);
+                } else if (type == LogFile.COMMIT_RECORD) {
+                    commits++;
+                } else {
+                    assertEquals(LogFile.BEGIN_RECORD, type);
+                }
+                assertEquals(offset, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(threads, commits);
+        assertEquals(threads, updates.size());
+        for (int n : updates.values())
+            assertEquals(writes, n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,338 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MultiGranularityLockTest extends SimpleDbTestBase {
+
+    private static final int TABLE = 1;
+
+    private Lock locks;
+
+    @Before public void setUp() {
+        System.setProperty(Lock.ESCALATION_PROPERTY, "10");
+        locks = new Lock();
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(Lock.ESCALATION_PROPERTY);
+        locks.shutdown();
+    }
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(TABLE, pgNo);
+    }
+
+    /** Acquire a page lock in a new thread; the latch counts down once granted. */
+    private CountDownLatch acquireAsync(TransactionId tid, PageId pid, Permissions perm) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquire(tid, pid, perm);
+                granted.countDown();
+            } catch (TransactionAbortedException e) {
+                // the latch stays up
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * Writers of different pages of one table only meet in intention locks
+     * on the table, which do not conflict; a table S lock waits for them.
+     */
+    @Test public void intentionLocksDoNotConflict() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId reader = new TransactionId();
+        locks.acquire(t1, page(0), Permissions.READ_WRITE);
+        locks.acquire(t2, page(1), Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, locks.tableMode(t1, TABLE));
+
+        CountDownLatch scan = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                locks.acquireTable(reader, TABLE, Permissions.READ_ONLY);
+                scan.countDown();
+            } catch (TransactionAbortedException e) {
+                // the latch stays up
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        assertFalse(scan.await(100, TimeUnit.MILLISECONDS));
+        locks.deleteLocks(t1);
+        locks.deleteLocks(t2);
+        assertTrue(scan.await(5, TimeUnit.SECONDS));
+        assertTrue(locks.getLock(reader, page(7)));
+    }
+
+    /**
+     * A table lock covers the pages: locking them adds nothing.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        locks.acquireTable(tid, TABLE, Permissions.READ_ONLY);
+        for (int pgNo = 0; pgNo < 20; pgNo++)
+            locks.acquire(tid, page(pgNo), Permissions.READ_ONLY);
+        assertEquals(1, locks.locksHeld(tid));
+    }
+
+    /**
+     * An intention lock on the table grants nothing below it: page IS and
+     * IX locks are taken, and keep writers of the page out.
+     */
+    @Test public void intentionLockCoversNoPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        locks.acquire(t1, page(0), LockMode.IX);
+        locks.acquire(t1, page(1), LockMode.IS);
+        locks.acquire(t1, page(2), LockMode.IX);
+        assertEquals(4, locks.locksHeld(t1));
+
+        CountDownLatch writer = acquireAsync(t2, page(1), Permissions.READ_WRITE);
+        assertFalse(writer.await(100, TimeUnit.MILLISECONDS));
+        locks.deleteLocks(t1);
+        assertTrue(writer.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Writing a page of a table read as a whole converts the table lock to
+     * SIX: other readers still get in, writers do not.
+     */
+    @Test public void sixConversion() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        locks.acquireTable(t1, TABLE, Permissions.READ_ONLY);
+        locks.acquire(t1, page(0), Permissions.READ_WRITE);
+        assertEquals(LockMode.SIX, locks.tableMode(t1, TABLE));
+
+        locks.acquire(t2, page(5), Permissions.READ_ONLY);
+        CountDownLatch write = acquireAsync(t2, page(6), Permissions.READ_WRITE);
+        assertFalse(write.await(100, TimeUnit.MILLISECONDS));
+        locks.deleteLocks(t1);
+        assertTrue(write.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Past the threshold a transaction's page locks become one table lock:
+     * S for a reader, X for a writer.
+     */
+    @Test public void escalation() throws Exception {
+        TransactionId reader = new TransactionId();
+        for (int pgNo = 0; pgNo <= 10; pgNo++)
+            locks.acquire(reader, page(pgNo), Permissions.READ_ONLY);
+        assertEquals(1, locks.locksHeld(reader));
+        assertEquals(LockMode.S, locks.tableMode(reader, TABLE));
+        assertTrue(locks.getLock(reader, page(50)));
+        locks.deleteLocks(reader);
+
+        TransactionId writer = new TransactionId();
+        for (int pgNo = 0; pgNo <= 10; pgNo++)
+            locks.acquire(writer, page(pgNo), pgNo == 0 ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        assertEquals(LockMode.X, locks.tableMode(writer, TABLE));
+        assertEquals(1, locks.locksHeld(writer));
+    }
+
+    /**
+     * Escalation never waits: while another transaction holds a page of
+     * the table, the page locks are kept.
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        TransactionId other = new TransactionId();
+        TransactionId reader = new TransactionId();
+        locks.acquire(other, page(100), Permissions.READ_WRITE);
+        for (int pgNo = 0; pgNo <= 10; pgNo++)
+            locks.acquire(reader, page(pgNo), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, locks.tableMode(reader, TABLE));
+        assertEquals(12, locks.locksHeld(reader));
+    }
+
+    /**
+     * tryAcquire gives up at once on a page another transaction holds, and
+     * takes the lock once it is free.
+     */
+    @Test public void tryAcquireDoesNotWait() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        locks.acquire(t1, page(0), Permissions.READ_WRITE);
+        assertFalse(locks.tryAcquire(t2, page(0), LockMode.X));
+        assertTrue(locks.tryAcquire(t2, page(1), LockMode.X));
+        assertEquals(LockMode.IX, locks.tableMode(t2, TABLE));
+        locks.deleteLocks(t1);
+        assertTrue(locks.tryAcquire(t2, page(0), LockMode.X));
+        assertTrue(locks.getLock(t2, page(0)));
+    }
+
+    /**
+     * Writers of different tuples of a page do not conflict; a page lock
+     * waits for both.
+     */
+    @Test public void tupleLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        locks.acquireTuple(t1, new RecordId(page(0), 0), Permissions.READ_WRITE);
+        locks.acquireTuple(t2, new RecordId(page(0), 1), Permissions.READ_WRITE);
+        assertEquals(3, locks.locksHeld(t1));
+
+        CountDownLatch read = acquireAsync(t3, page(0), Permissions.READ_ONLY);
+        assertFalse(read.await(100, TimeUnit.MILLISECONDS));
+        locks.deleteLocks(t1);
+        assertEquals(1, read.getCount());
+        locks.deleteLocks(t2);
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A heap scan locks the whole table S up front, so a writer waits even
+     * for a page the scan has not reached; a scan by a transaction that
+     * declared it writes the table locks it SIX.
+     */
+    @Test public void scanLocksTable() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        assertTrue(f.numPages() > 1);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, Database.getBufferPool().locksHeld(tid));
+
+        TransactionId writer = new TransactionId();
+        CountDownLatch write = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                Database.getBufferPool().getPage(writer, new HeapPageId(f.getId(), f.numPages() - 1), Permissions.READ_WRITE);
+                write.countDown();
+            } catch (Exception e) {
+                // the latch stays up
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        assertFalse(write.await(100, TimeUnit.MILLISECONDS));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(write.await(5, TimeUnit.SECONDS));
+        Database.getBufferPool().transactionComplete(writer);
+
+        TransactionId updater = new TransactionId();
+        Database.getBufferPool().declareWrite(updater, f.getId());
+        it = f.iterator(updater);
+        it.open();
+        assertEquals(LockMode.SIX, Database.getBufferPool().tableMode(updater, f.getId()));
+        it.close();
+        Database.getBufferPool().transactionComplete(updater);
+    }
+
+    /**
+     * A plan that writes the table it scans, a delete or an INSERT ...
+     * SELECT from the same table, has the scan lock the table SIX up front
+     * instead of converting an S lock at the first write.
+     */
+    @Test public void writingPlansScanTableSix() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        List<LockMode> modes = new ArrayList<>();
+
+        TransactionId inserter = new TransactionId();
+        SeqScan scan = new SeqScan(inserter, f.getId(), "t") {
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                super.open();
+                modes.add(bp.tableMode(inserter, f.getId()));
+            }
+            @Override
+            public boolean hasNext() {
+                // nothing to insert: the lock is what is checked
+                return false;
+            }
+        };
+        Insert insert = new Insert(inserter, scan, f.getId());
+        insert.open();
+        insert.close();
+        bp.transactionComplete(inserter);
+
+        TransactionId deleter = new TransactionId();
+        scan = new SeqScan(deleter, f.getId(), "t") {
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                super.open();
+                modes.add(bp.tableMode(deleter, f.getId()));
+            }
+        };
+        Delete delete = new Delete(deleter, new Filter(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(Integer.MIN_VALUE)), scan));
+        delete.open();
+        delete.close();
+        bp.transactionComplete(deleter);
+
+        assertEquals(Arrays.asList(LockMode.SIX, LockMode.SIX), modes);
+    }
+
+    /**
+     * Heap writes lock the tuples they change under IX on the page:
+     * transactions deleting different tuples of a page do not wait for each
+     * other, an insert passes over a slot whose delete is not committed, a
+     * commit writes the page without the others' changes, and an abort
+     * undoes only its own.
+     */
+    @Test public void heapWritesLockTuples() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId scan = new TransactionId();
+        DbFileIterator it = f.iterator(scan);
+        it.open();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        it.close();
+        bp.transactionComplete(scan);
+        HeapPageId pid = (HeapPageId)first.getRecordId().getPageId();
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        bp.deleteTuple(t1, first);
+        bp.deleteTuple(t2, second);
+        Tuple added = Utility.getHeapTuple(new int[] { 1, 2 });
+        bp.insertTuple(t3, f.getId(), added);
+        assertEquals(10, added.getRecordId().getTupleNumber());
+
+        bp.transactionComplete(t2, true);
+        HeapPage disk = (HeapPage)f.readPage(pid);
+        assertTrue(disk.isSlotUsed(0));
+        assertFalse(disk.isSlotUsed(1));
+        assertFalse(disk.isSlotUsed(10));
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t3, true);
+        disk = (HeapPage)f.readPage(pid);
+        assertTrue(disk.isSlotUsed(0));
+        assertFalse(disk.isSlotUsed(1));
+        assertTrue(disk.isSlotUsed(10));
+        assertEquals(disk.getNumEmptySlots(), ((HeapPage)bp.getPage(scan, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+        bp.transactionComplete(scan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiGranularityLockTest.class);
+    }
+}
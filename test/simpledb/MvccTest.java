@@ -0,0 +1,202 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MvccTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private HeapFile table;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        System.setProperty(VersionStore.MVCC_PROPERTY, "true");
+        System.setProperty(VersionStore.GC_INTERVAL_PROPERTY, "0");
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(VersionStore.MVCC_PROPERTY);
+        System.clearProperty(VersionStore.GC_INTERVAL_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        return count(table, tid);
+    }
+
+    private int count(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private TransactionId insert(int rows) throws Exception {
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < rows; i++)
+            bp.insertTuple(writer, table.getId(), Utility.getHeapTuple(i, 2));
+        return writer;
+    }
+
+    /**
+     * A snapshot reads past an uncommitted writer, and keeps seeing the
+     * same data after the writer commits; a later snapshot sees the commit.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        TransactionId writer = insert(10);
+        assertEquals(ROWS, count(reader.getId()));
+
+        bp.transactionComplete(writer);
+        assertEquals(ROWS, count(reader.getId()));
+        assertTrue(bp.getVersionStore().size() > 0);
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(ROWS + 10, count(later.getId()));
+        reader.commit();
+        later.commit();
+    }
+
+    /**
+     * A writer does not wait for a snapshot that has read the whole table.
+     */
+    @Test public void readerDoesNotBlockWriter() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(reader.getId()));
+
+        CountDownLatch written = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                bp.transactionComplete(insert(1));
+                written.countDown();
+            } catch (Exception e) {
+                // the latch stays up
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertEquals(ROWS, count(reader.getId()));
+        reader.commit();
+    }
+
+    /**
+     * Snapshots share the latest committed version of a page instead of
+     * copying it at every read, until a commit replaces it.
+     */
+    @Test public void snapshotsShareCommittedPages() throws Exception {
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Page first = bp.getPage(reader.getId(), pid, Permissions.READ_ONLY);
+        assertSame(first, bp.getPage(reader.getId(), pid, Permissions.READ_ONLY));
+
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, ((HeapPage)first).iterator().next());
+        // an uncommitted change leaves the committed version as it was
+        assertSame(first, bp.getPage(reader.getId(), pid, Permissions.READ_ONLY));
+        bp.transactionComplete(writer);
+        assertSame(first, bp.getPage(reader.getId(), pid, Permissions.READ_ONLY));
+
+        Transaction later = new Transaction(true);
+        later.start();
+        Page latest = bp.getPage(later.getId(), pid, Permissions.READ_ONLY);
+        assertNotSame(first, latest);
+        assertEquals(((HeapPage)first).getNumEmptySlots() + 1, ((HeapPage)latest).getNumEmptySlots());
+        assertSame(latest, bp.getPage(later.getId(), pid, Permissions.READ_ONLY));
+        reader.commit();
+        later.commit();
+    }
+
+    /**
+     * Versions are kept while a snapshot may read them, and dropped after.
+     */
+    @Test public void collectOldVersions() throws Exception {
+        VersionStore versions = bp.getVersionStore();
+        Transaction reader = new Transaction(true);
+        reader.start();
+        bp.transactionComplete(insert(1));
+        int kept = versions.size();
+        assertTrue(kept > 0);
+        assertEquals(0, versions.collect());
+
+        reader.commit();
+        assertEquals(kept, versions.collect());
+        assertEquals(0, versions.size());
+
+        // with no snapshot running, nothing needs old versions
+        bp.transactionComplete(insert(1));
+        versions.collect();
+        assertEquals(0, versions.size());
+    }
+
+    /**
+     * The leaves a B+ tree split writes at once hold no uncommitted tuple for
+     * a snapshot to see, neither of the splitting transaction nor of one that
+     * aborts after inserting into the new leaves.
+     */
+    @Test public void snapshotIgnoresUncommittedSplits() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        // the encoder resets the pool
+        bp = Database.getBufferPool();
+        int pages = bf.numPages();
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 600; i++)
+            bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(1000 + i, 2));
+        assertTrue(bf.numPages() > pages);
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 600; i++)
+            bp.insertTuple(aborted, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + i, 2));
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(ROWS, count(bf, reader.getId()));
+        bp.transactionComplete(aborted, false);
+        bp.transactionComplete(writer);
+        assertEquals(ROWS, count(bf, reader.getId()));
+        reader.commit();
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(ROWS + 600, count(bf, later.getId()));
+        later.commit();
+    }
+
+    /**
+     * A snapshot cannot write.
+     */
+    @Test(expected = DbException.class) public void snapshotCannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        bp.getPage(reader.getId(), new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MvccTest.class);
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OccTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private HeapFile table;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        System.setProperty(BufferPool.CONCURRENCY_PROPERTY, "occ");
+        super.setUp();
+        bp = Database.getBufferPool();
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(BufferPool.CONCURRENCY_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private int count(Transaction t) throws Exception {
+        DbFileIterator it = table.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Delete the first tuple of a page. */
+    private void deleteFirst(Transaction t, int pgNo) throws Exception {
+        PageId pid = new HeapPageId(table.getId(), pgNo);
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+        bp.deleteTuple(t.getId(), p.iterator().next());
+    }
+
+    /**
+     * Writes stay private until commit, and nobody waits for them.
+     */
+    @Test public void writesArePrivate() throws Exception {
+        Transaction writer = begin();
+        deleteFirst(writer, 0);
+        assertEquals(ROWS - 1, count(writer));
+
+        Transaction reader = begin();
+        assertEquals(ROWS, count(reader));
+        reader.commit();
+
+        writer.commit();
+        Transaction later = begin();
+        assertEquals(ROWS - 1, count(later));
+        later.commit();
+    }
+
+    /**
+     * Transactions writing different pages both commit.
+     */
+    @Test public void disjointWritersCommit() throws Exception {
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        deleteFirst(t1, 0);
+        deleteFirst(t2, 1);
+        t1.commit();
+        t2.commit();
+
+        Transaction later = begin();
+        assertEquals(ROWS - 2, count(later));
+        later.commit();
+    }
+
+    /**
+     * A transaction that read a page another one committed since fails
+     * validation, and its writes are dropped.
+     */
+    @Test public void conflictAborts() throws Exception {
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        deleteFirst(t1, 0);
+        deleteFirst(t2, 0);
+        t1.commit();
+        try {
+            t2.commit();
+            fail("expected a validation failure");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        Transaction later = begin();
+        assertEquals(ROWS - 1, count(later));
+        later.commit();
+    }
+
+    /**
+     * An aborted transaction leaves no trace.
+     */
+    @Test public void abortDropsWrites() throws Exception {
+        Transaction t = begin();
+        deleteFirst(t, 0);
+        bp.insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(7, 2));
+        t.abort();
+
+        Transaction later = begin();
+        assertEquals(ROWS, count(later));
+        later.commit();
+    }
+
+    /**
+     * A commit whose pages cannot be written is aborted: the transaction
+     * gives back its scheduler slot, and its writes are dropped.
+     */
+    @Test public void failedWriteAborts() throws Exception {
+        System.setProperty(TransactionScheduler.MPL_PROPERTY, "4");
+        try {
+            Database.reset();
+            bp = Database.getBufferPool();
+            failWrite();
+        } finally {
+            System.clearProperty(TransactionScheduler.MPL_PROPERTY);
+            Database.reset();
+        }
+    }
+
+    private void failWrite() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, 1 << 16, null, null);
+        table = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Transaction t = begin();
+        deleteFirst(t, 0);
+        assertEquals(1, Database.getTransactionScheduler().getActive());
+        try {
+            t.commit();
+            fail("expected the write to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, Database.getTransactionScheduler().getActive());
+
+        Transaction later = begin();
+        assertEquals(ROWS, count(later));
+        later.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OccTest.class);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageCleanerTest extends TestUtil.CreateHeapFile {
+    private HeapPageId p0;
+
+    /**
+     * Set up a heap file with three pages, flushed to disk.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId t = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(t, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        p0 = new HeapPageId(empty.getId(), 0);
+        Database.getBufferPool().flushAllPages();
+        System.setProperty(BufferPool.WRITE_BACK_PROPERTY, "true");
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(BufferPool.WRITE_BACK_PROPERTY);
+        System.clearProperty(PageCleaner.CLEAN_RATIO_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Delete the first tuple of page 0 and commit. */
+    private Tuple deleteFirst(BufferPool bp, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        Tuple t = page.iterator().next();
+        bp.deleteTuple(tid, t);
+        bp.transactionComplete(tid, commit);
+        return t;
+    }
+
+    private static boolean contains(Page page, Tuple t) {
+        Iterator<Tuple> it = ((HeapPage) page).iterator();
+        while (it.hasNext())
+            if (it.next().getRecordId().equals(t.getRecordId()))
+                return true;
+        return false;
+    }
+
+    /**
+     * Commit only logs the page; it reaches the disk once written back.
+     */
+    @Test public void commitDefersWrite() throws Exception {
+        System.setProperty(PageCleaner.CLEAN_RATIO_PROPERTY, "0");
+        BufferPool bp = Database.resetBufferPool(10);
+        Tuple t = deleteFirst(bp, true);
+
+        assertTrue(contains(empty.readPage(p0), t));
+        bp.flushCommittedPages();
+        assertFalse(contains(empty.readPage(p0), t));
+    }
+
+    /**
+     * Eviction writes a committed page itself when nothing is clean.
+     */
+    @Test public void evictionWritesBack() throws Exception {
+        System.setProperty(PageCleaner.CLEAN_RATIO_PROPERTY, "0");
+        BufferPool bp = Database.resetBufferPool(1);
+        Tuple t = deleteFirst(bp, true);
+
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertFalse(contains(empty.readPage(p0), t));
+    }
+
+    /**
+     * The cleaner writes committed pages on its own.
+     */
+    @Test public void cleanerWritesBack() throws Exception {
+        System.setProperty(PageCleaner.CLEAN_RATIO_PROPERTY, "1");
+        BufferPool bp = Database.resetBufferPool(10);
+        Tuple t = deleteFirst(bp, true);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (contains(empty.readPage(p0), t)) {
+            assertTrue("page was never written back", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Aborting goes back to the committed version, not the one on disk.
+     */
+    @Test public void abortKeepsCommittedVersion() throws Exception {
+        System.setProperty(PageCleaner.CLEAN_RATIO_PROPERTY, "0");
+        BufferPool bp = Database.resetBufferPool(10);
+        Tuple first = deleteFirst(bp, true);
+        Tuple second = deleteFirst(bp, false);
+
+        TransactionId tid = new TransactionId();
+        Page page = bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertFalse(contains(page, first));
+        assertTrue(contains(page, second));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
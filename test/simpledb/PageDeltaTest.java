@@ -0,0 +1,108 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPage page;
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        file = File.createTempFile("pagedelta", ".log");
+        file.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    /** @return a copy of the page with one more tuple */
+    private HeapPage inserted(HeapPage p, int value) throws Exception {
+        HeapPage after = new HeapPage(p.getId(), p.getPageData());
+        after.insertTuple(Utility.getHeapTuple(value, 2));
+        return after;
+    }
+
+    /**
+     * Inserting a tuple changes a few bytes; the delta holds only those,
+     * and takes the page from one image to the other and back.
+     */
+    @Test public void redoUndo() throws Exception {
+        HeapPage after = inserted(page, 7);
+        after.deleteTuple(after.iterator().next());
+        byte[] before = page.getPageData();
+        PageDelta delta = PageDelta.diff(before, after.getPageData());
+        assertTrue(delta.size() < 100);
+
+        // through the log format and back
+        delta = PageDelta.read(new DataInputStream(new ByteArrayInputStream(delta.serialize())));
+        byte[] data = page.getPageData();
+        delta.redo(data);
+        assertArrayEquals(after.getPageData(), data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * A page is logged whole the first time after a checkpoint, and by
+     * DELTA records after that.
+     */
+    @Test public void deltaAfterFirstImage() throws Exception {
+        LogFile log = new LogFile(file);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p1 = inserted(page, 1);
+        HeapPage p2 = inserted(p1, 2);
+        log.logWrite(tid, page, p1);
+        long start = log.getCurrentLsn();
+        log.logWrite(tid, p1, p2);
+        long deltaSize = log.getCurrentLsn() - start;
+        assertTrue("delta record of " + deltaSize, deltaSize < 200);
+        log.logCommit(tid);
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(start);
+            assertEquals(LogFile.DELTA_RECORD, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            assertEquals(page.getId(), log.readPageId(in));
+            PageDelta delta = PageDelta.read(in);
+            assertEquals(start, in.readLong());
+            assertArrayEquals(p2.getPageData(), log.redo(p1, delta).getPageData());
+            assertArrayEquals(p1.getPageData(), log.undo(p2, delta).getPageData());
+        } finally {
+            in.close();
+        }
+
+        log.logCheckpoint();
+        tid = new TransactionId();
+        log.logXactionBegin(tid);
+        start = log.getCurrentLsn();
+        log.logWrite(tid, p2, inserted(p2, 3));
+        assertTrue(log.getCurrentLsn() - start > 2 * BufferPool.getPageSize());
+        log.logCommit(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageLatchTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static int count(HeapPage page) {
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
+    /**
+     * A reader waits for a writer holding the latch.
+     */
+    @Test public void readerWaitsForWriter() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int empty = page.getNumEmptySlots();
+        CountDownLatch done = new CountDownLatch(1);
+        long stamp = page.getLatch().writeLock();
+        Thread reader = new Thread(() -> {
+            page.getNumEmptySlots();
+            done.countDown();
+        });
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            page.getLatch().unlockWrite(stamp);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(empty, page.getNumEmptySlots());
+    }
+
+    /**
+     * Images of a page taken while another thread inserts and deletes a
+     * tuple are never torn: each holds either the page with the tuple or
+     * the page without it.
+     */
+    @Test public void readsAreConsistent() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int empty = page.getNumEmptySlots();
+        int used = count(page);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    Tuple t = Utility.getHeapTuple(7, 2);
+                    page.insertTuple(t);
+                    page.deleteTuple(t);
+                }
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                HeapPage image = new HeapPage(pid, page.getPageData());
+                int n = image.getNumEmptySlots();
+                assertTrue(n == empty || n == empty - 1);
+                int seen = count(page);
+                assertTrue(seen == used || seen == used + 1);
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        assertNull(failure.get());
+        assertEquals(empty, page.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLatchTest.class);
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    @After public void tearDown() {
+        System.clearProperty(ReadAhead.WINDOW_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Pages after the ones a scan has read so far are loaded ahead of it.
+     */
+    @Test public void sequentialAccessReadsAhead() throws Exception {
+        TestUtil.CountingHeapFile table = TestUtil.createCountingHeapFile(20, new ArrayList<>());
+        BufferPool bp = Database.resetBufferPool(40);
+
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(table.getId(), 1), Permissions.READ_ONLY);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (table.reads.get() < 2 + 8) {
+            assertTrue("no read-ahead", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // the scan carries on without reading anything itself
+        int reads = table.reads.get();
+        bp.getPage(tid, new HeapPageId(table.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(reads, table.reads.get());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Random access does not trigger read-ahead.
+     */
+    @Test public void randomAccessDoesNot() throws Exception {
+        TestUtil.CountingHeapFile table = TestUtil.createCountingHeapFile(20, new ArrayList<>());
+        BufferPool bp = Database.resetBufferPool(40);
+
+        TransactionId tid = new TransactionId();
+        for (int pgNo : new int[] { 7, 3, 12, 5 })
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+        Thread.sleep(100);
+        assertEquals(4, table.reads.get());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A scan through read-ahead still reads every page exactly once and
+     * returns every tuple.
+     */
+    @Test public void scanReadsEachPageOnce() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        TestUtil.CountingHeapFile table = TestUtil.createCountingHeapFile(30, tuples);
+        Database.resetBufferPool(50);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(30, table.reads.get());
+    }
+
+    /**
+     * Read-ahead can be switched off.
+     */
+    @Test public void disabled() throws Exception {
+        System.setProperty(ReadAhead.WINDOW_PROPERTY, "0");
+        TestUtil.CountingHeapFile table = TestUtil.createCountingHeapFile(20, new ArrayList<>());
+        BufferPool bp = Database.resetBufferPool(40);
+
+        TransactionId tid = new TransactionId();
+        for (int pgNo = 0; pgNo < 4; pgNo++)
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+        Thread.sleep(100);
+        assertEquals(4, table.reads.get());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadOnlyTransactionTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private HeapFile table;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    @After public void tearDown() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private Transaction begin(boolean readOnly) {
+        Transaction t = new Transaction(readOnly);
+        t.start();
+        return t;
+    }
+
+    private int count(Transaction t) throws Exception {
+        DbFileIterator it = table.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A read-only transaction writes no log records.
+     */
+    @Test public void notLogged() throws Exception {
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction t = begin(true);
+        assertEquals(ROWS, count(t));
+        t.commit();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+
+        t = begin(true);
+        t.abort();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Reading one page locks the whole table: a writer of another page
+     * waits until the read-only transaction is done.
+     */
+    @Test public void locksTable() throws Exception {
+        Transaction reader = begin(true);
+        bp.getPage(reader.getId(), new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+
+        TransactionId writer = new TransactionId();
+        CountDownLatch written = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                bp.getPage(writer, new HeapPageId(table.getId(), 1), Permissions.READ_WRITE);
+                written.countDown();
+            } catch (Exception e) {
+                // the latch stays up
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+        reader.commit();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        bp.transactionComplete(writer);
+    }
+
+    /**
+     * Read-only transactions do not wait for each other.
+     */
+    @Test public void readersShare() throws Exception {
+        Transaction t1 = begin(true);
+        Transaction t2 = begin(true);
+        assertEquals(ROWS, count(t1));
+        assertEquals(ROWS, count(t2));
+        t1.commit();
+        t2.commit();
+    }
+
+    /**
+     * A read-only transaction cannot insert.
+     */
+    @Test(expected = DbException.class) public void insertFails() throws Exception {
+        Transaction t = begin(true);
+        bp.insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(7, 2));
+    }
+
+    /**
+     * A read-only transaction cannot fetch a page for writing.
+     */
+    @Test(expected = DbException.class) public void writeFails() throws Exception {
+        Transaction t = begin(true);
+        bp.getPage(t.getId(), new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+    }
+}
@@ -0,0 +1,238 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File file1;
+    private File file2;
+    private File file3;
+    private HeapFile hf1;
+    private HeapFile hf2;
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty(ParallelRedo.THREADS_PROPERTY, "4");
+        file1 = File.createTempFile("recovery1", ".db");
+        file2 = File.createTempFile("recovery2", ".db");
+        file3 = File.createTempFile("recovery3", ".db");
+        file1.deleteOnExit();
+        file2.deleteOnExit();
+        file3.deleteOnExit();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        bf = BTreeUtility.createEmptyBTreeFile(file3.getAbsolutePath(), 2, 0);
+    }
+
+    @After public void tearDown() {
+        System.clearProperty(ParallelRedo.THREADS_PROPERTY);
+        file1.delete();
+        file2.delete();
+        file3.delete();
+    }
+
+    private void insert(Transaction t, DbFile f, int from, int to) throws Exception {
+        for (int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private void commit(DbFile f, int from, int to) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, f, from, to);
+        t.commit();
+    }
+
+    /** @return the number of tuples in the file */
+    private int count(DbFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, file3, 0);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Writes the data files lost are redone from the log, page images and
+     * deltas alike, by several workers.
+     */
+    @Test public void redoLostWrites() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            commit(hf1, 1000 * i, 1000 * i + 400);
+            commit(hf2, 1000 * i, 1000 * i + 400);
+        }
+        assertEquals(2400, count(hf1));
+        new RandomAccessFile(file1, "rw").setLength(0);
+        new RandomAccessFile(file2, "rw").setLength(0);
+
+        crash();
+        LogFile log = Database.getLogFile();
+        assertTrue(log.getRecordsRedone() >= 12);
+        assertEquals(0, log.getRecordsUndone());
+        assertTrue(log.getRecoveryMillis() >= 0);
+        assertEquals(2400, count(hf1));
+        assertEquals(2400, count(hf2));
+    }
+
+    /**
+     * A transaction live at the crash is undone, although its pages were
+     * written; another committed after it stays.
+     */
+    @Test public void undoLoser() throws Exception {
+        commit(hf1, 0, 10);
+        commit(hf2, 0, 10);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, hf1, 100, 700);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        insert(loser, hf1, 700, 710);
+        Database.getBufferPool().flushAllPages();
+        commit(hf2, 10, 20);
+
+        crash();
+        assertTrue(Database.getLogFile().getRecordsUndone() >= 3);
+        assertEquals(10, count(hf1));
+        assertEquals(20, count(hf2));
+    }
+
+    /**
+     * A B+ tree transaction live at the crash is undone key by key: the
+     * leaves it split stay split, and a transaction that committed after
+     * the splits stays.
+     */
+    @Test public void undoBTreeLoser() throws Exception {
+        commit(bf, 0, 600);
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, bf, 1000, 1600);
+        commit(bf, -100, 0);
+        Database.getBufferPool().flushAllPages();
+        insert(loser, bf, 2000, 2010);
+
+        crash();
+        assertTrue(Database.getLogFile().getRecordsUndone() >= 600);
+        assertEquals(700, count(bf));
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A crash after a rollback but before its ABORT record: the
+     * compensation records keep recovery from undoing anything twice.
+     */
+    @Test public void crashAfterRollback() throws Exception {
+        commit(hf1, 0, 10);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf1, 100, 110);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().rollback(t.getId());
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(0, Database.getLogFile().getRecordsUndone());
+        assertEquals(10, count(hf1));
+    }
+
+    /**
+     * A commit whose pages fail to be written after the first aborts: the
+     * page already written is undone on disk from the log, and the locks
+     * are released.
+     */
+    @Test public void failedCommitIsUndone() throws Exception {
+        commit(hf1, 0, 10);
+        int[] writes = { -1 };  // writes left before one fails, or -1
+        HeapFile failing = new HeapFile(file1, hf1.getTupleDesc()) {
+            @Override
+            public void writePage(Page page) throws IOException {
+                if (writes[0] >= 0 && writes[0]-- == 0)
+                    throw new IOException("injected write failure");
+                super.writePage(page);
+            }
+        };
+        Database.getCatalog().addTable(failing, "failing");
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, failing, 100, 2000);
+        assertTrue(failing.numPages() > 2);
+        writes[0] = 1;
+        try {
+            t.commit();
+            fail("the commit should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        writes[0] = -1;
+
+        int onDisk = 0;
+        for (int i = 0; i < failing.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage)failing.readPage(new HeapPageId(failing.getId(), i))).iterator();
+            for (; it.hasNext(); it.next())
+                onDisk++;
+        }
+        assertEquals(10, onDisk);
+        assertEquals(10, count(failing));
+        commit(failing, 10, 20);
+        assertEquals(20, count(failing));
+    }
+
+    /**
+     * A record torn by the crash is cut off the log, which takes new
+     * records after the last whole one.
+     */
+    @Test public void tornTail() throws Exception {
+        commit(hf1, 0, 10);
+        File logFile = Database.getLogFile().logFile;
+        long length = logFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.seek(length);
+            raf.writeInt(LogFile.UPDATE_RECORD);
+            raf.writeLong(42);
+            raf.write(new byte[100]);
+        }
+
+        crash();
+        assertEquals(10, count(hf1));
+        commit(hf1, 10, 20);
+        crash();
+        assertEquals(20, count(hf1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
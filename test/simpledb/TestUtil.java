@@ -1,10 +1,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
+import simpledb.systemtest.SystemTestUtil;
+
 public class TestUtil {
     /**
      * @return an IntField with value n
@@ -371,6 +375,45 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Heap file that counts its single-page reads, and the sizes of its
+     * batched reads, from any thread.
+     */
+    public static class CountingHeapFile extends HeapFile {
+        public final AtomicInteger reads = new AtomicInteger();
+        public final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public Page[] readPages(PageId[] pids, ByteBuffer[] frames) {
+            batches.add(pids.length);
+            return super.readPages(pids, frames);
+        }
+    }
+
+    /**
+     * Create a one-column table of random values filling the given number
+     * of pages, counting its reads, and add it to the catalog.
+     *
+     * @param tuples receives the tuples written, if not null
+     */
+    public static CountingHeapFile createCountingHeapFile(int pages, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * pages, 1000, null, tuples);
+        CountingHeapFile table = new CountingHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
     /** JUnit fixture that creates a heap file and cleans it up afterward. */
     public static abstract class CreateHeapFile {
         protected CreateHeapFile() {
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TransactionSchedulerTest extends SimpleDbTestBase {
+
+    private final AtomicLong waits = new AtomicLong();
+
+    /** Admit a transaction in a new thread; the latch counts down once it is in. */
+    private CountDownLatch admitAsync(TransactionScheduler s, List<Integer> order, int id) {
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            s.admit();
+            order.add(id);
+            admitted.countDown();
+        });
+        t.setDaemon(true);
+        t.start();
+        return admitted;
+    }
+
+    private void awaitQueued(TransactionScheduler s, int n) throws InterruptedException {
+        for (int i = 0; i < 500 && s.getQueued() < n; i++)
+            Thread.sleep(10);
+        assertEquals(n, s.getQueued());
+    }
+
+    /**
+     * Without a limit transactions are admitted at once.
+     */
+    @Test public void noLimit() {
+        TransactionScheduler s = new TransactionScheduler(0, waits::get);
+        for (int i = 0; i < 100; i++)
+            s.admit();
+        assertEquals(0, s.getQueued());
+    }
+
+    /**
+     * Past the level transactions wait, and are let in in arrival order
+     * as others complete.
+     */
+    @Test public void capAndFifo() throws Exception {
+        TransactionScheduler s = new TransactionScheduler(2, waits::get);
+        s.admit();
+        s.admit();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        ArrayList<CountDownLatch> admitted = new ArrayList<CountDownLatch>();
+        for (int i = 0; i < 3; i++) {
+            admitted.add(admitAsync(s, order, i));
+            awaitQueued(s, i + 1);
+        }
+        assertFalse(admitted.get(0).await(100, TimeUnit.MILLISECONDS));
+        assertEquals(2, s.getActive());
+
+        for (int i = 0; i < 3; i++) {
+            s.complete(false);
+            assertTrue(admitted.get(i).await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, s.getActive());
+        assertEquals(0, s.getQueued());
+        assertEquals(List.of(0, 1, 2), order);
+    }
+
+    /**
+     * Aborts and lock waits cut the level; a window of clean transactions
+     * that use all of it raises it again by one.
+     */
+    @Test public void adapts() throws Exception {
+        TransactionScheduler s = new TransactionScheduler(16, waits::get);
+        for (int i = 0; i < TransactionScheduler.WINDOW; i++) {
+            s.admit();
+            s.complete(i % 2 == 0);
+        }
+        assertEquals(12, s.getLimit());
+
+        for (int i = 0; i < TransactionScheduler.WINDOW; i++) {
+            s.admit();
+            waits.addAndGet(3);
+            s.complete(false);
+        }
+        assertEquals(9, s.getLimit());
+
+        int limit = s.getLimit();
+        for (int done = 0; done < TransactionScheduler.WINDOW; done += limit) {
+            for (int i = 0; i < limit; i++)
+                s.admit();
+            for (int i = 0; i < limit; i++)
+                s.complete(false);
+        }
+        assertEquals(limit + 1, s.getLimit());
+
+        for (int i = 0; i < 20 * TransactionScheduler.WINDOW; i++) {
+            s.admit();
+            s.complete(true);
+        }
+        assertEquals(TransactionScheduler.MIN_LIMIT, s.getLimit());
+    }
+
+    /**
+     * A transaction gives its slot back to the scheduler that admitted it,
+     * even if the database has been reset since.
+     */
+    @Test public void completesOnAdmittingScheduler() throws Exception {
+        System.setProperty(TransactionScheduler.MPL_PROPERTY, "4");
+        try {
+            Database.reset();
+            Transaction t = new Transaction();
+            t.start();
+            TransactionScheduler s = Database.getTransactionScheduler();
+            assertEquals(1, s.getActive());
+            Database.reset();
+            t.commit();
+            assertEquals(0, s.getActive());
+            assertEquals(0, Database.getTransactionScheduler().getActive());
+        } finally {
+            System.clearProperty(TransactionScheduler.MPL_PROPERTY);
+            Database.reset();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TransactionSchedulerTest.class);
+    }
+}